@@ -0,0 +1,83 @@
+package ixa.kaflib.benchmarks;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Term;
+import ixa.kaflib.WF;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/** Operations on a document already in memory: merging it into another document, listing its sentences, finding the terms of each sentence and building its constituency layer from parentheses. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx8g" })
+public class DocumentBenchmark {
+
+    /** An empty document for each invocation of merge */
+    @State(Scope.Thread)
+    public static class MergeTarget {
+	KAFDocument kaf;
+
+	@Setup(Level.Invocation)
+	public void setUp() {
+	    kaf = new KAFDocument("en", "v1.opener");
+	}
+    }
+
+    /** The text and terms of the document, without a constituency layer, and the trees of its sentences in parentheses format */
+    @State(Scope.Thread)
+    public static class ParenthesesInput {
+	KAFDocument kaf;
+	String trees;
+
+	@Setup(Level.Trial)
+	public void setUp(DocumentState state) throws Exception {
+	    kaf = KAFDocument.createFromFile(state.file, EnumSet.of(KAFDocument.Layer.text, KAFDocument.Layer.terms));
+	    trees = SyntheticKAF.toParentheses(kaf);
+	}
+
+	@Setup(Level.Invocation)
+	public void removeTrees() {
+	    kaf.removeLayer(KAFDocument.Layer.constituency);
+	}
+    }
+
+    @Benchmark
+    public KAFDocument merge(DocumentState state, MergeTarget target) {
+	target.kaf.merge(state.kaf);
+	return target.kaf;
+    }
+
+    @Benchmark
+    public List<List<WF>> getSentences(DocumentState state) {
+	return state.kaf.getSentences();
+    }
+
+    @Benchmark
+    public void getTermsByWFs(DocumentState state, Blackhole blackhole) {
+	for (List<WF> sentence : state.kaf.getSentences()) {
+	    blackhole.consume(state.kaf.getTermsByWFs(sentence));
+	}
+    }
+
+    @Benchmark
+    public KAFDocument parenthesesToKaf(ParenthesesInput input) throws Exception {
+	input.kaf.addConstituencyFromParentheses(input.trees);
+	return input.kaf;
+    }
+}
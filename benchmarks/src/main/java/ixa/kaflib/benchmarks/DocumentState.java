@@ -0,0 +1,40 @@
+package ixa.kaflib.benchmarks;
+
+import ixa.kaflib.KAFDocument;
+import java.io.File;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/** A synthetic document of the size given by the "tokens" parameter, in memory and saved to temporary files as XML and as a snapshot. It is created once per trial and shared by all the benchmark threads. */
+@State(Scope.Benchmark)
+public class DocumentState {
+
+    @Param({ "1000", "100000", "1000000" })
+    public int tokens;
+
+    public KAFDocument kaf;
+
+    public File file;
+
+    public File snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+	kaf = SyntheticKAF.create(tokens);
+	file = File.createTempFile("kaflib-bench-" + tokens + "-", ".kaf");
+	kaf.save(file.getPath());
+	snapshot = File.createTempFile("kaflib-bench-" + tokens + "-", ".kafs");
+	kaf.saveSnapshot(snapshot);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	file.delete();
+	snapshot.delete();
+    }
+}
@@ -0,0 +1,64 @@
+package ixa.kaflib.benchmarks;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.SaveOptions;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/** Saving and loading gzipped documents with a given number of compression threads. Compare with SaveBenchmark.save and LoadBenchmark.loadFromFile for the cost of compression. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx8g" })
+@State(Scope.Thread)
+public class GzipBenchmark {
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private SaveOptions options;
+
+    private File output;
+
+    private File input;
+
+    @Setup(Level.Trial)
+    public void setUp(DocumentState state) throws Exception {
+	options = new SaveOptions();
+	options.setGzipThreads(threads);
+	output = File.createTempFile("kaflib-bench-save-", ".kaf.gz");
+	input = File.createTempFile("kaflib-bench-" + state.tokens + "-", ".kaf.gz");
+	state.kaf.save(input.getPath(), options);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	output.delete();
+	input.delete();
+    }
+
+    @Benchmark
+    public void save(DocumentState state) {
+	state.kaf.save(output.getPath(), options);
+    }
+
+    @Benchmark
+    public KAFDocument load() throws Exception {
+	return KAFDocument.createFromFile(input);
+    }
+}
@@ -0,0 +1,45 @@
+package ixa.kaflib.benchmarks;
+
+import ixa.kaflib.KAFDocument;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/** Loading a whole document from a file, from a Reader and from a snapshot. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx8g" })
+public class LoadBenchmark {
+
+    @Benchmark
+    public KAFDocument loadFromFile(DocumentState state) throws Exception {
+	return KAFDocument.createFromFile(state.file);
+    }
+
+    @Benchmark
+    public KAFDocument loadFromReader(DocumentState state) throws Exception {
+	Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(state.file), "UTF-8"));
+	try {
+	    return KAFDocument.createFromStream(reader);
+	} finally {
+	    reader.close();
+	}
+    }
+
+    @Benchmark
+    public KAFDocument loadFromSnapshot(DocumentState state) throws Exception {
+	return KAFDocument.createFromSnapshot(state.snapshot);
+    }
+}
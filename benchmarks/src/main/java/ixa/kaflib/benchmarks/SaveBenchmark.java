@@ -0,0 +1,58 @@
+package ixa.kaflib.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/** Serializing a document to a file, to a String and to a snapshot. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx8g" })
+@State(Scope.Thread)
+public class SaveBenchmark {
+
+    private File output;
+
+    private File snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+	output = File.createTempFile("kaflib-bench-save-", ".kaf");
+	snapshot = File.createTempFile("kaflib-bench-save-", ".kafs");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	output.delete();
+	snapshot.delete();
+    }
+
+    @Benchmark
+    public void save(DocumentState state) {
+	state.kaf.save(output.getPath());
+    }
+
+    @Benchmark
+    public String toString(DocumentState state) {
+	return state.kaf.toString();
+    }
+
+    @Benchmark
+    public void saveSnapshot(DocumentState state) throws Exception {
+	state.kaf.saveSnapshot(snapshot);
+    }
+}
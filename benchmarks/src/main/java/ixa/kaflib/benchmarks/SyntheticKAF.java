@@ -0,0 +1,133 @@
+package ixa.kaflib.benchmarks;
+
+import ixa.kaflib.Entity;
+import ixa.kaflib.Feature;
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.NonTerminal;
+import ixa.kaflib.Opinion;
+import ixa.kaflib.Predicate;
+import ixa.kaflib.Span;
+import ixa.kaflib.Term;
+import ixa.kaflib.WF;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/** Generates KAF documents of a given size with every layer populated, so the benchmarks don't depend on external corpora. The documents are deterministic: the same size always gives the same document. */
+public class SyntheticKAF {
+
+    public static final int TOKENS_PER_SENTENCE = 25;
+
+    private static final String[] POS = { "N", "V", "G", "R", "D" };
+    private static final String[] FORMS = { "the", "house", "was", "built", "in", "1990", "by", "a", "well-known", "architect", "&", "friends", "<i>" };
+
+    /** Creates a document with the given number of tokens, split in sentences of TOKENS_PER_SENTENCE tokens. */
+    public static KAFDocument create(int tokens) throws Exception {
+	KAFDocument kaf = new KAFDocument("en", "v1.opener");
+	kaf.addLinguisticProcessor("text", "tokenizer", "1.0");
+	kaf.addLinguisticProcessor("terms", "pos-tagger", "1.0");
+	kaf.addLinguisticProcessor("deps", "parser", "1.0");
+	kaf.createFileDesc();
+	kaf.createPublic("synthetic-" + tokens);
+	int offset = 0;
+	int sent = 1;
+	for (int first = 0; first < tokens; first += TOKENS_PER_SENTENCE, sent++) {
+	    int length = Math.min(TOKENS_PER_SENTENCE, tokens - first);
+	    List<Term> terms = new ArrayList<Term>(length);
+	    for (int i = 0; i < length; i++) {
+		String form = FORMS[(first + i) % FORMS.length];
+		WF wf = kaf.newWF(form, offset, sent);
+		offset += form.length() + 1;
+		Span<WF> span = KAFDocument.newWFSpan();
+		span.addTarget(wf, true);
+		Term term = kaf.newTerm((i % 2 == 0) ? "open" : "close", form.toLowerCase(), POS[i % POS.length], span);
+		if (i % 4 == 0) {
+		    term.setMorphofeat("NN");
+		    term.addExternalRef(kaf.newExternalRef("wn", "ili-30-" + (first + i) + "-n"));
+		}
+		if (i % 11 == 0) {
+		    term.addComponent(kaf.newComponent(term, form, "N"), true);
+		}
+		terms.add(term);
+	    }
+	    addSentenceAnnotations(kaf, terms);
+	}
+	return kaf;
+    }
+
+    /** Returns the constituency trees of a document in the parentheses format read by KAFDocument.addConstituencyFromParentheses. Each sentence is a flat tree with a preterminal per term. */
+    public static String toParentheses(KAFDocument kaf) {
+	StringBuilder sb = new StringBuilder();
+	for (List<WF> sentence : kaf.getSentences()) {
+	    sb.append("(S");
+	    for (Term term : kaf.getTermsByWFs(sentence)) {
+		sb.append(" (").append(term.getPos()).append(' ').append(term.getForm()).append(')');
+	    }
+	    sb.append(")\n");
+	}
+	return sb.toString();
+    }
+
+    private static void addSentenceAnnotations(KAFDocument kaf, List<Term> terms) throws Exception {
+	Term root = terms.get(0);
+	for (int i = 1; i < terms.size(); i++) {
+	    kaf.newDep((i % 3 == 0) ? terms.get(i - 1) : root, terms.get(i), (i % 2 == 0) ? "mod" : "obj");
+	}
+	for (int i = 0; i + 1 < terms.size(); i += 3) {
+	    kaf.newChunk("NP", span(terms, i, i + 2, i + 1));
+	}
+	if (terms.size() < 6) {
+	    return;
+	}
+	Entity entity = kaf.newEntity(references(span(terms, 1, 3, 2)));
+	entity.setType("PER");
+	entity.addExternalRef(kaf.newExternalRef("dbpedia", "Architect"));
+	List<Span<Term>> mentions = references(span(terms, 1, 2, 1));
+	mentions.add(span(terms, 4, 5, 4));
+	kaf.newCoref(mentions);
+	Feature property = kaf.newProperty("size", references(span(terms, 3, 4, 3)));
+	Feature category = kaf.newCategory("building", references(span(terms, 5, 6, 5)));
+	Opinion opinion = kaf.newOpinion();
+	opinion.createOpinionHolder(span(terms, 1, 2, 1));
+	opinion.createOpinionTarget(span(terms, 2, 3, 2));
+	opinion.createOpinionExpression(span(terms, 3, 4, 3)).setPolarity("positive");
+	kaf.newRelation(entity, property).setConfidence(0.5f);
+	kaf.newRelation(property, category);
+	Predicate predicate = kaf.newPredicate(span(terms, 2, 3, 2));
+	predicate.setUri("http://example.org/build");
+	predicate.addRole(kaf.newRole(predicate, "A0", span(terms, 0, 2, 1)));
+	predicate.addRole(kaf.newRole(predicate, "A1", span(terms, 3, 5, 4)));
+	NonTerminal s = kaf.newNonTerminal("S");
+	for (int i = 0; i < terms.size(); i++) {
+	    NonTerminal preterminal = kaf.newNonTerminal(terms.get(i).getPos());
+	    preterminal.setHead(i == 0);
+	    preterminal.addChild(kaf.newTerminal(span(terms, i, i + 1, i)));
+	    s.addChild(preterminal);
+	}
+	kaf.newConstituent(s);
+    }
+
+    /** Returns a span of the terms from start (included) to end (excluded) */
+    private static Span<Term> span(List<Term> terms, int start, int end, int head) {
+	Span<Term> span = KAFDocument.newTermSpan();
+	for (int i = start; i < Math.min(end, terms.size()); i++) {
+	    span.addTarget(terms.get(i), i == head);
+	}
+	return span;
+    }
+
+    private static List<Span<Term>> references(Span<Term> span) {
+	List<Span<Term>> references = new ArrayList<Span<Term>>();
+	references.add(span);
+	return references;
+    }
+
+    /** Writes a synthetic document: SyntheticKAF <tokens> <file> */
+    public static void main(String[] args) throws Exception {
+	if (args.length != 2) {
+	    System.err.println("Usage: SyntheticKAF <tokens> <file>");
+	    System.exit(1);
+	}
+	create(Integer.parseInt(args[0])).save(args[1]);
+    }
+}
@@ -5,29 +5,37 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.RandomAccess;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
 
-/** A container to keep all annotations of a document (word forms, terms, dependencies, chunks, entities and coreferences). There are different hash maps to index annotations by different properties as ID, sentence... It enables to retrieve annotations by different properties in an effective way. Performance is very important. */
+/** A container to keep all annotations of a document (word forms, terms, dependencies, chunks, entities and coreferences). There are different hash maps to index annotations by different properties as ID, sentence... It enables to retrieve annotations by different properties in an effective way. Performance is very important.
+ * <p>
+ * Every layer but text and terms has its own lock, taken to add, remove and look up its annotations, so different layers can be annotated from different threads at the same time. The text and terms layers are read without locking, as every other layer refers to them: they must not change while other layers are being annotated.
+ */
 class AnnotationContainer {
 
     private String rawText;
 
     /** List to keep all word forms */
-    private List<WF> text;
+    private ArrayList<WF> text;
 
     /** Next offset: sum of all words' length plus one char per word */
     private int nextOffset;
 
     /** List to keep all terms */
-    private List<Term> terms;
+    private ArrayList<Term> terms;
 
     /** List to keep all dependencies */
     private List<Dep> deps;
@@ -59,21 +67,69 @@ class AnnotationContainer {
     /** List to keep all trees */
     private List<Tree> trees;
 
-    /** Hash map to index word forms by the sentence. It maps sentence's IDs to a list of token IDs from that sentence.  */
-    private HashMap<Integer, List<WF>> textIndexedBySent;
+    /** Indexes of word forms and terms by sentence (see SentenceIndex). They are built the first time they are queried, and dropped when a word form changes its sentence or the order of the layer changes. */
+    private SentenceIndex<WF> textBySent;
+    private SentenceIndex<Term> termsBySent;
 
-    /** Hash map to index terms by the sentence. It maps sentence's IDs to a list of term IDs from that sentence.  */
-    private HashMap<Integer, List<Term>> termsIndexedBySent;
-
-    /** Hash map for mapping word forms to terms. */
+    /** Terms of the word forms which belong to another container, by word form ID, as shards and views share the word forms of their document. The word forms of this container reference their terms themselves (see WF.term). */
     private HashMap<String, Term> termsIndexedByWF;
 
+    /** Indexes of the text and terms layers by ID (see IdIndex) */
+    private IdIndex<WF> textIndexedById;
+    private IdIndex<Term> termsIndexedById;
+
+    /** Hash maps to index the annotations of the other layers by their ID */
+    private HashMap<String, Chunk> chunksIndexedById;
+    private HashMap<String, Entity> entitiesIndexedById;
+    private HashMap<String, Feature> propertiesIndexedById;
+    private HashMap<String, Feature> categoriesIndexedById;
+    private HashMap<String, Coref> corefsIndexedById;
+    private HashMap<String, Opinion> opinionsIndexedById;
+    private HashMap<String, Relation> relationsIndexedById;
+    private HashMap<String, Predicate> predicatesIndexedById;
+
+    /** Hash maps to index annotations by the terms in their spans. They are built the first time they are queried, and dropped when an annotation is added to their layer or the layer is removed, as well as when a predicate of the container gets a role or an opinion gets a holder, target or expression. */
+    private HashMap<Term, List<Entity>> entitiesIndexedByTerm;
+    private HashMap<Term, List<Chunk>> chunksIndexedByTerm;
+    private HashMap<Term, List<Coref>> corefsIndexedByTerm;
+    private HashMap<Term, List<Feature>> propertiesIndexedByTerm;
+    private HashMap<Term, List<Feature>> categoriesIndexedByTerm;
+    private HashMap<Term, List<Opinion>> opinionsIndexedByTerm;
+    private HashMap<Term, List<Predicate>> predicatesIndexedByTerm;
+    private HashMap<Term, List<Predicate.Role>> rolesIndexedByTerm;
+    private HashMap<Term, List<Terminal>> terminalsIndexedByTerm;
+    private HashMap<Term, List<Tree>> treesIndexedByTerm;
+
+    /** Relations indexed by the annotation they start from, built and dropped like the indexes by term */
+    private HashMap<Relational, List<Relation>> relationsIndexedByFrom;
+
+    /** Word forms with an offset, sorted by it, to find them by ranges of characters. It's built the first time it is queried. Word forms added or given an offset in text order are appended to it; other changes to the offsets drop it. */
+    private ArrayList<WF> textByOffset;
+
+    /** Greatest length of the word forms in textByOffset, to find the ones starting before a range and reaching into it */
+    private int maxWFLength;
+
+    /** Graph of the dependencies, built the first time it is requested and dropped when terms or dependencies are added or removed */
+    private DepGraph depGraph;
+
+    /** Locks of the layers, by the ordinal of the layer. The ones of text and terms are only used to add to them and to keep the index of word forms by offset. */
+    private Object[] layerLocks;
+
+    /** Whether the container belongs to a view of a document, whose annotations stay attached to the container of the document (see KAFDocument.view) */
+    private boolean view;
+
+    /** Whether the container belongs to a read-only view of a document, once its annotations have been added */
+    private boolean readOnly;
+
+    /** Layers which were not parsed when loading the document. They are kept as raw XML, indexed by the name of the layer's element, so that they can be written back unchanged. */
+    private Map<String, byte[]> rawLayers;
+
     /** This creates a new AnnotationContainer object */
     AnnotationContainer() {
 	rawText = new String();
-	text = new ArrayList();
+	text = new ArrayList<WF>();
 	nextOffset = 0;
-	terms = new ArrayList();
+	terms = new ArrayList<Term>();
 	deps = new ArrayList();
 	chunks = new ArrayList();
 	entities = new ArrayList();
@@ -85,9 +141,22 @@ class AnnotationContainer {
 	predicates = new ArrayList();
 	trees = new ArrayList();
 
-	textIndexedBySent = new HashMap<Integer, List<WF>>();
-	termsIndexedBySent = new HashMap<Integer, List<Term>>();
 	termsIndexedByWF = new HashMap<String, Term>();
+	textIndexedById = new IdIndex<WF>(text, WF_IDS);
+	termsIndexedById = new IdIndex<Term>(terms, TERM_IDS);
+	chunksIndexedById = new HashMap<String, Chunk>();
+	entitiesIndexedById = new HashMap<String, Entity>();
+	propertiesIndexedById = new HashMap<String, Feature>();
+	categoriesIndexedById = new HashMap<String, Feature>();
+	corefsIndexedById = new HashMap<String, Coref>();
+	opinionsIndexedById = new HashMap<String, Opinion>();
+	relationsIndexedById = new HashMap<String, Relation>();
+	predicatesIndexedById = new HashMap<String, Predicate>();
+	rawLayers = new ConcurrentHashMap<String, byte[]>();
+	layerLocks = new Object[KAFDocument.Layer.values().length];
+	for (int i = 0; i < layerLocks.length; i++) {
+	    layerLocks[i] = new Object();
+	}
     }
 
     String getRawText() {
@@ -160,125 +229,260 @@ class AnnotationContainer {
 
     /** Adds a word form to the container */
     void add(WF wf) {
-	text.add(wf);
-	//nextOffset += wf.getLength() + 1;
+	synchronized (lock(KAFDocument.Layer.text)) {
+	    checkLayerLoaded(KAFDocument.Layer.text);
+	    text.add(wf);
+	    textIndexedById.add(wf, text.size() - 1);
+	    if (textByOffset != null) {
+		indexWFByOffset(wf);
+	    }
+	    if ((textBySent != null) && !textBySent.append(wf, wf.getSent())) {
+		textBySent = null;
+	    }
+	    //nextOffset += wf.getLength() + 1;
+	}
     }
 
     /** Adds a term to the container */
     void add(Term term) {
-	terms.add(term);
-	for (WF wf : term.getWFs()) {
+	synchronized (lock(KAFDocument.Layer.terms)) {
+	    checkLayerLoaded(KAFDocument.Layer.terms);
+	    terms.add(term);
+	    termsIndexedById.add(term, terms.size() - 1);
+	    depGraph = null;
+	    for (WF wf : term.getWFs()) {
+		indexTermByWF(wf, term);
+	    }
+	    if ((termsBySent != null) && !termsBySent.append(term, getSent(term))) {
+		termsBySent = null;
+	    }
+	}
+    }
+
+    /** Makes a term found from one of its word forms */
+    private void indexTermByWF(WF wf, Term term) {
+	if (wf.getAnnotationContainer() == this) {
+	    wf.term = term;
+	}
+	else {
 	    termsIndexedByWF.put(wf.getId(), term);
 	}
+    }
 
-	/* Index by sentence */
-        if (term.getSent() != -1) {
-	    indexTermBySent(term, term.getSent());
+    /** Adds word forms and the terms formed by each of them, as created by KAFDocument.newTokens. The indexes are filled once for the whole batch, with the layers presized. */
+    void addTokens(List<WF> newWFs, List<Term> newTerms) {
+	synchronized (lock(KAFDocument.Layer.text)) {
+	    synchronized (lock(KAFDocument.Layer.terms)) {
+		checkLayerLoaded(KAFDocument.Layer.text);
+		checkLayerLoaded(KAFDocument.Layer.terms);
+		int count = newWFs.size();
+		text.ensureCapacity(text.size() + count);
+		terms.ensureCapacity(terms.size() + count);
+		for (int i = 0; i < count; i++) {
+		    WF wf = newWFs.get(i);
+		    Term term = newTerms.get(i);
+		    text.add(wf);
+		    textIndexedById.add(wf, text.size() - 1);
+		    if (textByOffset != null) {
+			indexWFByOffset(wf);
+		    }
+		    terms.add(term);
+		    termsIndexedById.add(term, terms.size() - 1);
+		    indexTermByWF(wf, term);
+		    if ((textBySent != null) && !textBySent.append(wf, wf.getSent())) {
+			textBySent = null;
+		    }
+		    if ((termsBySent != null) && !termsBySent.append(term, wf.getSent())) {
+			termsBySent = null;
+		    }
+		}
+		depGraph = null;
+	    }
 	}
     }
 
     /** Adds a dependency to the container */
     void add(Dep dep) {
-	deps.add(dep);
+	synchronized (lock(KAFDocument.Layer.deps)) {
+	    checkLayerLoaded(KAFDocument.Layer.deps);
+	    deps.add(dep);
+	    depGraph = null;
+	}
     }
 
     /** Adds a chunk to the container */
     void add(Chunk chunk) {
-	chunks.add(chunk);
+	synchronized (lock(KAFDocument.Layer.chunks)) {
+	    checkLayerLoaded(KAFDocument.Layer.chunks);
+	    chunks.add(chunk);
+	    chunksIndexedById.put(chunk.getId(), chunk);
+	    chunksIndexedByTerm = null;
+	}
     }
 
     /** Adds a named entity to the container */
     void add(Entity entity) {
-	entities.add(entity);
+	synchronized (lock(KAFDocument.Layer.entities)) {
+	    checkLayerLoaded(KAFDocument.Layer.entities);
+	    entities.add(entity);
+	    entitiesIndexedById.put(entity.getId(), entity);
+	    entitiesIndexedByTerm = null;
+	}
     }
 
     /** Adds a feature to the container. It checks if it is a property or a category. */
     void add(Feature feature) {
+	checkLayerLoaded(KAFDocument.Layer.properties);
 	if (feature.isAProperty()) {
-	    properties.add(feature);
+	    synchronized (lock(KAFDocument.Layer.properties)) {
+		properties.add(feature);
+		propertiesIndexedById.put(feature.getId(), feature);
+		propertiesIndexedByTerm = null;
+	    }
 	}
 	else {
-	    categories.add(feature);
-	}		
+	    synchronized (lock(KAFDocument.Layer.categories)) {
+		categories.add(feature);
+		categoriesIndexedById.put(feature.getId(), feature);
+		categoriesIndexedByTerm = null;
+	    }
+	}
     }
 
     /** Adds a coreference to the container */
     void add(Coref coref) {
-	coreferences.add(coref);
+	synchronized (lock(KAFDocument.Layer.coreferences)) {
+	    checkLayerLoaded(KAFDocument.Layer.coreferences);
+	    coreferences.add(coref);
+	    corefsIndexedById.put(coref.getId(), coref);
+	    corefsIndexedByTerm = null;
+	}
     }
 
     /** Adds an opinion to the container */
     void add(Opinion opinion) {
-	opinions.add(opinion);
+	synchronized (lock(KAFDocument.Layer.opinions)) {
+	    checkLayerLoaded(KAFDocument.Layer.opinions);
+	    opinions.add(opinion);
+	    opinionsIndexedById.put(opinion.getId(), opinion);
+	    opinionsIndexedByTerm = null;
+	    if (!view) {
+		opinion.annotationContainer = this;
+	    }
+	}
+    }
+
+    /** Drops the index of opinions by term after a holder, target or expression is given to one of the opinions */
+    void opinionChanged() {
+	synchronized (lock(KAFDocument.Layer.opinions)) {
+	    opinionsIndexedByTerm = null;
+	}
     }
 
     /** Adds a relation to the container */
     void add(Relation relation) {
-	relations.add(relation);
+	synchronized (lock(KAFDocument.Layer.relations)) {
+	    checkLayerLoaded(KAFDocument.Layer.relations);
+	    relations.add(relation);
+	    relationsIndexedById.put(relation.getId(), relation);
+	    relationsIndexedByFrom = null;
+	}
     }
 
     /** Adds a predicate to the container */
     void add(Predicate predicate) {
-	predicates.add(predicate);
+	synchronized (lock(KAFDocument.Layer.srl)) {
+	    checkLayerLoaded(KAFDocument.Layer.srl);
+	    predicates.add(predicate);
+	    predicatesIndexedById.put(predicate.getId(), predicate);
+	    predicatesIndexedByTerm = null;
+	    rolesIndexedByTerm = null;
+	    if (!view) {
+		predicate.annotationContainer = this;
+	    }
+	}
+    }
+
+    /** Drops the index of roles by term after a role is added to one of the predicates */
+    void roleAdded() {
+	synchronized (lock(KAFDocument.Layer.srl)) {
+	    rolesIndexedByTerm = null;
+	}
     }
 
     /** Adds a tree to the container */
     void add(Tree tree) {
-	trees.add(tree);
+	synchronized (lock(KAFDocument.Layer.constituency)) {
+	    checkLayerLoaded(KAFDocument.Layer.constituency);
+	    trees.add(tree);
+	    terminalsIndexedByTerm = null;
+	    treesIndexedByTerm = null;
+	}
     }
 
-    /** Index a WF by its sentence number */
-    void indexWFBySent(WF wf, Integer sent) {
-	if (sent == -1) {
-	    throw new IllegalStateException("You can't call indexWFBySent not having defined the sentence for this token");
+    /** Drops the indexes by sentence after the sentence of a word form, and so maybe that of its term, has changed */
+    void reindexWFSent(WF wf) {
+	synchronized (lock(KAFDocument.Layer.text)) {
+	    textBySent = null;
 	}
-	List<WF> sentWfs = textIndexedBySent.get(sent);
-	if (sentWfs == null) {
-	    sentWfs = new ArrayList<WF>();
-	    textIndexedBySent.put(sent, sentWfs);
+	synchronized (lock(KAFDocument.Layer.terms)) {
+	    termsBySent = null;
 	}
-	sentWfs.add(wf);
     }
 
-
-    /** Index a Term by its sentence number */
-    void indexTermBySent(Term term, Integer sent) {
-	if (sent == -1) {
-	    throw new IllegalStateException("You can't call indexTermBySent not having defined the sentence for its WFs");
-	}
-	List<Term> sentTerms = termsIndexedBySent.get(sent);
-	if (sentTerms == null) {
-	    sentTerms = new ArrayList<Term>();
-	    termsIndexedBySent.put(sent, sentTerms);
+    /** Returns the word forms of each sentence, in order of sentence. The list is immutable, and it's kept and returned again until a word form is added to it or changes its sentence. */
+    List<List<WF>> getSentences() {
+	synchronized (lock(KAFDocument.Layer.text)) {
+	    return getTextBySent().getSentences();
 	}
-	sentTerms.add(term);
     }
 
-    /** Returns all tokens classified by sentences */
-    List<List<WF>> getSentences() {
-	List<List<WF>> sentences = new ArrayList<List<WF>>();
-	Set<Integer> sentNumsSet = this.textIndexedBySent.keySet();
-        List<Integer> sentNumsList = new ArrayList<Integer>(sentNumsSet);
-	Collections.sort(sentNumsList);
-	for (int i : sentNumsList) {
-	    List<WF> wfs = this.textIndexedBySent.get(i);
-	    sentences.add(wfs);
+    /** Returns the numbers of the sentences from fromSent (included) to toSent (excluded), in order */
+    List<Integer> getSentenceNumbers(int fromSent, int toSent) {
+	synchronized (lock(KAFDocument.Layer.text)) {
+	    return getTextBySent().getSentenceNumbers(fromSent, toSent);
 	}
-	return sentences;
     }
 
-    /** Returns WFs from a sentence */
+    /** Returns the word forms of a sentence as an immutable list, or null if there's no such sentence */
     List<WF> getSentenceWFs(int sent) {
-        return this.textIndexedBySent.get(sent);
+	synchronized (lock(KAFDocument.Layer.text)) {
+	    return getTextBySent().get(sent);
+	}
     }
 
-    /** Returns terms from a sentence */
+    /** Returns the terms of a sentence as an immutable list, or null if there's no such sentence */
     List<Term> getSentenceTerms(int sent) {
-        return this.termsIndexedBySent.get(sent);
+	synchronized (lock(KAFDocument.Layer.terms)) {
+	    if (termsBySent == null) {
+		int[] sents = new int[terms.size()];
+		for (int i = 0; i < sents.length; i++) {
+		    sents[i] = getSent(terms.get(i));
+		}
+		termsBySent = new SentenceIndex<Term>(terms, sents);
+	    }
+	    return termsBySent.get(sent);
+	}
+    }
+
+    private SentenceIndex<WF> getTextBySent() {
+	if (textBySent == null) {
+	    int[] sents = new int[text.size()];
+	    for (int i = 0; i < sents.length; i++) {
+		sents[i] = text.get(i).getSent();
+	    }
+	    textBySent = new SentenceIndex<WF>(text, sents);
+	}
+	return textBySent;
+    }
+
+    /** Returns the sentence of a term, or -1 if it has no word forms */
+    private static int getSent(Term term) {
+	return term.getWFs().isEmpty() ? -1 : term.getSent();
     }
 
     Term getTermByWF(WF wf) {
-	return this.termsIndexedByWF.get(wf.getId());
+	return (wf.getAnnotationContainer() == this) ? wf.term : this.termsIndexedByWF.get(wf.getId());
     }
 
     /** Returns a list of terms containing the word forms given on argument.
@@ -288,11 +492,446 @@ class AnnotationContainer {
     List<Term> getTermsByWFs(List<WF> wfs) {
 	LinkedHashSet<Term> terms = new LinkedHashSet<Term>();
 	for (WF wf : wfs) {
-	    terms.add(this.termsIndexedByWF.get(wf.getId()));
+	    terms.add(getTermByWF(wf));
 	}
 	return new ArrayList<Term>(terms);
     }
 
+    /** Returns the word forms covering any character from begin (included) to end (excluded), in order of offset. Word forms without an offset are left out, and those without a length are taken as one character long. */
+    List<WF> getWFsByOffset(int begin, int end) {
+	if (begin > end) {
+	    throw new IllegalArgumentException("Wrong range of characters [" + begin + ", " + end + ")");
+	}
+	synchronized (lock(KAFDocument.Layer.text)) {
+	    if (textByOffset == null) {
+		indexWFsByOffset();
+	    }
+	    // First word form starting late enough to reach begin
+	    long firstOffset = (long) begin - maxWFLength + 1;
+	    int low = 0;
+	    int high = textByOffset.size();
+	    while (low < high) {
+		int mid = (low + high) >>> 1;
+		if (textByOffset.get(mid).getOffset() < firstOffset) {
+		    low = mid + 1;
+		}
+		else {
+		    high = mid;
+		}
+	    }
+	    List<WF> wfs = new ArrayList<WF>();
+	    for (int i = low; i < textByOffset.size(); i++) {
+		WF wf = textByOffset.get(i);
+		if (wf.getOffset() >= end) {
+		    break;
+		}
+		if ((long) wf.getOffset() + Math.max(wf.getLength(), 1) > begin) {
+		    wfs.add(wf);
+		}
+	    }
+	    return wfs;
+	}
+    }
+
+    /** Returns the terms with a word form covering any character from begin (included) to end (excluded), in order of offset */
+    List<Term> getTermsByOffset(int begin, int end) {
+	LinkedHashSet<Term> terms = new LinkedHashSet<Term>();
+	for (WF wf : getWFsByOffset(begin, end)) {
+	    Term term = getTermByWF(wf);
+	    if (term != null) {
+		terms.add(term);
+	    }
+	}
+	return new ArrayList<Term>(terms);
+    }
+
+    /** Updates the index by offset after the offset of a word form has changed */
+    void reindexWFOffset(WF wf, int oldOffset) {
+	synchronized (lock(KAFDocument.Layer.text)) {
+	    // Word forms get their offsets before being added when created by the document, and are indexed then
+	    if ((textByOffset == null) || (getWFById(wf.getId()) != wf)) {
+		return;
+	    }
+	    if (oldOffset == -1) {
+		indexWFByOffset(wf);
+	    }
+	    else {
+		int last = textByOffset.size() - 1;
+		if (!wf.hasOffset() || (textByOffset.get(last) != wf)
+		    || ((last > 0) && (textByOffset.get(last - 1).getOffset() > wf.getOffset()))) {
+		    textByOffset = null;
+		}
+	    }
+	}
+    }
+
+    /** Updates the index by offset after the length of a word form has changed */
+    void reindexWFLength(WF wf) {
+	synchronized (lock(KAFDocument.Layer.text)) {
+	    if (textByOffset != null) {
+		maxWFLength = Math.max(maxWFLength, wf.getLength());
+	    }
+	}
+    }
+
+    /** Appends a word form to the index by offset, or drops the index if the word form comes before the last one */
+    private void indexWFByOffset(WF wf) {
+	if (!wf.hasOffset()) {
+	    return;
+	}
+	int size = textByOffset.size();
+	if ((size > 0) && (textByOffset.get(size - 1).getOffset() > wf.getOffset())) {
+	    textByOffset = null;
+	    return;
+	}
+	textByOffset.add(wf);
+	maxWFLength = Math.max(maxWFLength, wf.getLength());
+    }
+
+    private void indexWFsByOffset() {
+	textByOffset = new ArrayList<WF>(text.size());
+	maxWFLength = 1;
+	boolean sorted = true;
+	for (WF wf : text) {
+	    if (wf.hasOffset()) {
+		int size = textByOffset.size();
+		sorted &= (size == 0) || (textByOffset.get(size - 1).getOffset() <= wf.getOffset());
+		textByOffset.add(wf);
+		maxWFLength = Math.max(maxWFLength, wf.getLength());
+	    }
+	}
+	if (!sorted) {
+	    // The sort is stable, so word forms at the same offset stay in document order
+	    Collections.sort(textByOffset, new Comparator<WF>() {
+		    public int compare(WF wf1, WF wf2) {
+			return (wf1.getOffset() < wf2.getOffset()) ? -1 : ((wf1.getOffset() == wf2.getOffset()) ? 0 : 1);
+		    }
+		});
+	}
+    }
+
+    /** Returns the word form with the given ID, or null if there isn't any */
+    WF getWFById(String id) {
+	return textIndexedById.get(id);
+    }
+
+    /** Updates the index of a word form whose ID has changed */
+    void reindexWF(WF wf, String oldId) {
+	textIndexedById.reindex(wf, oldId);
+	Term term = termsIndexedByWF.get(oldId);
+	if (term != null && term.getWFs().contains(wf)) {
+	    termsIndexedByWF.remove(oldId);
+	    termsIndexedByWF.put(wf.getId(), term);
+	}
+    }
+
+    /** Returns the term with the given ID, or null if there isn't any */
+    Term getTermById(String id) {
+	return termsIndexedById.get(id);
+    }
+
+    /** Returns the chunk with the given ID, or null if there isn't any */
+    Chunk getChunkById(String id) {
+	synchronized (lock(KAFDocument.Layer.chunks)) {
+	    Chunk chunk = chunksIndexedById.get(id);
+	    return ((chunk != null) && id.equals(chunk.getId())) ? chunk : null;
+	}
+    }
+
+    /** Returns the named entity with the given ID, or null if there isn't any */
+    Entity getEntityById(String id) {
+	synchronized (lock(KAFDocument.Layer.entities)) {
+	    Entity entity = entitiesIndexedById.get(id);
+	    return ((entity != null) && id.equals(entity.getId())) ? entity : null;
+	}
+    }
+
+    /** Returns the property with the given ID, or null if there isn't any */
+    Feature getPropertyById(String id) {
+	synchronized (lock(KAFDocument.Layer.properties)) {
+	    Feature property = propertiesIndexedById.get(id);
+	    return ((property != null) && id.equals(property.getId())) ? property : null;
+	}
+    }
+
+    /** Returns the category with the given ID, or null if there isn't any */
+    Feature getCategoryById(String id) {
+	synchronized (lock(KAFDocument.Layer.categories)) {
+	    Feature category = categoriesIndexedById.get(id);
+	    return ((category != null) && id.equals(category.getId())) ? category : null;
+	}
+    }
+
+    /** Returns the coreference with the given ID, or null if there isn't any */
+    Coref getCorefById(String id) {
+	synchronized (lock(KAFDocument.Layer.coreferences)) {
+	    Coref coref = corefsIndexedById.get(id);
+	    return ((coref != null) && id.equals(coref.getId())) ? coref : null;
+	}
+    }
+
+    /** Returns the opinion with the given ID, or null if there isn't any */
+    Opinion getOpinionById(String id) {
+	synchronized (lock(KAFDocument.Layer.opinions)) {
+	    Opinion opinion = opinionsIndexedById.get(id);
+	    return ((opinion != null) && id.equals(opinion.getId())) ? opinion : null;
+	}
+    }
+
+    /** Returns the relation with the given ID, or null if there isn't any */
+    Relation getRelationById(String id) {
+	synchronized (lock(KAFDocument.Layer.relations)) {
+	    Relation relation = relationsIndexedById.get(id);
+	    return ((relation != null) && id.equals(relation.getId())) ? relation : null;
+	}
+    }
+
+    /** Returns the predicate with the given ID, or null if there isn't any */
+    Predicate getPredicateById(String id) {
+	synchronized (lock(KAFDocument.Layer.srl)) {
+	    Predicate predicate = predicatesIndexedById.get(id);
+	    return ((predicate != null) && id.equals(predicate.getId())) ? predicate : null;
+	}
+    }
+
+    /** Returns the graph of the dependencies */
+    DepGraph getDepGraph() {
+	synchronized (lock(KAFDocument.Layer.deps)) {
+	    if (depGraph == null) {
+		depGraph = new DepGraph(terms, deps);
+	    }
+	    return depGraph;
+	}
+    }
+
+    /** Returns the named entities whose references contain the given term */
+    List<Entity> getEntitiesByTerm(Term term) {
+	synchronized (lock(KAFDocument.Layer.entities)) {
+	    if (entitiesIndexedByTerm == null) {
+		entitiesIndexedByTerm = new HashMap<Term, List<Entity>>();
+		for (Entity entity : entities) {
+		    for (Span<Term> span : entity.getSpans()) {
+			indexByTerm(entitiesIndexedByTerm, span, entity);
+		    }
+		}
+	    }
+	    return getIndexedByTerm(entitiesIndexedByTerm, term);
+	}
+    }
+
+    /** Returns the chunks containing the given term */
+    List<Chunk> getChunksByTerm(Term term) {
+	synchronized (lock(KAFDocument.Layer.chunks)) {
+	    if (chunksIndexedByTerm == null) {
+		chunksIndexedByTerm = new HashMap<Term, List<Chunk>>();
+		for (Chunk chunk : chunks) {
+		    indexByTerm(chunksIndexedByTerm, chunk.getSpan(), chunk);
+		}
+	    }
+	    return getIndexedByTerm(chunksIndexedByTerm, term);
+	}
+    }
+
+    /** Returns the coreferences with a mention containing the given term */
+    List<Coref> getCorefsByTerm(Term term) {
+	synchronized (lock(KAFDocument.Layer.coreferences)) {
+	    if (corefsIndexedByTerm == null) {
+		corefsIndexedByTerm = new HashMap<Term, List<Coref>>();
+		for (Coref coref : coreferences) {
+		    for (Span<Term> span : coref.getSpans()) {
+			indexByTerm(corefsIndexedByTerm, span, coref);
+		    }
+		}
+	    }
+	    return getIndexedByTerm(corefsIndexedByTerm, term);
+	}
+    }
+
+    /** Returns the properties whose references contain the given term */
+    List<Feature> getPropertiesByTerm(Term term) {
+	synchronized (lock(KAFDocument.Layer.properties)) {
+	    if (propertiesIndexedByTerm == null) {
+		propertiesIndexedByTerm = indexFeaturesByTerm(properties);
+	    }
+	    return getIndexedByTerm(propertiesIndexedByTerm, term);
+	}
+    }
+
+    /** Returns the categories whose references contain the given term */
+    List<Feature> getCategoriesByTerm(Term term) {
+	synchronized (lock(KAFDocument.Layer.categories)) {
+	    if (categoriesIndexedByTerm == null) {
+		categoriesIndexedByTerm = indexFeaturesByTerm(categories);
+	    }
+	    return getIndexedByTerm(categoriesIndexedByTerm, term);
+	}
+    }
+
+    /** Returns the opinions whose holder, target or expression contains the given term */
+    List<Opinion> getOpinionsByTerm(Term term) {
+	synchronized (lock(KAFDocument.Layer.opinions)) {
+	    if (opinionsIndexedByTerm == null) {
+		opinionsIndexedByTerm = new HashMap<Term, List<Opinion>>();
+		for (Opinion opinion : opinions) {
+		    if (opinion.getOpinionHolder() != null) {
+			indexByTerm(opinionsIndexedByTerm, opinion.getOpinionHolder().getSpan(), opinion);
+		    }
+		    if (opinion.getOpinionTarget() != null) {
+			indexByTerm(opinionsIndexedByTerm, opinion.getOpinionTarget().getSpan(), opinion);
+		    }
+		    if (opinion.getOpinionExpression() != null) {
+			indexByTerm(opinionsIndexedByTerm, opinion.getOpinionExpression().getSpan(), opinion);
+		    }
+		}
+	    }
+	    return getIndexedByTerm(opinionsIndexedByTerm, term);
+	}
+    }
+
+    /** Returns the predicates containing the given term */
+    List<Predicate> getPredicatesByTerm(Term term) {
+	synchronized (lock(KAFDocument.Layer.srl)) {
+	    if (predicatesIndexedByTerm == null) {
+		predicatesIndexedByTerm = new HashMap<Term, List<Predicate>>();
+		for (Predicate predicate : predicates) {
+		    indexByTerm(predicatesIndexedByTerm, predicate.getSpan(), predicate);
+		}
+	    }
+	    return getIndexedByTerm(predicatesIndexedByTerm, term);
+	}
+    }
+
+    /** Returns the roles of any predicate containing the given term */
+    List<Predicate.Role> getRolesByTerm(Term term) {
+	synchronized (lock(KAFDocument.Layer.srl)) {
+	    if (rolesIndexedByTerm == null) {
+		rolesIndexedByTerm = new HashMap<Term, List<Predicate.Role>>();
+		for (Predicate predicate : predicates) {
+		    for (Predicate.Role role : predicate.getRoles()) {
+			indexByTerm(rolesIndexedByTerm, role.getSpan(), role);
+		    }
+		}
+	    }
+	    return getIndexedByTerm(rolesIndexedByTerm, term);
+	}
+    }
+
+    /** Returns the terminal nodes of the constituency trees containing the given term */
+    List<Terminal> getTerminalsByTerm(Term term) {
+	synchronized (lock(KAFDocument.Layer.constituency)) {
+	    if (terminalsIndexedByTerm == null) {
+		terminalsIndexedByTerm = new HashMap<Term, List<Terminal>>();
+		List<TreeNode> nodes = new ArrayList<TreeNode>();
+		for (Tree tree : trees) {
+		    if (tree.getRoot() != null) {
+			nodes.add(tree.getRoot());
+		    }
+		}
+		while (!nodes.isEmpty()) {
+		    TreeNode node = nodes.remove(nodes.size() - 1);
+		    if (node.isTerminal()) {
+			Terminal terminal = (Terminal) node;
+			indexByTerm(terminalsIndexedByTerm, terminal.getSpan(), terminal);
+		    }
+		    else {
+			nodes.addAll(node.getChildren());
+		    }
+		}
+	    }
+	    return getIndexedByTerm(terminalsIndexedByTerm, term);
+	}
+    }
+
+    /** Returns the constituency trees with the given term in any of their terminals */
+    List<Tree> getTreesByTerm(Term term) {
+	synchronized (lock(KAFDocument.Layer.constituency)) {
+	    if (treesIndexedByTerm == null) {
+		treesIndexedByTerm = new HashMap<Term, List<Tree>>();
+		List<TreeNode> nodes = new ArrayList<TreeNode>();
+		for (Tree tree : trees) {
+		    if (tree.getRoot() != null) {
+			nodes.add(tree.getRoot());
+		    }
+		    while (!nodes.isEmpty()) {
+			TreeNode node = nodes.remove(nodes.size() - 1);
+			if (node.isTerminal()) {
+			    for (Term target : ((Terminal) node).getSpan().getTargets()) {
+				List<Tree> termTrees = treesIndexedByTerm.get(target);
+				if (termTrees == null) {
+				    termTrees = new ArrayList<Tree>(1);
+				    treesIndexedByTerm.put(target, termTrees);
+				}
+				// A tree is listed once for each term, however many terminals point to it
+				if (termTrees.isEmpty() || (termTrees.get(termTrees.size() - 1) != tree)) {
+				    termTrees.add(tree);
+				}
+			    }
+			}
+			else {
+			    nodes.addAll(node.getChildren());
+			}
+		    }
+		}
+	    }
+	    return getIndexedByTerm(treesIndexedByTerm, term);
+	}
+    }
+
+    /** Returns the relations starting from the given entity, property or category */
+    List<Relation> getRelationsFrom(Relational from) {
+	synchronized (lock(KAFDocument.Layer.relations)) {
+	    if (relationsIndexedByFrom == null) {
+		relationsIndexedByFrom = new HashMap<Relational, List<Relation>>();
+		for (Relation relation : relations) {
+		    List<Relation> fromRelations = relationsIndexedByFrom.get(relation.getFrom());
+		    if (fromRelations == null) {
+			fromRelations = new ArrayList<Relation>(1);
+			relationsIndexedByFrom.put(relation.getFrom(), fromRelations);
+		    }
+		    fromRelations.add(relation);
+		}
+	    }
+	    List<Relation> fromRelations = relationsIndexedByFrom.get(from);
+	    return (fromRelations == null) ? Collections.<Relation>emptyList() : Collections.unmodifiableList(fromRelations);
+	}
+    }
+
+    private static HashMap<Term, List<Feature>> indexFeaturesByTerm(List<Feature> features) {
+	HashMap<Term, List<Feature>> index = new HashMap<Term, List<Feature>>();
+	for (Feature feature : features) {
+	    for (Span<Term> span : feature.getSpans()) {
+		indexByTerm(index, span, feature);
+	    }
+	}
+	return index;
+    }
+
+    /** Adds an annotation to the lists of the terms in the span. Annotations are added in order, so an annotation is already in the list of a term if it is the last one. */
+    private static <T> void indexByTerm(HashMap<Term, List<T>> index, Span<Term> span, T annotation) {
+	if (span == null) {
+	    return;
+	}
+	for (Term term : span.getTargets()) {
+	    List<T> annotations = index.get(term);
+	    if (annotations == null) {
+		annotations = new ArrayList<T>(1);
+		index.put(term, annotations);
+	    }
+	    else if (annotations.get(annotations.size() - 1) == annotation) {
+		continue;
+	    }
+	    annotations.add(annotation);
+	}
+    }
+
+    private static <T> List<T> getIndexedByTerm(HashMap<Term, List<T>> index, Term term) {
+	List<T> annotations = index.get(term);
+	if (annotations == null) {
+	    return Collections.<T>emptyList();
+	}
+	return Collections.unmodifiableList(annotations);
+    }
+
     /** Returns next WF's offset. */
     int getNextOffset() {
 	return nextOffset;
@@ -306,48 +945,596 @@ class AnnotationContainer {
     List<Term> getTermsByWFIds(List<String> wfIds) {
 	LinkedHashSet<Term> terms = new LinkedHashSet<Term>();
 	for (String wfId : wfIds) {
-	    terms.add(this.termsIndexedByWF.get(wfId));
+	    WF wf = getWFById(wfId);
+	    terms.add((wf != null) ? getTermByWF(wf) : this.termsIndexedByWF.get(wfId));
 	}
 	return new ArrayList<Term>(terms);
     }
 
+    /** Keeps a layer which was not parsed when loading the document as raw XML, encoded in UTF-8. */
+    void addRawLayer(String layerElemName, byte[] xml) {
+	rawLayers.put(layerElemName, xml);
+    }
+
+    /** Returns the raw XML of a layer which was not parsed when loading the document, encoded in UTF-8, or null if the layer was parsed. */
+    byte[] getRawLayer(String layerElemName) {
+	return rawLayers.get(layerElemName);
+    }
+
+    /** Returns the layers kept as raw XML, by element name. */
+    Map<String, byte[]> getRawLayers() {
+	return rawLayers;
+    }
+
+    /** Renumbers the annotations of a layer from 1 in the order of their IDs, sorting the layer, and resets the counters of their IDs */
+    void compactIds(KAFDocument.Layer layer, IdManager idManager) {
+	checkWritable();
+	if (!rawLayers.isEmpty()) {
+	    switch (layer) {
+	    case text:
+	    case terms:
+	    case entities:
+	    case properties:
+	    case categories:
+		throw new IllegalStateException("The IDs of the " + layer + " layer can't be renumbered, as layers kept as raw XML may refer to them");
+	    default:
+		break;
+	    }
+	}
+	synchronized (lock(layer)) {
+	    switch (layer) {
+	    case text:
+		// Cleared first, so that WF.setId finds nothing to reindex
+		termsIndexedByWF.clear();
+		idManager.resetCounter(KAFDocument.IdType.wf, renumber(text, KAFDocument.IdType.wf, WF_IDS));
+		// Sorting by ID may have changed the order of the word forms
+		textBySent = null;
+		textIndexedById.rebuild();
+		for (Term term : terms) {
+		    for (WF wf : term.getWFs()) {
+			indexTermByWF(wf, term);
+		    }
+		}
+		break;
+	    case terms:
+		idManager.resetCounter(KAFDocument.IdType.term, renumber(terms, KAFDocument.IdType.term, TERM_IDS));
+		idManager.clearComponentCounters();
+		termsIndexedById.rebuild();
+		termsBySent = null;
+		for (Term term : terms) {
+		    idManager.renumberComponents(term);
+		}
+		depGraph = null;
+		break;
+	    case deps:
+		throw new IllegalArgumentException("The deps layer has no IDs");
+	    case chunks:
+		idManager.resetCounter(KAFDocument.IdType.chunk, renumber(chunks, KAFDocument.IdType.chunk, new IdAccessor<Chunk>() {
+			String getId(Chunk chunk) { return chunk.getId(); }
+			void setId(Chunk chunk, String id) { chunk.setId(id); }
+		    }));
+		chunksIndexedById.clear();
+		for (Chunk chunk : chunks) {
+		    chunksIndexedById.put(chunk.getId(), chunk);
+		}
+		chunksIndexedByTerm = null;
+		break;
+	    case entities:
+		idManager.resetCounter(KAFDocument.IdType.entity, renumber(entities, KAFDocument.IdType.entity, new IdAccessor<Entity>() {
+			String getId(Entity entity) { return entity.getId(); }
+			void setId(Entity entity, String id) { entity.setId(id); }
+		    }));
+		entitiesIndexedById.clear();
+		for (Entity entity : entities) {
+		    entitiesIndexedById.put(entity.getId(), entity);
+		}
+		entitiesIndexedByTerm = null;
+		break;
+	    case properties:
+		idManager.resetCounter(KAFDocument.IdType.property, renumber(properties, KAFDocument.IdType.property, FEATURE_IDS));
+		propertiesIndexedById.clear();
+		for (Feature property : properties) {
+		    propertiesIndexedById.put(property.getId(), property);
+		}
+		propertiesIndexedByTerm = null;
+		break;
+	    case categories:
+		idManager.resetCounter(KAFDocument.IdType.category, renumber(categories, KAFDocument.IdType.category, FEATURE_IDS));
+		categoriesIndexedById.clear();
+		for (Feature category : categories) {
+		    categoriesIndexedById.put(category.getId(), category);
+		}
+		categoriesIndexedByTerm = null;
+		break;
+	    case coreferences:
+		idManager.resetCounter(KAFDocument.IdType.coref, renumber(coreferences, KAFDocument.IdType.coref, new IdAccessor<Coref>() {
+			String getId(Coref coref) { return coref.getId(); }
+			void setId(Coref coref, String id) { coref.setId(id); }
+		    }));
+		corefsIndexedById.clear();
+		for (Coref coref : coreferences) {
+		    corefsIndexedById.put(coref.getId(), coref);
+		}
+		corefsIndexedByTerm = null;
+		break;
+	    case opinions:
+		idManager.resetCounter(KAFDocument.IdType.opinion, renumber(opinions, KAFDocument.IdType.opinion, new IdAccessor<Opinion>() {
+			String getId(Opinion opinion) { return opinion.getId(); }
+			void setId(Opinion opinion, String id) { opinion.setId(id); }
+		    }));
+		opinionsIndexedById.clear();
+		for (Opinion opinion : opinions) {
+		    opinionsIndexedById.put(opinion.getId(), opinion);
+		}
+		opinionsIndexedByTerm = null;
+		break;
+	    case relations:
+		idManager.resetCounter(KAFDocument.IdType.relation, renumber(relations, KAFDocument.IdType.relation, new IdAccessor<Relation>() {
+			String getId(Relation relation) { return relation.getId(); }
+			void setId(Relation relation, String id) { relation.setId(id); }
+		    }));
+		relationsIndexedById.clear();
+		for (Relation relation : relations) {
+		    relationsIndexedById.put(relation.getId(), relation);
+		}
+		relationsIndexedByFrom = null;
+		break;
+	    case srl:
+		idManager.resetCounter(KAFDocument.IdType.predicate, renumber(predicates, KAFDocument.IdType.predicate, new IdAccessor<Predicate>() {
+			String getId(Predicate predicate) { return predicate.getId(); }
+			void setId(Predicate predicate, String id) { predicate.setId(id); }
+		    }));
+		predicatesIndexedById.clear();
+		int numRoles = 0;
+		String rolePrefix = IdManager.getPrefix(KAFDocument.IdType.role);
+		for (Predicate predicate : predicates) {
+		    predicatesIndexedById.put(predicate.getId(), predicate);
+		    for (Predicate.Role role : predicate.getRoles()) {
+			role.setId(rolePrefix + Integer.toString(++numRoles));
+		    }
+		}
+		idManager.resetCounter(KAFDocument.IdType.role, numRoles);
+		predicatesIndexedByTerm = null;
+		rolesIndexedByTerm = null;
+		break;
+	    case constituency:
+		renumberTrees(idManager);
+		break;
+	    default:
+		throw new IllegalArgumentException("Wrong layer");
+	    }
+	}
+    }
+
+    /** Renumbers the nodes and edges of the constituency trees in depth-first order */
+    private void renumberTrees(IdManager idManager) {
+	String terminalPrefix = IdManager.getPrefix(KAFDocument.IdType.terminal);
+	String nonterminalPrefix = IdManager.getPrefix(KAFDocument.IdType.nonterminal);
+	String edgePrefix = IdManager.getPrefix(KAFDocument.IdType.edge);
+	int numTerminals = 0;
+	int numNonterminals = 0;
+	int numEdges = 0;
+	List<TreeNode> nodes = new ArrayList<TreeNode>();
+	for (Tree tree : trees) {
+	    if (tree.getRoot() != null) {
+		nodes.add(tree.getRoot());
+	    }
+	    while (!nodes.isEmpty()) {
+		TreeNode node = nodes.remove(nodes.size() - 1);
+		if (node.isTerminal()) {
+		    node.setId(terminalPrefix + Integer.toString(++numTerminals));
+		}
+		else {
+		    node.setId(nonterminalPrefix + Integer.toString(++numNonterminals));
+		    List<TreeNode> children = node.getChildren();
+		    for (int i = children.size() - 1; i >= 0; i--) {
+			nodes.add(children.get(i));
+		    }
+		}
+		if (node.hasEdgeId()) {
+		    node.setEdgeId(edgePrefix + Integer.toString(++numEdges));
+		}
+	    }
+	}
+	idManager.resetCounter(KAFDocument.IdType.terminal, numTerminals);
+	idManager.resetCounter(KAFDocument.IdType.nonterminal, numNonterminals);
+	idManager.resetCounter(KAFDocument.IdType.edge, numEdges);
+    }
+
+    /** Index of the word forms or terms of each sentence. The annotations are copied to an array in order of sentence, so that each sentence is a range of it and can be returned without copying, as an immutable view of the range. Sentences are looked up directly by their number when they are numbered consecutively, which is the usual case, and by binary search otherwise. Annotations with no sentence are left out.
+     * <p>
+     * Annotations added to the last sentence or to a new one after it are appended to the index. The positions already filled never change, so lists of sentences returned before stay valid.
+     */
+    private static class SentenceIndex<T> {
+	private Object[] items;
+	private int numItems;
+
+	/** Numbers of the sentences, in order */
+	private int[] sents;
+
+	/** Position in items of the first annotation of each sentence, followed by the end of the last sentence */
+	private int[] starts;
+
+	private int numSents;
+
+	/** Immutable list of the sentences, kept until an annotation is appended */
+	private List<List<T>> sentences;
+
+	/** Creates the index of a layer, given the sentence of each annotation */
+	SentenceIndex(List<T> annotations, final int[] annotationSents) {
+	    items = new Object[Math.max(annotations.size(), 16)];
+	    sents = new int[16];
+	    starts = new int[17];
+	    boolean inOrder = true;
+	    int previous = Integer.MIN_VALUE;
+	    for (int sent : annotationSents) {
+		if (sent != -1) {
+		    inOrder &= (sent >= previous);
+		    previous = sent;
+		}
+	    }
+	    if (inOrder) {
+		for (int i = 0; i < annotationSents.length; i++) {
+		    append(annotations.get(i), annotationSents[i]);
+		}
+	    }
+	    else {
+		// The sort is stable, so the annotations of each sentence stay in document order
+		Integer[] order = new Integer[annotationSents.length];
+		for (int i = 0; i < order.length; i++) {
+		    order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+			    return (annotationSents[i1] < annotationSents[i2]) ? -1 : ((annotationSents[i1] == annotationSents[i2]) ? 0 : 1);
+			}
+		    });
+		for (int i : order) {
+		    append(annotations.get(i), annotationSents[i]);
+		}
+	    }
+	}
+
+	/** Adds an annotation at the end of the index. Returns false if it can't be appended because it belongs to a sentence before the last one. */
+	boolean append(T annotation, int sent) {
+	    if (sent == -1) {
+		return true;
+	    }
+	    if ((numSents > 0) && (sent < sents[numSents - 1])) {
+		return false;
+	    }
+	    if (numItems == items.length) {
+		items = Arrays.copyOf(items, numItems * 2);
+	    }
+	    items[numItems++] = annotation;
+	    if ((numSents == 0) || (sent != sents[numSents - 1])) {
+		if (numSents == sents.length) {
+		    sents = Arrays.copyOf(sents, numSents * 2);
+		    starts = Arrays.copyOf(starts, numSents * 2 + 1);
+		}
+		sents[numSents] = sent;
+		starts[numSents] = numItems - 1;
+		numSents++;
+	    }
+	    starts[numSents] = numItems;
+	    sentences = null;
+	    return true;
+	}
+
+	/** Returns the annotations of a sentence, or null if there's no such sentence */
+	List<T> get(int sent) {
+	    int pos = find(sent);
+	    return (pos < 0) ? null : new Range<T>(items, starts[pos], starts[pos + 1]);
+	}
+
+	List<List<T>> getSentences() {
+	    if (sentences == null) {
+		List<List<T>> list = new ArrayList<List<T>>(numSents);
+		for (int i = 0; i < numSents; i++) {
+		    list.add(new Range<T>(items, starts[i], starts[i + 1]));
+		}
+		sentences = Collections.unmodifiableList(list);
+	    }
+	    return sentences;
+	}
+
+	/** Returns the numbers of the sentences from fromSent (included) to toSent (excluded), in order */
+	List<Integer> getSentenceNumbers(int fromSent, int toSent) {
+	    int pos = Arrays.binarySearch(sents, 0, numSents, fromSent);
+	    if (pos < 0) {
+		pos = -pos - 1;
+	    }
+	    List<Integer> sentNums = new ArrayList<Integer>();
+	    for (; (pos < numSents) && (sents[pos] < toSent); pos++) {
+		sentNums.add(sents[pos]);
+	    }
+	    return sentNums;
+	}
+
+	/** Returns the position of a sentence in sents, or -1 if there's no such sentence */
+	private int find(int sent) {
+	    if (numSents == 0) {
+		return -1;
+	    }
+	    if (sents[numSents - 1] - sents[0] == numSents - 1) {
+		long pos = (long) sent - sents[0];
+		return ((pos >= 0) && (pos < numSents)) ? (int) pos : -1;
+	    }
+	    int pos = Arrays.binarySearch(sents, 0, numSents, sent);
+	    return (pos >= 0) ? pos : -1;
+	}
+    }
+
+    /** Immutable view of a range of an array of annotations */
+    private static class Range<T> extends AbstractList<T> implements RandomAccess {
+	private Object[] items;
+	private int start;
+	private int end;
+
+	Range(Object[] items, int start, int end) {
+	    this.items = items;
+	    this.start = start;
+	    this.end = end;
+	}
+
+	// items only holds annotations of type T, appended by SentenceIndex.append
+	@SuppressWarnings("unchecked")
+	public T get(int index) {
+	    if ((index < 0) || (index >= end - start)) {
+		throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (end - start));
+	    }
+	    return (T) items[start + index];
+	}
+
+	public int size() {
+	    return end - start;
+	}
+    }
+
+    /** Index of the text or terms layer by ID. An annotation whose ID ends with its position in the layer, counting from 1, as IdManager numbers them, is found at that position and takes no memory in the index; other IDs are kept in a hash map. Annotations only change their positions when the layer is sorted, and the index is rebuilt then. */
+    private static class IdIndex<T> {
+	private List<T> layer;
+	private IdAccessor<T> ids;
+	private HashMap<String, T> others;
+
+	IdIndex(List<T> layer, IdAccessor<T> ids) {
+	    this.layer = layer;
+	    this.ids = ids;
+	    this.others = new HashMap<String, T>();
+	}
+
+	/** Indexes the annotation at the given position of the layer */
+	void add(T annotation, int position) {
+	    String id = ids.getId(annotation);
+	    if (number(id) != position + 1) {
+		others.put(id, annotation);
+	    }
+	}
+
+	/** Returns the annotation with the given ID, or null if there isn't any */
+	T get(String id) {
+	    long number = number(id);
+	    if ((number >= 1) && (number <= layer.size())) {
+		T annotation = layer.get((int) number - 1);
+		if (id.equals(ids.getId(annotation))) {
+		    return annotation;
+		}
+	    }
+	    T annotation = others.get(id);
+	    return ((annotation != null) && id.equals(ids.getId(annotation))) ? annotation : null;
+	}
+
+	/** Updates the index after the ID of an annotation has changed, if the annotation is in the layer */
+	void reindex(T annotation, String oldId) {
+	    if (others.get(oldId) == annotation) {
+		others.remove(oldId);
+	    }
+	    else if (!isAt(annotation, oldId)) {
+		return;
+	    }
+	    String id = ids.getId(annotation);
+	    if (!isAt(annotation, id)) {
+		others.put(id, annotation);
+	    }
+	}
+
+	/** Indexes the whole layer again */
+	void rebuild() {
+	    others.clear();
+	    for (int i = 0; i < layer.size(); i++) {
+		add(layer.get(i), i);
+	    }
+	}
+
+	void clear() {
+	    others.clear();
+	}
+
+	/** Whether the annotation is at the position given by the number of the ID */
+	private boolean isAt(T annotation, String id) {
+	    long number = number(id);
+	    return (number >= 1) && (number <= layer.size()) && (layer.get((int) number - 1) == annotation);
+	}
+
+	/** Returns the number the ID ends with, or -1 if it doesn't end with a number */
+	private static long number(String id) {
+	    int start = id.length();
+	    while ((start > 0) && (id.charAt(start - 1) >= '0') && (id.charAt(start - 1) <= '9')) {
+		start--;
+	    }
+	    if ((start == id.length()) || (id.length() - start > 18)) {
+		return -1;
+	    }
+	    long number = 0;
+	    for (int i = start; i < id.length(); i++) {
+		number = number * 10 + (id.charAt(i) - '0');
+	    }
+	    return number;
+	}
+    }
+
+    /** Gets and sets the IDs of a type of annotation, to renumber them */
+    private abstract static class IdAccessor<T> {
+	abstract String getId(T annotation);
+	abstract void setId(T annotation, String id);
+    }
+
+    private static final IdAccessor<WF> WF_IDS = new IdAccessor<WF>() {
+	String getId(WF wf) { return wf.getId(); }
+	void setId(WF wf, String id) { wf.setId(id); }
+    };
+
+    private static final IdAccessor<Term> TERM_IDS = new IdAccessor<Term>() {
+	String getId(Term term) { return term.getId(); }
+	void setId(Term term, String id) { term.setId(id); }
+    };
+
+    private static final IdAccessor<Feature> FEATURE_IDS = new IdAccessor<Feature>() {
+	String getId(Feature feature) { return feature.getId(); }
+	void setId(Feature feature, String id) { feature.setId(id); }
+    };
+
+    /** Sorts the annotations by the numbers of their IDs, keeping the order of equal numbers, and gives them consecutive IDs from 1. Returns the number of annotations. */
+    private static <T> int renumber(List<T> annotations, KAFDocument.IdType type, IdAccessor<T> ids) {
+	int size = annotations.size();
+	// The number of each ID in the high half and the position in the low half, so that sorting the keys is stable
+	long[] keys = new long[size];
+	for (int i = 0; i < size; i++) {
+	    keys[i] = ((long) IdManager.extractCounterFromId(ids.getId(annotations.get(i))) << 32) | i;
+	}
+	Arrays.sort(keys);
+	List<T> sorted = new ArrayList<T>(size);
+	for (long key : keys) {
+	    sorted.add(annotations.get((int) key));
+	}
+	String prefix = IdManager.getPrefix(type);
+	for (int i = 0; i < size; i++) {
+	    T annotation = sorted.get(i);
+	    ids.setId(annotation, prefix + Integer.toString(i + 1));
+	    annotations.set(i, annotation);
+	}
+	return size;
+    }
+
+    private Object lock(KAFDocument.Layer layer) {
+	return layerLocks[layer.ordinal()];
+    }
+
+    /** Makes the container the one of a view, before the annotations of the view are added to it, so that they keep belonging to the document they are taken from */
+    void setView() {
+	view = true;
+    }
+
+    /** Makes the container read-only, once the annotations of a view have been added to it */
+    void setReadOnly() {
+	readOnly = true;
+    }
+
+    private void checkWritable() {
+	if (readOnly) {
+	    throw new IllegalStateException("The document is a read-only view. Its annotations can't be changed.");
+	}
+    }
+
+    /** Throws an exception if the given layer was kept as raw XML when loading the document, as annotations can't be added to it. */
+    private void checkLayerLoaded(KAFDocument.Layer layer) {
+	checkWritable();
+	if (!rawLayers.isEmpty() && rawLayers.containsKey(getLayerElemName(layer))) {
+	    throw new IllegalStateException("The " + layer + " layer was not loaded from the input document. Annotations can't be added to it.");
+	}
+    }
+
+    /** Returns the name of the XML element containing the given layer. Properties and categories share the same element. */
+    static String getLayerElemName(KAFDocument.Layer layer) {
+	switch (layer) {
+	case properties:
+	case categories:
+	    return "features";
+	default:
+	    return layer.toString();
+	}
+    }
+
+    /** Removes all annotations of the given layer. If the layer was not parsed when loading the document, its raw XML is removed. As properties and categories share the same element, removing one of them removes both in that case. */
     void removeLayer(KAFDocument.Layer layer) {
+	checkWritable();
+	synchronized (lock(layer)) {
+	    removeLayerUnlocked(layer);
+	}
+    }
+
+    private void removeLayerUnlocked(KAFDocument.Layer layer) {
+	rawLayers.remove(getLayerElemName(layer));
 	switch (layer) {
 	case text:
 	    this.text.clear();
+	    this.textIndexedById.clear();
+	    this.textByOffset = null;
+	    this.textBySent = null;
 	    break;
 	case terms:
+	    for (Term term : this.terms) {
+		for (WF wf : term.getWFs()) {
+		    if ((wf.getAnnotationContainer() == this) && (wf.term == term)) {
+			wf.term = null;
+		    }
+		}
+	    }
 	    this.terms.clear();
+	    this.termsIndexedById.clear();
+	    this.termsIndexedByWF.clear();
+	    this.termsBySent = null;
+	    this.depGraph = null;
 	    break;
 	case deps:
 	    this.deps.clear();
+	    this.depGraph = null;
 	    break;
 	case chunks:
 	    this.chunks.clear();
+	    this.chunksIndexedById.clear();
+	    this.chunksIndexedByTerm = null;
 	    break;
 	case entities:
 	    this.entities.clear();
+	    this.entitiesIndexedById.clear();
+	    this.entitiesIndexedByTerm = null;
 	    break;
 	case properties:
 	    this.properties.clear();
+	    this.propertiesIndexedById.clear();
+	    this.propertiesIndexedByTerm = null;
 	    break;
 	case categories:
 	    this.categories.clear();
+	    this.categoriesIndexedById.clear();
+	    this.categoriesIndexedByTerm = null;
 	    break;
 	case coreferences:
 	    this.coreferences.clear();
+	    this.corefsIndexedById.clear();
+	    this.corefsIndexedByTerm = null;
 	    break;
 	case opinions:
 	    this.opinions.clear();
+	    this.opinionsIndexedById.clear();
+	    this.opinionsIndexedByTerm = null;
 	    break;
 	case relations:
 	    this.relations.clear();
+	    this.relationsIndexedById.clear();
+	    this.relationsIndexedByFrom = null;
 	    break;
 	case srl:
 	    this.predicates.clear();
+	    this.predicatesIndexedById.clear();
+	    this.predicatesIndexedByTerm = null;
+	    this.rolesIndexedByTerm = null;
 	    break;
 	case constituency:
 	    this.trees.clear();
+	    this.terminalsIndexedByTerm = null;
+	    this.treesIndexedByTerm = null;
 	    break;
 	default:
 	    throw new IllegalArgumentException("Wrong layer");
@@ -0,0 +1,412 @@
+package ixa.kaflib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/** Runs an annotator over every document of a directory or a corpus using several threads. Loading, annotating and saving the documents are done by separate groups of threads connected by bounded queues, so a slow stage holds back the others instead of filling the memory: there are never more documents loaded than the limit set by setMaxInFlight.
+ * <p>
+ * Documents that fail to load, to be annotated or to be saved with an exception are skipped and reported by getFailures. An Error, such as an AssertionError or an OutOfMemoryError, stops the whole run instead: the threads are interrupted and run throws an IllegalStateException caused by it. The counters of each stage can be read while the processor runs to follow its progress.
+ */
+public class BatchProcessor {
+
+    /** Processing applied to each document */
+    public interface Annotator {
+	/** Annotates a document. It's called from several threads at the same time, each one with a different document. Returns the document to be saved, usually the same one, or null if nothing has to be saved for it. */
+	KAFDocument process(String name, KAFDocument kaf) throws Exception;
+    }
+
+    /** Counters of a stage of the pipeline */
+    public static class Stage {
+	private AtomicLong documents = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+	private AtomicLong nanos = new AtomicLong();
+
+	/** Returns the number of documents the stage has finished */
+	public long getDocuments() {
+	    return documents.get();
+	}
+
+	/** Returns the number of documents the stage has failed on */
+	public long getFailures() {
+	    return failures.get();
+	}
+
+	/** Returns the time spent by the threads of the stage working on documents, added up, in milliseconds */
+	public long getBusyMillis() {
+	    return nanos.get() / 1000000;
+	}
+
+	/** Returns the number of documents finished per second of work of a single thread of the stage. Comparing it between stages shows which one is the bottleneck. */
+	public double getDocumentsPerSecond() {
+	    long time = nanos.get();
+	    return (time == 0) ? 0.0 : (documents.get() + failures.get()) * 1e9 / time;
+	}
+
+	private void add(long startNanos, boolean failed) {
+	    nanos.addAndGet(System.nanoTime() - startNanos);
+	    (failed ? failures : documents).incrementAndGet();
+	}
+
+	private void reset() {
+	    documents.set(0);
+	    failures.set(0);
+	    nanos.set(0);
+	}
+    }
+
+    /** Source of the documents of a run */
+    private interface Input {
+	int size();
+	String getName(int index);
+	KAFDocument load(int index) throws Exception;
+    }
+
+    /** Destination of the documents of a run */
+    private interface Output {
+	void save(String name, KAFDocument kaf) throws IOException;
+    }
+
+    /** A document going through the pipeline. Failed documents go on with a null document, so the ones after them can be written in order. */
+    private static class Item {
+	int index;
+	String name;
+	KAFDocument kaf;
+
+	Item(int index, String name, KAFDocument kaf) {
+	    this.index = index;
+	    this.name = name;
+	    this.kaf = kaf;
+	}
+    }
+
+    /** Marks the end of the documents in a queue */
+    private static final Item END = new Item(-1, null, null);
+
+    private Annotator annotator;
+
+    private int threads;
+
+    private int maxInFlight;
+
+    private boolean ordered = false;
+
+    private SaveOptions saveOptions = new SaveOptions();
+
+    private Stage loadStage = new Stage();
+    private Stage processStage = new Stage();
+    private Stage saveStage = new Stage();
+
+    private Map<String, Exception> failures = Collections.synchronizedMap(new LinkedHashMap<String, Exception>());
+
+    /** Creates a processor running the annotator on the given number of threads. The same number of threads load and save the documents. */
+    public BatchProcessor(Annotator annotator, int threads) {
+	if (threads < 1) {
+	    throw new IllegalArgumentException("At least one thread is needed");
+	}
+	this.annotator = annotator;
+	this.threads = threads;
+	this.maxInFlight = threads * 4;
+    }
+
+    /** Sets the maximum number of documents held in memory at a time, counting the ones being loaded, annotated, saved or waiting in the queues between them. It's 4 times the number of threads by default. */
+    public void setMaxInFlight(int maxInFlight) {
+	if (maxInFlight < 1) {
+	    throw new IllegalArgumentException("At least one document must be allowed in memory");
+	}
+	this.maxInFlight = maxInFlight;
+    }
+
+    public boolean getOrdered() {
+	return ordered;
+    }
+
+    /** Sets whether the documents are saved in the order they are read. Otherwise they are saved as soon as they are annotated. Order matters when saving to a corpus; in ordered mode a single thread saves the documents. */
+    public void setOrdered(boolean ordered) {
+	this.ordered = ordered;
+    }
+
+    /** Sets the options used to save documents to a directory */
+    public void setSaveOptions(SaveOptions saveOptions) {
+	this.saveOptions = saveOptions;
+    }
+
+    public Stage getLoadStage() {
+	return loadStage;
+    }
+
+    public Stage getProcessStage() {
+	return processStage;
+    }
+
+    public Stage getSaveStage() {
+	return saveStage;
+    }
+
+    /** Returns the documents which failed in the last run, by name, with the exception raised */
+    public Map<String, Exception> getFailures() {
+	synchronized (failures) {
+	    return new LinkedHashMap<String, Exception>(failures);
+	}
+    }
+
+    /** Annotates every file of the input directory, in name order, and saves the results with the same names in the output directory. Compressed files are read and written as described in KAFDocument.createFromFile and save. */
+    public void run(File inputDir, final File outputDir) throws IOException, InterruptedException {
+	final File[] files = inputDir.listFiles();
+	if (files == null) {
+	    throw new IOException(inputDir + " is not a readable directory");
+	}
+	List<File> inputFiles = new ArrayList<File>();
+	for (File file : files) {
+	    if (file.isFile()) {
+		inputFiles.add(file);
+	    }
+	}
+	Collections.sort(inputFiles);
+	final File[] sorted = inputFiles.toArray(new File[inputFiles.size()]);
+	if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+	    throw new IOException("Can't create the output directory " + outputDir);
+	}
+	run(new Input() {
+		public int size() {
+		    return sorted.length;
+		}
+		public String getName(int index) {
+		    return sorted[index].getName();
+		}
+		public KAFDocument load(int index) throws Exception {
+		    // Not createFromFile, which prints parse errors instead of throwing them
+		    return ReadWriteManager.load(sorted[index]);
+		}
+	    }, new Output() {
+		public void save(String name, KAFDocument kaf) throws IOException {
+		    File file = new File(outputDir, name);
+		    SaveOptions options = saveOptions;
+		    OutputStream out = new FileOutputStream(file);
+		    try {
+			if (name.endsWith(".gz") && !options.getGzip()) {
+			    options = copyWithGzip(options);
+			}
+			kaf.save(out, options);
+		    } finally {
+			out.close();
+		    }
+		}
+	    }, !ordered);
+    }
+
+    /** Annotates every document of the input corpus and adds the results, with the same IDs, to the output corpus. The writer is not closed. */
+    public void run(final KAFCorpus input, final KAFCorpusWriter output) throws IOException, InterruptedException {
+	run(new Input() {
+		public int size() {
+		    return input.size();
+		}
+		public String getName(int index) {
+		    return input.getId(index);
+		}
+		public KAFDocument load(int index) throws IOException {
+		    return input.get(index);
+		}
+	    }, new Output() {
+		public void save(String name, KAFDocument kaf) throws IOException {
+		    output.add(name, kaf);
+		}
+	    }, false);
+    }
+
+    private void run(final Input input, final Output output, boolean parallelSave) throws IOException, InterruptedException {
+	loadStage.reset();
+	processStage.reset();
+	saveStage.reset();
+	failures.clear();
+	final int numDocs = input.size();
+	// A permit is taken before a document is picked, so the oldest document not saved yet always has one and ordered saving can't get stuck
+	final Semaphore inFlight = new Semaphore(maxInFlight);
+	final AtomicInteger nextInput = new AtomicInteger();
+	final BlockingQueue<Item> toProcess = new ArrayBlockingQueue<Item>(maxInFlight + threads);
+	final BlockingQueue<Item> toSave = new ArrayBlockingQueue<Item>(maxInFlight + threads);
+	final int saveThreads = parallelSave ? threads : 1;
+	final AtomicInteger loadersLeft = new AtomicInteger(threads);
+	final AtomicInteger processorsLeft = new AtomicInteger(threads);
+
+	List<Thread> workers = new ArrayList<Thread>();
+	for (int t = 0; t < threads; t++) {
+	    workers.add(new Worker("kaflib-load-" + t) {
+		    void work() throws InterruptedException {
+			while (true) {
+			    inFlight.acquire();
+			    int index = nextInput.getAndIncrement();
+			    if (index >= numDocs) {
+				inFlight.release();
+				break;
+			    }
+			    String name = input.getName(index);
+			    KAFDocument kaf = null;
+			    long start = System.nanoTime();
+			    try {
+				kaf = input.load(index);
+			    } catch (Exception e) {
+				failures.put(name, e);
+			    }
+			    loadStage.add(start, kaf == null);
+			    toProcess.put(new Item(index, name, kaf));
+			}
+			if (loadersLeft.decrementAndGet() == 0) {
+			    for (int i = 0; i < threads; i++) {
+				toProcess.put(END);
+			    }
+			}
+		    }
+		});
+	}
+	for (int t = 0; t < threads; t++) {
+	    workers.add(new Worker("kaflib-process-" + t) {
+		    void work() throws InterruptedException {
+			for (Item item = toProcess.take(); item != END; item = toProcess.take()) {
+			    if (item.kaf != null) {
+				long start = System.nanoTime();
+				boolean failed = false;
+				try {
+				    item.kaf = annotator.process(item.name, item.kaf);
+				} catch (Exception e) {
+				    failures.put(item.name, e);
+				    item.kaf = null;
+				    failed = true;
+				}
+				processStage.add(start, failed);
+			    }
+			    toSave.put(item);
+			}
+			if (processorsLeft.decrementAndGet() == 0) {
+			    for (int i = 0; i < saveThreads; i++) {
+				toSave.put(END);
+			    }
+			}
+		    }
+		});
+	}
+	for (int t = 0; t < saveThreads; t++) {
+	    workers.add(new Worker("kaflib-save-" + t) {
+		    /** Documents annotated before the ones preceding them, by index */
+		    private HashMap<Integer, Item> waiting = new HashMap<Integer, Item>();
+		    private int nextOutput = 0;
+
+		    void work() throws InterruptedException {
+			for (Item item = toSave.take(); item != END; item = toSave.take()) {
+			    if (ordered) {
+				waiting.put(item.index, item);
+				for (Item next = waiting.remove(nextOutput); next != null; next = waiting.remove(nextOutput)) {
+				    save(next);
+				    nextOutput++;
+				}
+			    }
+			    else {
+				save(item);
+			    }
+			}
+		    }
+
+		    private void save(Item item) {
+			try {
+			    if (item.kaf != null) {
+				long start = System.nanoTime();
+				boolean failed = false;
+				try {
+				    output.save(item.name, item.kaf);
+				} catch (Exception e) {
+				    failures.put(item.name, e);
+				    failed = true;
+				}
+				saveStage.add(start, failed);
+			    }
+			} finally {
+			    inFlight.release();
+			}
+		    }
+		});
+	}
+
+	for (Thread worker : workers) {
+	    worker.start();
+	}
+	try {
+	    for (Thread worker : workers) {
+		while (worker.isAlive()) {
+		    worker.join(100);
+		    // A worker which died doesn't pass on the end of the documents or its permits, leaving the others waiting, so they are stopped. The interruption is repeated in case an annotator clears it.
+		    if (getFailed(workers) != null) {
+			interrupt(workers);
+		    }
+		}
+	    }
+	} catch (InterruptedException e) {
+	    interrupt(workers);
+	    throw e;
+	}
+	Worker failed = getFailed(workers);
+	if (failed != null) {
+	    throw new IllegalStateException("Error in " + failed.getName(), failed.error);
+	}
+    }
+
+    /** Returns the first worker stopped by an error, or null if there isn't any */
+    private static Worker getFailed(List<Thread> workers) {
+	for (Thread worker : workers) {
+	    if (((Worker) worker).error != null) {
+		return (Worker) worker;
+	    }
+	}
+	return null;
+    }
+
+    private static void interrupt(List<Thread> workers) {
+	for (Thread worker : workers) {
+	    worker.interrupt();
+	}
+    }
+
+    private static SaveOptions copyWithGzip(SaveOptions options) {
+	SaveOptions copy = new SaveOptions();
+	copy.setComments(options.getComments());
+	copy.setPretty(options.getPretty());
+	copy.setLineSeparator(options.getLineSeparator());
+	copy.setGzipThreads(options.getGzipThreads());
+	copy.setGzip(true);
+	return copy;
+    }
+
+    /** Thread of a stage. Errors not related to a single document, and any Error, stop the thread; run then stops the other threads and throws it. */
+    private abstract static class Worker extends Thread {
+	volatile Throwable error;
+
+	Worker(String name) {
+	    super(name);
+	    setDaemon(true);
+	}
+
+	public void run() {
+	    try {
+		work();
+	    } catch (InterruptedException e) {
+		// The run has been cancelled
+	    } catch (Throwable t) {
+		error = t;
+	    }
+	}
+
+	abstract void work() throws InterruptedException;
+    }
+}
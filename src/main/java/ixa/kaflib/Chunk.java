@@ -110,14 +110,7 @@ public class Chunk {
     }
 
     public String getStr() {
-	String str = "";
-	for (Term term : this.span.getTargets()) {
-	    if (!str.isEmpty()) {
-		str += " ";
-	    }
-	    str += term.getStr();
-	}
-	return str;
+	return Term.getStr(this.span.getTargets());
     }
 
     /** Deprecated */
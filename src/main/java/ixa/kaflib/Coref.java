@@ -82,14 +82,7 @@ public class Coref {
     }
 
     public String getSpanStr(Span<Term> span) {
-	String str = "";
-	for (Term term : span.getTargets()) {
-	    if (!str.isEmpty()) {
-		str += " ";
-	    }
-	    str += term.getStr();
-	}
-	return str;
+	return Term.getStr(span.getTargets());
     }
 
     /** Deprecated */
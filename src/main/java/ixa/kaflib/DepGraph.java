@@ -0,0 +1,244 @@
+package ixa.kaflib;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+
+/** Read-only view of the dependencies of a document as a graph of terms. The "from" term of a dependency is the head and the "to" term is the dependent. Terms are numbered and the edges of each term are kept in int arrays, so queries don't scan the dependency list. A graph is obtained with KAFDocument.getDepGraph and reflects the document at that time: it is built again after terms or dependencies are added or removed, but changes made with Dep.setFrom or Dep.setTo aren't seen. */
+public class DepGraph {
+
+    private static final List<Dep> NO_DEPS = Collections.emptyList();
+
+    /** Terms by ordinal */
+    private Term[] terms;
+
+    /** Ordinals of the terms */
+    private HashMap<Term, Integer> ordinals;
+
+    /** Dependencies in document order */
+    private Dep[] deps;
+
+    /** Ordinals of the head and the dependent of each dependency */
+    private int[] depFrom;
+    private int[] depTo;
+
+    /** Dependencies leaving each term: the indexes in deps of the dependencies whose head is term i are outDeps[outStart[i]] to outDeps[outStart[i + 1] - 1] */
+    private int[] outStart;
+    private int[] outDeps;
+
+    /** Dependencies arriving at each term, in the same layout as outStart and outDeps */
+    private int[] inStart;
+    private int[] inDeps;
+
+    /** Terms without a head, by sentence. It is built with the graph, so that threads sharing the graph can query it without locking. */
+    private final HashMap<Integer, List<Term>> rootsBySent;
+
+    /** Work arrays of the path search. Each search uses a new mark, so they don't need to be cleared. */
+    private int[] visited;
+    private int[] reachedBy;
+    private int[] queue;
+    private int mark = 0;
+
+    DepGraph(List<Term> termList, List<Dep> depList) {
+	ordinals = new HashMap<Term, Integer>(termList.size() * 4 / 3 + 1);
+	List<Term> termsByOrdinal = new ArrayList<Term>(termList.size());
+	for (Term term : termList) {
+	    getOrdinal(term, termsByOrdinal);
+	}
+	int numDeps = depList.size();
+	deps = depList.toArray(new Dep[numDeps]);
+	depFrom = new int[numDeps];
+	depTo = new int[numDeps];
+	for (int i = 0; i < numDeps; i++) {
+	    depFrom[i] = getOrdinal(deps[i].getFrom(), termsByOrdinal);
+	    depTo[i] = getOrdinal(deps[i].getTo(), termsByOrdinal);
+	}
+	terms = termsByOrdinal.toArray(new Term[termsByOrdinal.size()]);
+	outStart = new int[terms.length + 1];
+	outDeps = new int[numDeps];
+	groupBy(depFrom, outStart, outDeps);
+	inStart = new int[terms.length + 1];
+	inDeps = new int[numDeps];
+	groupBy(depTo, inStart, inDeps);
+	rootsBySent = new HashMap<Integer, List<Term>>();
+	for (int t = 0; t < terms.length; t++) {
+	    if ((inStart[t] == inStart[t + 1]) && !terms[t].getWFs().isEmpty()) {
+		int termSent = terms[t].getSent();
+		List<Term> sentRoots = rootsBySent.get(termSent);
+		if (sentRoots == null) {
+		    sentRoots = new ArrayList<Term>(1);
+		    rootsBySent.put(termSent, sentRoots);
+		}
+		sentRoots.add(terms[t]);
+	    }
+	}
+    }
+
+    /** Returns the head of the term, or null if the term doesn't depend on any other. If the term has more than one head, the one of the first dependency is returned. */
+    public Term getHead(Term term) {
+	int t = ordinal(term);
+	if ((t < 0) || (inStart[t] == inStart[t + 1])) {
+	    return null;
+	}
+	return terms[depFrom[inDeps[inStart[t]]]];
+    }
+
+    /** Returns the terms which depend on the given term, in document order of their dependencies. */
+    public List<Term> getDependents(Term term) {
+	int t = ordinal(term);
+	if (t < 0) {
+	    return Collections.<Term>emptyList();
+	}
+	List<Term> dependents = new ArrayList<Term>(outStart[t + 1] - outStart[t]);
+	for (int i = outStart[t]; i < outStart[t + 1]; i++) {
+	    dependents.add(terms[depTo[outDeps[i]]]);
+	}
+	return dependents;
+    }
+
+    /** Returns the dependencies whose head is the given term. */
+    public List<Dep> getDepsFrom(Term term) {
+	int t = ordinal(term);
+	return (t < 0) ? NO_DEPS : getDeps(outDeps, outStart[t], outStart[t + 1]);
+    }
+
+    /** Returns the dependencies whose dependent is the given term. */
+    public List<Dep> getDepsTo(Term term) {
+	int t = ordinal(term);
+	return (t < 0) ? NO_DEPS : getDeps(inDeps, inStart[t], inStart[t + 1]);
+    }
+
+    /** Returns the terms of a sentence without a head, in document order. In a well-formed parse this is the root of the sentence, possibly with some unattached terms as punctuation. */
+    public List<Term> getRoots(int sent) {
+	List<Term> sentRoots = rootsBySent.get(sent);
+	if (sentRoots == null) {
+	    return Collections.<Term>emptyList();
+	}
+	return Collections.unmodifiableList(sentRoots);
+    }
+
+    /** Returns the root of a sentence: the first term without a head which has dependents, or the first term without a head if none has. Returns null if the sentence has no terms. */
+    public Term getRoot(int sent) {
+	List<Term> roots = getRoots(sent);
+	for (Term root : roots) {
+	    int t = ordinal(root);
+	    if (outStart[t] < outStart[t + 1]) {
+		return root;
+	    }
+	}
+	return roots.isEmpty() ? null : roots.get(0);
+    }
+
+    /** Returns the shortest path between two terms, following dependencies in either direction. The path is the list of dependencies crossed going from the first term to the second one, so it is empty if both terms are the same. Returns null if the terms aren't connected. */
+    public synchronized List<Dep> getPath(Term from, Term to) {
+	int source = ordinal(from);
+	int target = ordinal(to);
+	if ((source < 0) || (target < 0)) {
+	    return null;
+	}
+	if (source == target) {
+	    return new ArrayList<Dep>();
+	}
+	if (visited == null) {
+	    visited = new int[terms.length];
+	    reachedBy = new int[terms.length];
+	    queue = new int[terms.length];
+	}
+	if (++mark == 0) {
+	    Arrays.fill(visited, 0);
+	    mark = 1;
+	}
+	// Breadth-first search, recording the dependency each term was reached by
+	int head = 0;
+	int tail = 0;
+	queue[tail++] = source;
+	visited[source] = mark;
+	while ((head < tail) && (visited[target] != mark)) {
+	    int t = queue[head++];
+	    for (int i = outStart[t]; i < outStart[t + 1]; i++) {
+		tail = visit(outDeps[i], depTo[outDeps[i]], tail);
+	    }
+	    for (int i = inStart[t]; i < inStart[t + 1]; i++) {
+		tail = visit(inDeps[i], depFrom[inDeps[i]], tail);
+	    }
+	}
+	if (visited[target] != mark) {
+	    return null;
+	}
+	List<Dep> path = new ArrayList<Dep>();
+	for (int t = target; t != source; ) {
+	    int d = reachedBy[t];
+	    path.add(deps[d]);
+	    t = (depTo[d] == t) ? depFrom[d] : depTo[d];
+	}
+	Collections.reverse(path);
+	return path;
+    }
+
+    /** Returns the terms of the shortest path between two terms, both included, or null if they aren't connected. */
+    public List<Term> getPathTerms(Term from, Term to) {
+	List<Dep> path = getPath(from, to);
+	if (path == null) {
+	    return null;
+	}
+	List<Term> pathTerms = new ArrayList<Term>(path.size() + 1);
+	Term current = from;
+	pathTerms.add(current);
+	for (Dep dep : path) {
+	    current = (dep.getFrom() == current) ? dep.getTo() : dep.getFrom();
+	    pathTerms.add(current);
+	}
+	return pathTerms;
+    }
+
+    private int visit(int dep, int t, int tail) {
+	if (visited[t] != mark) {
+	    visited[t] = mark;
+	    reachedBy[t] = dep;
+	    queue[tail++] = t;
+	}
+	return tail;
+    }
+
+    private List<Dep> getDeps(int[] edges, int start, int end) {
+	List<Dep> result = new ArrayList<Dep>(end - start);
+	for (int i = start; i < end; i++) {
+	    result.add(deps[edges[i]]);
+	}
+	return result;
+    }
+
+    /** Returns the ordinal of a term, or -1 if it's not in the graph */
+    private int ordinal(Term term) {
+	Integer t = ordinals.get(term);
+	return (t == null) ? -1 : t;
+    }
+
+    /** Returns the ordinal of a term, numbering it if it's new. Dependencies can refer to terms which are not in the terms layer, as after it has been removed. */
+    private int getOrdinal(Term term, List<Term> termsByOrdinal) {
+	Integer t = ordinals.get(term);
+	if (t == null) {
+	    t = termsByOrdinal.size();
+	    ordinals.put(term, t);
+	    termsByOrdinal.add(term);
+	}
+	return t;
+    }
+
+    /** Sorts the dependencies by term with a counting sort, keeping document order for each term */
+    private static void groupBy(int[] depTerms, int[] start, int[] grouped) {
+	for (int d = 0; d < depTerms.length; d++) {
+	    start[depTerms[d] + 1]++;
+	}
+	for (int t = 0; t < start.length - 1; t++) {
+	    start[t + 1] += start[t];
+	}
+	int[] next = Arrays.copyOf(start, start.length - 1);
+	for (int d = 0; d < depTerms.length; d++) {
+	    grouped[next[depTerms[d]]++] = d;
+	}
+    }
+}
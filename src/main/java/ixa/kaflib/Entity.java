@@ -124,14 +124,7 @@ public class Entity implements Relational {
     }
 
     public String getSpanStr(Span<Term> span) {
-	String str = "";
-	for (Term term : span.getTargets()) {
-	    if (!str.isEmpty()) {
-		str += " ";
-	    }
-	    str += term.getStr();
-	}
-	return str;
+	return Term.getStr(span.getTargets());
     }
 
     public String getStr() {
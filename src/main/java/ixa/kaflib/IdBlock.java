@@ -0,0 +1,47 @@
+package ixa.kaflib;
+
+
+/** A block of consecutive IDs of one type of annotation, reserved with KAFDocument.reserveIds. Threads annotating different parts of a document in parallel, as different sentences, can each take a block and create IDs from it without synchronizing with the others. The IDs are given to the methods creating annotations with a given ID, as newEntity(id, references).
+ * <p>
+ * A block is meant to be used by a single thread. IDs left unused can be released with KAFDocument.compactIds once all the threads are done.
+ */
+public class IdBlock {
+
+    private KAFDocument.IdType type;
+
+    private String prefix;
+
+    /** Number of the next ID */
+    private int next;
+
+    /** Number after the last ID of the block */
+    private int end;
+
+    IdBlock(KAFDocument.IdType type, int first, int count) {
+	this.type = type;
+	this.prefix = IdManager.getPrefix(type);
+	this.next = first;
+	this.end = first + count;
+    }
+
+    public KAFDocument.IdType getType() {
+	return type;
+    }
+
+    /** Returns the number of IDs not used yet */
+    public int remaining() {
+	return end - next;
+    }
+
+    public boolean hasNext() {
+	return next < end;
+    }
+
+    /** Returns the next ID of the block */
+    public String next() {
+	if (next >= end) {
+	    throw new IllegalStateException("All the IDs of the block have been used");
+	}
+	return prefix + Integer.toString(next++);
+    }
+}
@@ -1,9 +1,9 @@
 package ixa.kaflib;
 
-import java.util.regex.*;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/** Manages ID creation. Each ID is created taking into account the annotations of the same type created so far, in a document context. This class keeps a counter for each type of annotation (terms, chunks...). */
+/** Manages ID creation. Each ID is created taking into account the annotations of the same type created so far, in a document context. This class keeps a counter for each type of annotation (terms, chunks...). Counters are atomic, so annotations of different layers can be created from different threads. */
 class IdManager {
 
     /* Prefix of each type of ids */
@@ -24,93 +24,93 @@ class IdManager {
     private static final String EDGE_PREFIX = "tre";
 
     /* Counters for each type of annotations */
-    private int wfCounter;
-    private int termCounter;
-    private int chunkCounter;
-    private int entityCounter;
-    private int corefCounter;
-    private int propertyCounter;
-    private int categoryCounter;
-    private int opinionCounter;
-    private int relationCounter;
-    private int predicateCounter;
-    private int terminalCounter;
-    private int nonterminalCounter;
-    private int edgeCounter;
+    private AtomicInteger wfCounter;
+    private AtomicInteger termCounter;
+    private AtomicInteger chunkCounter;
+    private AtomicInteger entityCounter;
+    private AtomicInteger corefCounter;
+    private AtomicInteger propertyCounter;
+    private AtomicInteger categoryCounter;
+    private AtomicInteger opinionCounter;
+    private AtomicInteger relationCounter;
+    private AtomicInteger predicateCounter;
+    private AtomicInteger terminalCounter;
+    private AtomicInteger nonterminalCounter;
+    private AtomicInteger edgeCounter;
     private HashMap<String, Integer> componentCounter;
-    private int roleCounter;
+    private AtomicInteger roleCounter;
 
     IdManager() {
-	this.wfCounter = 0;
-	this.termCounter = 0;
-	this.chunkCounter = 0;
-	this.entityCounter = 0;
-	this.corefCounter = 0;
-	this.propertyCounter = 0;
-	this.categoryCounter = 0;
-	this.opinionCounter = 0;
-	this.relationCounter = 0;
-	this.predicateCounter = 0;
-	this.terminalCounter = 0;
-	this.nonterminalCounter = 0;
-	this.edgeCounter = 0;
+	this.wfCounter = new AtomicInteger();
+	this.termCounter = new AtomicInteger();
+	this.chunkCounter = new AtomicInteger();
+	this.entityCounter = new AtomicInteger();
+	this.corefCounter = new AtomicInteger();
+	this.propertyCounter = new AtomicInteger();
+	this.categoryCounter = new AtomicInteger();
+	this.opinionCounter = new AtomicInteger();
+	this.relationCounter = new AtomicInteger();
+	this.predicateCounter = new AtomicInteger();
+	this.terminalCounter = new AtomicInteger();
+	this.nonterminalCounter = new AtomicInteger();
+	this.edgeCounter = new AtomicInteger();
 	this.componentCounter = new HashMap<String, Integer>();
-	this.roleCounter = 0;
+	this.roleCounter = new AtomicInteger();
     }
 
     String getNextWFId() {
-	return WF_PREFIX + Integer.toString(++wfCounter);
+	return WF_PREFIX + Integer.toString(wfCounter.incrementAndGet());
     }
 
     String getNextTermId() {
-	return TERM_PREFIX + Integer.toString(++termCounter);
+	return TERM_PREFIX + Integer.toString(termCounter.incrementAndGet());
     }
 
     String getNextChunkId() {
-	return CHUNK_PREFIX + Integer.toString(++chunkCounter);
+	return CHUNK_PREFIX + Integer.toString(chunkCounter.incrementAndGet());
     }
     
     String getNextEntityId() {
-	return ENTITY_PREFIX + Integer.toString(++entityCounter);
+	return ENTITY_PREFIX + Integer.toString(entityCounter.incrementAndGet());
     }
     
     String getNextCorefId() {
-	return COREF_PREFIX + Integer.toString(++corefCounter);
+	return COREF_PREFIX + Integer.toString(corefCounter.incrementAndGet());
     }
 
     String getNextPropertyId() {
-	return PROPERTY_PREFIX + Integer.toString(++propertyCounter);
+	return PROPERTY_PREFIX + Integer.toString(propertyCounter.incrementAndGet());
     }
 
     String getNextCategoryId() {
-	return CATEGORY_PREFIX + Integer.toString(++categoryCounter);
+	return CATEGORY_PREFIX + Integer.toString(categoryCounter.incrementAndGet());
     }
 
     String getNextOpinionId() {
-	return OPINION_PREFIX + Integer.toString(++opinionCounter);
+	return OPINION_PREFIX + Integer.toString(opinionCounter.incrementAndGet());
     }
 
     String getNextRelationId() {
-	return RELATION_PREFIX + Integer.toString(++relationCounter);
+	return RELATION_PREFIX + Integer.toString(relationCounter.incrementAndGet());
     }
 
     String getNextPredicateId() {
-	return PREDICATE_PREFIX + Integer.toString(++predicateCounter);
+	return PREDICATE_PREFIX + Integer.toString(predicateCounter.incrementAndGet());
     }
 
     String getNextTerminalId() {
-	return TERMINAL_PREFIX + Integer.toString(++terminalCounter);
+	return TERMINAL_PREFIX + Integer.toString(terminalCounter.incrementAndGet());
     }
 
     String getNextNonterminalId() {
-	return NONTERMINAL_PREFIX + Integer.toString(++nonterminalCounter);
+	return NONTERMINAL_PREFIX + Integer.toString(nonterminalCounter.incrementAndGet());
     }
 
     String getNextEdgeId() {
-	return EDGE_PREFIX + Integer.toString(++edgeCounter);
+	return EDGE_PREFIX + Integer.toString(edgeCounter.incrementAndGet());
     }
 
-    String getNextComponentId(String termId) {
+    synchronized String getNextComponentId(String termId) {
 	String newId;
 	int nextIndex;
 	if (!componentCounter.containsKey(termId)) {
@@ -124,80 +124,209 @@ class IdManager {
     }
 
     String getNextRoleId() {
-	return ROLE_PREFIX + Integer.toString(++roleCounter);
+	return ROLE_PREFIX + Integer.toString(roleCounter.incrementAndGet());
     }
 
-    private int extractCounterFromId(String id) {
-	Matcher matcher = Pattern.compile("^[a-z]*_?(\\d+)$").matcher(id);
-	if (!matcher.find()) {
+    /** Returns the number of an ID of the form [a-z]*_?[0-9]+, such as "t12" or "nter_3". The ID is scanned by hand instead of with a regular expression, as this is called for every annotation loaded with its ID. */
+    static int extractCounterFromId(String id) {
+	int i = 0;
+	int length = id.length();
+	while ((i < length) && (id.charAt(i) >= 'a') && (id.charAt(i) <= 'z')) {
+	    i++;
+	}
+	if ((i < length) && (id.charAt(i) == '_')) {
+	    i++;
+	}
+	int counter = parseNumber(id, i, length);
+	if (counter < 0) {
 	    throw new IllegalStateException("IdManager doesn't recognise the given id's (" + id  + ") format. Should be [a-z]*_?[0-9]+");
 	}
-	return Integer.valueOf(matcher.group(1));
+	return counter;
+    }
+
+    /** Returns the number of a term component's ID, of the form t_?[0-9]+\.[0-9]+ */
+    static int extractComponentCounterFromId(String id) {
+	int i = TERM_PREFIX.length();
+	int length = id.length();
+	if (id.startsWith(TERM_PREFIX)) {
+	    if ((i < length) && (id.charAt(i) == '_')) {
+		i++;
+	    }
+	    int start = i;
+	    while ((i < length) && (id.charAt(i) >= '0') && (id.charAt(i) <= '9')) {
+		i++;
+	    }
+	    if ((i > start) && id.startsWith(COMPONENT_PREFIX, i)) {
+		int counter = parseNumber(id, i + COMPONENT_PREFIX.length(), length);
+		if (counter >= 0) {
+		    return counter;
+		}
+	    }
+	}
+	throw new IllegalStateException("IdManager doesn't recognise the given id's (" + id + ") format. Should be "+TERM_PREFIX+"_?[0-9]+\\"+COMPONENT_PREFIX+"[0-9]+");
+    }
+
+    /** Parses the digits of a string from start to end, returning -1 if there are none, there's any other character or the number is too big for an int */
+    private static int parseNumber(String str, int start, int end) {
+	if (start >= end) {
+	    return -1;
+	}
+	int number = 0;
+	for (int i = start; i < end; i++) {
+	    int digit = str.charAt(i) - '0';
+	    if ((digit < 0) || (digit > 9) || (number > (Integer.MAX_VALUE - digit) / 10)) {
+		return -1;
+	    }
+	    number = number * 10 + digit;
+	}
+	return number;
+    }
+
+    private AtomicInteger getCounter(KAFDocument.IdType type) {
+	switch (type) {
+	case wf: return wfCounter;
+	case term: return termCounter;
+	case chunk: return chunkCounter;
+	case entity: return entityCounter;
+	case coref: return corefCounter;
+	case property: return propertyCounter;
+	case category: return categoryCounter;
+	case opinion: return opinionCounter;
+	case relation: return relationCounter;
+	case predicate: return predicateCounter;
+	case role: return roleCounter;
+	case terminal: return terminalCounter;
+	case nonterminal: return nonterminalCounter;
+	case edge: return edgeCounter;
+	default: throw new IllegalArgumentException("Wrong ID type");
+	}
+    }
+
+    static String getPrefix(KAFDocument.IdType type) {
+	switch (type) {
+	case wf: return WF_PREFIX;
+	case term: return TERM_PREFIX;
+	case chunk: return CHUNK_PREFIX;
+	case entity: return ENTITY_PREFIX;
+	case coref: return COREF_PREFIX;
+	case property: return PROPERTY_PREFIX;
+	case category: return CATEGORY_PREFIX;
+	case opinion: return OPINION_PREFIX;
+	case relation: return RELATION_PREFIX;
+	case predicate: return PREDICATE_PREFIX;
+	case role: return ROLE_PREFIX;
+	case terminal: return TERMINAL_PREFIX;
+	case nonterminal: return NONTERMINAL_PREFIX;
+	case edge: return EDGE_PREFIX;
+	default: throw new IllegalArgumentException("Wrong ID type");
+	}
+    }
+
+    /** Reserves count consecutive IDs of the given type and returns the number of the first one. Only the counter is updated, so reserving a block costs the same as creating a single ID. */
+    int reserve(KAFDocument.IdType type, int count) {
+	AtomicInteger counter = getCounter(type);
+	while (true) {
+	    int current = counter.get();
+	    if (current >= Integer.MAX_VALUE - count) {
+		throw new IllegalStateException("There are not " + count + " " + type + " IDs left to reserve");
+	    }
+	    if (counter.compareAndSet(current, current + count)) {
+		return current + 1;
+	    }
+	}
+    }
+
+    /** Sets the counter of a type of IDs after they have been renumbered, releasing the numbers above it */
+    void resetCounter(KAFDocument.IdType type, int value) {
+	getCounter(type).set(value);
+    }
+
+    /** Gives the components of a term new IDs after the ID of the term has changed. Components keep their numbers. */
+    synchronized void renumberComponents(Term term) {
+	if (!term.hasComponents()) {
+	    return;
+	}
+	int last = 0;
+	for (Term.Component component : term.getComponents()) {
+	    int number = extractComponentCounterFromId(component.getId());
+	    component.setId(term.getId() + COMPONENT_PREFIX + Integer.toString(number));
+	    last = Math.max(last, number);
+	}
+	if (last > 0) {
+	    componentCounter.put(term.getId(), last);
+	}
+    }
+
+    synchronized void clearComponentCounters() {
+	componentCounter.clear();
+    }
+
+    /** Moves a counter forward to the number of a loaded ID, so that new IDs don't clash with it. Counters never move back, whatever the order IDs are loaded in. */
+    private static void updateCounter(AtomicInteger counter, String id) {
+	int loaded = extractCounterFromId(id);
+	int current = counter.get();
+	while ((loaded > current) && !counter.compareAndSet(current, loaded)) {
+	    current = counter.get();
+	}
     }
 
     void updateWFCounter(String id) {
-	wfCounter = extractCounterFromId(id);
+	updateCounter(wfCounter, id);
     }
 
     void updateTermCounter(String id) {
-	termCounter = extractCounterFromId(id);
+	updateCounter(termCounter, id);
     }
 
     void updateChunkCounter(String id) {
-	chunkCounter = extractCounterFromId(id);
+	updateCounter(chunkCounter, id);
     }
 
     void updateEntityCounter(String id) {
-	entityCounter = extractCounterFromId(id);
+	updateCounter(entityCounter, id);
     }
 
     void updateCorefCounter(String id) {
-	corefCounter = extractCounterFromId(id);
+	updateCounter(corefCounter, id);
     }
 
     void updatePropertyCounter(String id) {
-	propertyCounter = extractCounterFromId(id);
+	updateCounter(propertyCounter, id);
     }
 
     void updateCategoryCounter(String id) {
-	categoryCounter = extractCounterFromId(id);
+	updateCounter(categoryCounter, id);
     }
 
     void updateOpinionCounter(String id) {
-	opinionCounter = extractCounterFromId(id);
+	updateCounter(opinionCounter, id);
     }
 
     void updateRelationCounter(String id) {
-	relationCounter = extractCounterFromId(id);
+	updateCounter(relationCounter, id);
     }
 
     void updatePredicateCounter(String id) {
-	predicateCounter = extractCounterFromId(id);
+	updateCounter(predicateCounter, id);
     }
 
     void updateTerminalCounter(String id) {
-	terminalCounter = extractCounterFromId(id);
+	updateCounter(terminalCounter, id);
     }
 
     void updateNonterminalCounter(String id) {
-	nonterminalCounter = extractCounterFromId(id);
+	updateCounter(nonterminalCounter, id);
     }
 
     void updateEdgeCounter(String id) {
-	edgeCounter = extractCounterFromId(id);
+	updateCounter(edgeCounter, id);
     }
 
-    void updateComponentCounter(String id, String termId) {
-	int componentInd;
-	Matcher matcher = Pattern.compile("^"+TERM_PREFIX+"_?\\d+\\"+COMPONENT_PREFIX+"(\\d+)$").matcher(id);
-	if (!matcher.find()) {
-	    throw new IllegalStateException("IdManager doesn't recognise the given id's (" + id + ") format. Should be "+TERM_PREFIX+"_?[0-9]+\\"+COMPONENT_PREFIX+"[0-9]+");
-	}
-	componentInd = Integer.valueOf(matcher.group(1));
-	componentCounter.put(termId, componentInd);
+    synchronized void updateComponentCounter(String id, String termId) {
+	componentCounter.put(termId, extractComponentCounterFromId(id));
     }
 
     void updateRoleCounter(String id) {
-        roleCounter = extractCounterFromId(id);
+        updateCounter(roleCounter, id);
     }
 }
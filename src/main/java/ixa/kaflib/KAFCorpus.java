@@ -0,0 +1,271 @@
+package ixa.kaflib;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+
+/** Reads the documents of a corpus file written by KAFCorpusWriter. A corpus keeps many documents in a single file, each one as a snapshot (see KAFDocument.saveSnapshot), followed by an index of their IDs and positions. Only the index is read when the corpus is opened; each document is then loaded from a memory mapping of the file, without reading any other part of it.
+ * <p>
+ * If the file doesn't end with a valid index, because a writer appending to it wasn't closed, the corpus is opened from the last valid index before the end, which the writer left when it was opened or last flushed. The documents added after it are not seen.
+ * <p>
+ * Documents can be loaded from several threads at the same time. To process a corpus in parallel, split the range of document indexes among the threads and give each one an iterator(from, to), or let them call get(int).
+ */
+public class KAFCorpus implements Iterable<KAFDocument>, Closeable {
+
+    private File file;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    /** Mapping of the whole file, if it's small enough to be mapped at once. Otherwise each document is mapped when it's loaded. */
+    private MappedByteBuffer map;
+
+    private String[] ids;
+    private long[] offsets;
+    private long[] lengths;
+
+    /** Index of each document, by ID */
+    private HashMap<String, Integer> positions;
+
+    /** Opens a corpus file and reads its index. */
+    public KAFCorpus(File file) throws IOException {
+	this.file = file;
+	this.raf = new RandomAccessFile(file, "r");
+	boolean opened = false;
+	try {
+	    this.channel = raf.getChannel();
+	    readIndex();
+	    if (channel.size() <= Integer.MAX_VALUE) {
+		map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	    }
+	    opened = true;
+	} finally {
+	    if (!opened) {
+		raf.close();
+	    }
+	}
+    }
+
+    /** Returns the number of documents in the corpus */
+    public int size() {
+	return ids.length;
+    }
+
+    /** Returns the IDs of the documents, in the order they were first added */
+    public List<String> getIds() {
+	return Collections.unmodifiableList(Arrays.asList(ids));
+    }
+
+    /** Returns the ID of the document at the given index */
+    public String getId(int index) {
+	return ids[index];
+    }
+
+    public boolean contains(String id) {
+	return positions.containsKey(id);
+    }
+
+    /** Loads the document with the given ID, or returns null if the corpus has no such document. */
+    public KAFDocument get(String id) throws IOException {
+	Integer index = positions.get(id);
+	return (index == null) ? null : get(index);
+    }
+
+    /** Loads the document at the given index. */
+    public KAFDocument get(int index) throws IOException {
+	if (channel == null) {
+	    throw new IllegalStateException("The corpus has been closed");
+	}
+	long offset = offsets[index];
+	long length = lengths[index];
+	ByteBuffer buffer;
+	if (map != null) {
+	    // Each call works on its own view of the mapping, so documents can be loaded concurrently
+	    buffer = map.duplicate();
+	    buffer.limit((int) (offset + length));
+	    buffer.position((int) offset);
+	}
+	else {
+	    buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	}
+	return SnapshotManager.load(buffer);
+    }
+
+    /** Returns an iterator over all the documents, in index order. Errors reading a document are thrown as IllegalStateException. */
+    public Iterator<KAFDocument> iterator() {
+	return iterator(0, ids.length);
+    }
+
+    /** Returns an iterator over the documents with indexes from "from" (included) to "to" (excluded). Iterators over different ranges can be used from different threads. */
+    public Iterator<KAFDocument> iterator(final int from, final int to) {
+	if ((from < 0) || (to > ids.length) || (from > to)) {
+	    throw new IndexOutOfBoundsException("Range [" + from + ", " + to + ") out of a corpus of " + ids.length + " documents");
+	}
+	return new Iterator<KAFDocument>() {
+	    private int next = from;
+
+	    public boolean hasNext() {
+		return next < to;
+	    }
+
+	    public KAFDocument next() {
+		if (next >= to) {
+		    throw new NoSuchElementException();
+		}
+		try {
+		    return get(next++);
+		} catch (IOException e) {
+		    throw new IllegalStateException("Error reading document " + ids[next - 1] + " of " + file, e);
+		}
+	    }
+
+	    public void remove() {
+		throw new UnsupportedOperationException("Corpora are read-only");
+	    }
+	};
+    }
+
+    /** Closes the file. Documents already loaded are not affected. */
+    public void close() throws IOException {
+	if (channel != null) {
+	    channel = null;
+	    map = null;
+	    raf.close();
+	}
+    }
+
+    /** Offset of the document at the given index, used to rewrite the index when appending */
+    long getOffset(int index) {
+	return offsets[index];
+    }
+
+    long getLength(int index) {
+	return lengths[index];
+    }
+
+    private void readIndex() throws IOException {
+	long fileSize = channel.size();
+	if (hasMagicAt(fileSize)) {
+	    readIndex(fileSize);
+	    return;
+	}
+	// A writer which wasn't closed, as when the process died, leaves the documents it added after the last index, without a trailer. The corpus is read from the last index with a trailer, as it was before the writer was opened or last flushed. Such a file starts with the snapshot of a document, or with the empty index of a corpus closed without documents; other files aren't searched.
+	boolean startsWithSnapshot = (fileSize >= SnapshotManager.MAGIC.length) && Arrays.equals(read(0, SnapshotManager.MAGIC.length).array(), SnapshotManager.MAGIC);
+	if (!startsWithSnapshot && !hasMagicAt(4 + KAFCorpusWriter.TRAILER_SIZE)) {
+	    throw new KAFNotValidException(file + " is not a KAF corpus");
+	}
+	for (long end = findMagic(fileSize); end >= 0; end = findMagic(end - 1)) {
+	    try {
+		readIndex(end);
+		return;
+	    } catch (KAFNotValidException e) {
+		// The magic bytes were part of a document
+	    }
+	}
+	throw new KAFNotValidException(file + " is not a KAF corpus");
+    }
+
+    /** Reads the index ended by the trailer which ends at the given position of the file */
+    private void readIndex(long end) throws IOException {
+	if (end < KAFCorpusWriter.TRAILER_SIZE) {
+	    throw new KAFNotValidException(file + " is not a KAF corpus");
+	}
+	ByteBuffer trailer = read(end - KAFCorpusWriter.TRAILER_SIZE, KAFCorpusWriter.TRAILER_SIZE);
+	long indexOffset = trailer.getLong();
+	int version = trailer.getInt();
+	byte[] magic = new byte[KAFCorpusWriter.MAGIC.length];
+	trailer.get(magic);
+	if (!Arrays.equals(magic, KAFCorpusWriter.MAGIC)) {
+	    throw new KAFNotValidException(file + " is not a KAF corpus");
+	}
+	if (version != KAFCorpusWriter.VERSION) {
+	    throw new KAFNotValidException("Corpus version " + version + " is not supported. This library reads version " + KAFCorpusWriter.VERSION + ".");
+	}
+	long indexLength = end - KAFCorpusWriter.TRAILER_SIZE - indexOffset;
+	if ((indexOffset < 0) || (indexLength < 4) || (indexLength > Integer.MAX_VALUE)) {
+	    throw new KAFNotValidException("The index of " + file + " is corrupted");
+	}
+	ByteBuffer index = read(indexOffset, (int) indexLength);
+	try {
+	    int count = index.getInt();
+	    ids = new String[count];
+	    offsets = new long[count];
+	    lengths = new long[count];
+	    positions = new HashMap<String, Integer>(count * 4 / 3 + 1);
+	    for (int i = 0; i < count; i++) {
+		byte[] id = new byte[index.getInt()];
+		index.get(id);
+		ids[i] = new String(id, KAFCorpusWriter.UTF8);
+		offsets[i] = index.getLong();
+		lengths[i] = index.getLong();
+		if ((offsets[i] < 0) || (lengths[i] < 0) || (offsets[i] + lengths[i] > indexOffset)) {
+		    throw new KAFNotValidException("The index of " + file + " is corrupted");
+		}
+		positions.put(ids[i], i);
+	    }
+	} catch (RuntimeException e) {
+	    // Negative sizes or reading past the end of the index
+	    throw new KAFNotValidException("The index of " + file + " is corrupted");
+	}
+	if (index.hasRemaining()) {
+	    throw new KAFNotValidException("The index of " + file + " is corrupted");
+	}
+    }
+
+    /** Whether the magic bytes of a trailer end at the given position of the file */
+    private boolean hasMagicAt(long end) throws IOException {
+	if ((end < KAFCorpusWriter.TRAILER_SIZE) || (end > channel.size())) {
+	    return false;
+	}
+	ByteBuffer magic = read(end - KAFCorpusWriter.MAGIC.length, KAFCorpusWriter.MAGIC.length);
+	return Arrays.equals(magic.array(), KAFCorpusWriter.MAGIC);
+    }
+
+    /** Returns the greatest position, up to the given one, at which the magic bytes of a trailer end, or -1 if there isn't any. The file is read backwards in blocks. */
+    private long findMagic(long before) throws IOException {
+	byte[] magic = KAFCorpusWriter.MAGIC;
+	long blockEnd = before;
+	while (blockEnd >= KAFCorpusWriter.TRAILER_SIZE) {
+	    long blockStart = Math.max(0, blockEnd - 65536);
+	    byte[] block = read(blockStart, (int) (blockEnd - blockStart)).array();
+	    for (int i = block.length - magic.length; i >= 0; i--) {
+		if ((block[i] == magic[0]) && (block[i + 1] == magic[1]) && (block[i + 2] == magic[2]) && (block[i + 3] == magic[3])) {
+		    long end = blockStart + i + magic.length;
+		    if (end >= KAFCorpusWriter.TRAILER_SIZE) {
+			return end;
+		    }
+		}
+	    }
+	    if (blockStart == 0) {
+		break;
+	    }
+	    // Blocks overlap so that magic bytes across two of them are found
+	    blockEnd = blockStart + magic.length - 1;
+	}
+	return -1;
+    }
+
+    /** Reads a part of the file into a heap buffer */
+    private ByteBuffer read(long position, int length) throws IOException {
+	ByteBuffer buffer = ByteBuffer.allocate(length);
+	while (buffer.hasRemaining()) {
+	    if (channel.read(buffer, position + buffer.position()) < 0) {
+		throw new KAFNotValidException(file + " is truncated");
+	    }
+	}
+	buffer.flip();
+	return buffer;
+    }
+}
@@ -0,0 +1,131 @@
+package ixa.kaflib;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** Writes KAF documents to a corpus file, to be read with KAFCorpus. Each document is written as a snapshot (see KAFDocument.saveSnapshot) as soon as it is added, and the index of the documents is written when the writer is flushed or closed.
+ * <p>
+ * Corpus files are only appended to: opening an existing corpus keeps its documents and adds the new ones after its index, which is replaced by a new index at the end of the file. The bytes of the old index are left unused. Adding a document with the ID of one already in the corpus replaces it, keeping its position in the index. Until the writer is closed or flushed, readers see the corpus as it was when it was opened.
+ * <p>
+ * If the writer is never closed, as when the process dies, the file ends with documents and no index. KAFCorpus then reads the corpus from the last index written, by a previous writer or by flush, so the documents added before it are not lost; the ones after it are. Opening a writer on such a file appends after them, leaving their bytes unused.
+ */
+public class KAFCorpusWriter implements Closeable {
+
+    static final byte[] MAGIC = { 'K', 'A', 'F', 'C' };
+
+    /** Version of the corpus format written */
+    static final int VERSION = 1;
+
+    /** Size of the trailer ending the file: the offset of the index, the version and the magic bytes */
+    static final int TRAILER_SIZE = 16;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private CountingOutputStream out;
+
+    /** Offset and length of every document, by ID */
+    private LinkedHashMap<String, long[]> index = new LinkedHashMap<String, long[]>();
+
+    /** Opens a corpus file to add documents to it. The file is created if it doesn't exist. */
+    public KAFCorpusWriter(File file) throws IOException {
+	long length = file.length();
+	if (length > 0) {
+	    KAFCorpus corpus = new KAFCorpus(file);
+	    try {
+		for (int i = 0; i < corpus.size(); i++) {
+		    index.put(corpus.getId(i), new long[] { corpus.getOffset(i), corpus.getLength(i) });
+		}
+	    } finally {
+		corpus.close();
+	    }
+	}
+	this.out = new CountingOutputStream(new FileOutputStream(file, true), length);
+    }
+
+    /** Appends a document to the corpus with the given ID.
+     * @param id the ID the document is read back with.
+     * @param kaf the document.
+     */
+    public void add(String id, KAFDocument kaf) throws IOException {
+	if (out == null) {
+	    throw new IllegalStateException("The corpus writer has been closed");
+	}
+	long offset = out.count;
+	SnapshotManager.save(kaf, out);
+	index.put(id, new long[] { offset, out.count - offset });
+    }
+
+    /** Returns the number of documents in the corpus, including the ones added by this writer */
+    public int size() {
+	return index.size();
+    }
+
+    /** Writes the index of the documents added so far, making them readable without closing the writer, and kept if it's never closed. Each call writes the whole index again, so it's meant to be called every many documents rather than after each one. */
+    public void flush() throws IOException {
+	if (out == null) {
+	    throw new IllegalStateException("The corpus writer has been closed");
+	}
+	writeIndex();
+    }
+
+    /** Writes the index and closes the file. Documents added are not readable until the writer is closed or flushed. */
+    public void close() throws IOException {
+	if (out == null) {
+	    return;
+	}
+	try {
+	    writeIndex();
+	} finally {
+	    out.close();
+	    out = null;
+	}
+    }
+
+    /** Writes the index followed by the trailer: the offset of the index, the version and the magic bytes */
+    private void writeIndex() throws IOException {
+	long indexOffset = out.count;
+	DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 65536));
+	data.writeInt(index.size());
+	for (Map.Entry<String, long[]> entry : index.entrySet()) {
+	    byte[] id = entry.getKey().getBytes(UTF8);
+	    data.writeInt(id.length);
+	    data.write(id);
+	    data.writeLong(entry.getValue()[0]);
+	    data.writeLong(entry.getValue()[1]);
+	}
+	data.writeLong(indexOffset);
+	data.writeInt(VERSION);
+	data.write(MAGIC);
+	data.flush();
+    }
+
+    /** Keeps the position in the file of the bytes written */
+    private static class CountingOutputStream extends FilterOutputStream {
+	long count;
+
+	CountingOutputStream(OutputStream out, long count) {
+	    super(out);
+	    this.count = count;
+	}
+
+	public void write(int b) throws IOException {
+	    out.write(b);
+	    count++;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    out.write(b, off, len);
+	    count += len;
+	}
+    }
+}
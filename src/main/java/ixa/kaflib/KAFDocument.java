@@ -3,17 +3,30 @@ package ixa.kaflib;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import java.io.File;
 import java.io.Reader;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.io.IOException;
-import org.jdom2.JDOMException;
+import javax.xml.stream.XMLStreamException;
 
 
-/** Respresents a KAF document. It's the main class of the library, as it keeps all elements of the document (word forms, terms, entities...) and manages all object creations. The document can be created by the user calling it's methods, or loading from an existing XML file.*/
+/** Respresents a KAF document. It's the main class of the library, as it keeps all elements of the document (word forms, terms, entities...) and manages all object creations. The document can be created by the user calling it's methods, or loading from an existing XML file.
+ * <p>
+ * Once the text and terms layers are complete, the rest of the layers can be annotated from different threads at the same time, one thread per layer, as when running a tagger, a chunker and a coreference resolver in parallel. IDs are assigned atomically and each layer has its own lock, while text and terms are read without locking; they must not be changed during that time. A layer must not be read from a thread while another one adds to it.
+ */
 
 public class KAFDocument {
 
@@ -21,6 +34,11 @@ public class KAFDocument {
 	text, terms, deps, chunks, entities, properties, categories, coreferences, opinions, relations, srl, constituency;
     }
 
+    /** Types of IDs, which can be reserved in blocks with reserveIds */
+    public enum IdType {
+	wf, term, chunk, entity, coref, property, category, opinion, relation, predicate, role, terminal, nonterminal, edge;
+    }
+
     public class FileDesc {
 	String author;
 	String title;
@@ -152,6 +170,24 @@ public class KAFDocument {
     /** Keeps all the annotations of the document */
     private AnnotationContainer annotationContainer;
 
+    /** If the document is a shard (see shard), where it was taken from. It's null for any other document and once the shard has been joined. */
+    private ShardInfo shardInfo;
+
+    /** Values of the attributes with few distinct values, shared by the annotations of the document (see StringPool) */
+    private StringPool strings;
+
+    private static class ShardInfo {
+	KAFDocument document;
+	int index;
+	int numWFs;
+	int numTerms;
+
+	ShardInfo(KAFDocument document, int index) {
+	    this.document = document;
+	    this.index = index;
+	}
+    }
+
     /** Creates an empty KAFDocument element */
     public KAFDocument(String lang, String version) {
 	this.lang = lang;
@@ -159,21 +195,62 @@ public class KAFDocument {
 	lps = new LinkedHashMap<String, List<LinguisticProcessor>>();
 	idManager = new IdManager();
 	annotationContainer = new AnnotationContainer();
+	strings = new StringPool();
     }
 
-    /** Creates a new KAFDocument and loads the contents of the file passed as argument
+    /** Creates a new KAFDocument and loads the contents of the file passed as argument. Files compressed with gzip, as .kaf.gz or .naf.gz files, are decompressed while they are read.
      * @param file an existing KAF file to be loaded into the library.
      */
     public static KAFDocument createFromFile(File file) throws IOException {
 	KAFDocument kaf = null;
 	try {
 	    kaf = ReadWriteManager.load(file);
-	} catch(JDOMException e) {
+	} catch(XMLStreamException e) {
+	    e.printStackTrace();
+	}
+	return kaf;
+    }
+
+    /** Creates a new KAFDocument loading only the given layers of the file passed as argument. The rest of the layers are not parsed: they are kept as raw XML and written back unchanged when the document is saved, but no annotations can be added to them. The layers the given ones refer to (text and terms for term based layers, entities and features for relations) are loaded as well.
+     * @param file an existing KAF file to be loaded into the library.
+     * @param layers the layers to be loaded.
+     */
+    public static KAFDocument createFromFile(File file, Set<Layer> layers) throws IOException {
+	KAFDocument kaf = null;
+	try {
+	    kaf = ReadWriteManager.load(file, layers);
+	} catch(XMLStreamException e) {
 	    e.printStackTrace();
 	}
 	return kaf;
     }
 
+    /** Reads only the header of a KAF file: the language and version of the document, the linguistic processors, fileDesc and public. Reading stops at the end of the header, so it takes about the same time for any file size. The returned document has no annotations and is meant to be inspected, not saved.
+     * @param file an existing KAF file.
+     */
+    public static KAFDocument peekHeader(File file) throws IOException {
+	KAFDocument kaf = null;
+	try {
+	    kaf = ReadWriteManager.loadHeader(file);
+	} catch(XMLStreamException e) {
+	    e.printStackTrace();
+	}
+	return kaf;
+    }
+
+    /** Returns the names of the top-level elements of a KAF file following the header, such as "raw", "text" or "terms", in document order. The file is scanned as bytes without being parsed, but unlike peekHeader(File) it has to be read to the end, so the time it takes grows with the size of the file.
+     * @param file an existing KAF file.
+     */
+    public static List<String> peekLayers(File file) throws IOException {
+	List<String> layers = null;
+	try {
+	    layers = ReadWriteManager.loadLayerNames(file);
+	} catch(XMLStreamException e) {
+	    e.printStackTrace();
+	}
+	return layers;
+    }
+
     /** Creates a new KAFDocument loading the content read from the reader given on argument.
      * @param stream Reader to read KAF content.
      */
@@ -181,12 +258,40 @@ public class KAFDocument {
 	KAFDocument kaf = null;
 	try {
 	    kaf = ReadWriteManager.load(stream);
-	} catch(JDOMException e) {
+	} catch(XMLStreamException e) {
+	    e.printStackTrace();
+	}
+	return kaf;
+    }
+
+    /** Creates a new KAFDocument loading only the given layers of the content read from the reader given on argument. The rest of the layers are kept as raw XML, as in createFromFile(File, Set).
+     * @param stream Reader to read KAF content.
+     * @param layers the layers to be loaded.
+     */
+    public static KAFDocument createFromStream(Reader stream, Set<Layer> layers) throws IOException {
+	KAFDocument kaf = null;
+	try {
+	    kaf = ReadWriteManager.load(stream, layers);
+	} catch(XMLStreamException e) {
 	    e.printStackTrace();
 	}
 	return kaf;
     }
 
+    /** Creates a new KAFDocument from a snapshot written by saveSnapshot. The file is mapped in memory rather than read through a stream. Snapshots load much faster than XML and give back the same document, but they can only be read by a version of the library supporting their format.
+     * @param file a snapshot file.
+     */
+    public static KAFDocument createFromSnapshot(File file) throws IOException {
+	return SnapshotManager.load(file);
+    }
+
+    /** Creates a new KAFDocument from a snapshot held in the buffer, from its position to its limit. The buffer can be a MappedByteBuffer or a slice of one.
+     * @param buffer the bytes of a snapshot written by saveSnapshot.
+     */
+    public static KAFDocument createFromSnapshot(ByteBuffer buffer) throws IOException {
+	return SnapshotManager.load(buffer);
+    }
+
     /** Sets the language of the processed document */
     public void setLang(String lang) {
 	this.lang = lang;
@@ -207,17 +312,20 @@ public class KAFDocument {
 	return version;
     }
 
-    /** Adds a linguistic processor to the document header. The timestamp is added implicitly. */
+    /** Adds a linguistic processor to the document header. The timestamp is added implicitly. Processors of different layers can be added from different threads at the same time. */
     public LinguisticProcessor addLinguisticProcessor(String layer, String name) {
 	String timestamp = createTimestamp();
 	LinguisticProcessor lp = new LinguisticProcessor(name);
 	lp.setTimestamp(timestamp);
-	List<LinguisticProcessor> layerLps = lps.get(layer);
-	if (layerLps == null) {
-	    layerLps = new ArrayList<LinguisticProcessor>();
-	    lps.put(layer, layerLps);
+	layer = strings.get(layer);
+	synchronized (lps) {
+	    List<LinguisticProcessor> layerLps = lps.get(layer);
+	    if (layerLps == null) {
+		layerLps = new ArrayList<LinguisticProcessor>();
+		lps.put(layer, layerLps);
+	    }
+	    layerLps.add(lp);
 	}
-	layerLps.add(lp);
 	return lp;
     }
 
@@ -258,16 +366,18 @@ public class KAFDocument {
 
     /** Returns wether the given linguistic processor is already defined or not. */
     public boolean linguisticProcessorExists(String layer, String name, String version) {
-	List<LinguisticProcessor> layerLPs = lps.get(layer);
-	if (layerLPs == null) {
-	    return false;
-	}
-	for (LinguisticProcessor lp : layerLPs) {
-	    if (lp.name.equals(name) && lp.version.equals(version)) {
-		return true;
+	synchronized (lps) {
+	    List<LinguisticProcessor> layerLPs = lps.get(layer);
+	    if (layerLPs == null) {
+		return false;
 	    }
+	    for (LinguisticProcessor lp : layerLPs) {
+		if (lp.name.equals(name) && lp.version.equals(version)) {
+		    return true;
+		}
+	    }
+	    return false;
 	}
-	return false;
     }
 
     public FileDesc createFileDesc() {
@@ -348,7 +458,7 @@ public class KAFDocument {
      */
     public Term newTerm(String id, String type, String lemma, String pos, Span<WF> span) {
 	idManager.updateTermCounter(id);
-	Term newTerm = new Term(id, type, lemma, pos, span);
+	Term newTerm = new Term(id, strings.get(type), lemma, strings.get(pos), span);
 	annotationContainer.add(newTerm);
 	return newTerm;
     }
@@ -362,7 +472,7 @@ public class KAFDocument {
      */
     public Term newTerm(String type, String lemma, String pos, Span<WF> span) {
 	String newId = idManager.getNextTermId();
-	Term newTerm = new Term(newId, type, lemma, pos, span);
+	Term newTerm = new Term(newId, strings.get(type), lemma, strings.get(pos), span);
 	annotationContainer.add(newTerm);
 	return newTerm;
     }
@@ -376,11 +486,57 @@ public class KAFDocument {
      */
     public Term newTermOptions(String type, String lemma, String pos, String morphofeat, Span<WF> span) {
 	String newId = idManager.getNextTermId();
-	Term newTerm = new Term(newId, type, lemma, pos, morphofeat, span);
+	Term newTerm = new Term(newId, strings.get(type), lemma, strings.get(pos), strings.get(morphofeat), span);
 	annotationContainer.add(newTerm);
 	return newTerm;
     }
 
+    /** Creates the word forms and terms of a batch of tokens, such as the output of a tokenizer and a tagger, with a term for each word form. It's equivalent to calling newWF(form, offset, sent) and newTerm for each token, but faster for long texts: IDs are reserved for the whole batch, and the indexes of the document are updated once for it. The tokens are added after the word forms and terms already in the document. All arrays must have the same length.
+     * @param forms forms of the tokens.
+     * @param offsets offsets of the tokens in the raw text.
+     * @param lengths lengths of the tokens in characters, or null to take the lengths of the forms.
+     * @param sents sentence of each token.
+     * @param types types of the terms (open or close).
+     * @param lemmas lemmas of the terms.
+     * @param pos parts of speech of the terms.
+     * @return the new terms, in the order of the tokens.
+     * @throws IllegalArgumentException if the arrays have different lengths or any form, type, lemma or part of speech is null, as terms need them to be saved. Nothing is added to the document then.
+     */
+    public List<Term> newTokens(String[] forms, int[] offsets, int[] lengths, int[] sents, String[] types, String[] lemmas, String[] pos) {
+	if ((types == null) || (lemmas == null) || (pos == null)) {
+	    throw new IllegalArgumentException("The types, lemmas and parts of speech of the tokens must be given");
+	}
+	int count = forms.length;
+	if ((offsets.length != count) || ((lengths != null) && (lengths.length != count)) || (sents.length != count)
+	    || (types.length != count) || (lemmas.length != count) || (pos.length != count)) {
+	    throw new IllegalArgumentException("The arrays of the tokens must have the same length");
+	}
+	for (int i = 0; i < count; i++) {
+	    if ((forms[i] == null) || (types[i] == null) || (lemmas[i] == null) || (pos[i] == null)) {
+		throw new IllegalArgumentException("The form, type, lemma and part of speech of token " + i + " must be defined");
+	    }
+	}
+	List<WF> wfs = new ArrayList<WF>(count);
+	List<Term> terms = new ArrayList<Term>(count);
+	if (count == 0) {
+	    return terms;
+	}
+	int firstWF = idManager.reserve(IdType.wf, count);
+	int firstTerm = idManager.reserve(IdType.term, count);
+	String wfPrefix = IdManager.getPrefix(IdType.wf);
+	String termPrefix = IdManager.getPrefix(IdType.term);
+	for (int i = 0; i < count; i++) {
+	    int length = (lengths == null) ? forms[i].length() : lengths[i];
+	    WF wf = new WF(annotationContainer, wfPrefix + Integer.toString(firstWF + i), forms[i], sents[i], offsets[i], length);
+	    List<WF> targets = new ArrayList<WF>(1);
+	    targets.add(wf);
+	    wfs.add(wf);
+	    terms.add(new Term(termPrefix + Integer.toString(firstTerm + i), strings.get(types[i]), lemmas[i], strings.get(pos[i]), new Span<WF>(targets)));
+	}
+	annotationContainer.addTokens(wfs, terms);
+	return terms;
+    }
+
     /** Creates a Sentiment object.
      * @return a new sentiment.
      */
@@ -398,7 +554,7 @@ public class KAFDocument {
      */
     public Term.Component newComponent(String id, Term term, String lemma, String pos) {
 	idManager.updateComponentCounter(id, term.getId());
-	Term.Component newComponent = new Term.Component(id, lemma, pos);
+	Term.Component newComponent = new Term.Component(id, lemma, strings.get(pos));
 	return newComponent;
     }
 
@@ -410,7 +566,7 @@ public class KAFDocument {
      */
     public Term.Component newComponent(Term term, String lemma, String pos) {
 	String newId = idManager.getNextComponentId(term.getId());
-	Term.Component newComponent = new Term.Component(newId, lemma, pos);
+	Term.Component newComponent = new Term.Component(newId, lemma, strings.get(pos));
 	return newComponent;
     }
 
@@ -421,7 +577,7 @@ public class KAFDocument {
      * @return a new dependency.
      */
     public Dep newDep(Term from, Term to, String rfunc) {
-	Dep newDep = new Dep(from, to, rfunc);
+	Dep newDep = new Dep(from, to, strings.get(rfunc));
 	annotationContainer.add(newDep);
 	return newDep;
     }
@@ -435,7 +591,7 @@ public class KAFDocument {
      */
     public Chunk newChunk(String id, String phrase, Span<Term> span) {
 	idManager.updateChunkCounter(id);
-	Chunk newChunk = new Chunk(id, phrase, span);
+	Chunk newChunk = new Chunk(id, strings.get(phrase), span);
 	annotationContainer.add(newChunk);
 	return newChunk;
     }
@@ -448,7 +604,7 @@ public class KAFDocument {
      */
     public Chunk newChunk(String phrase, Span<Term> span) {
 	String newId = idManager.getNextChunkId();
-	Chunk newChunk = new Chunk(newId, phrase, span);
+	Chunk newChunk = new Chunk(newId, strings.get(phrase), span);
 	annotationContainer.add(newChunk);
 	return newChunk;
     }
@@ -628,7 +784,7 @@ public Entity newEntity(List<Span<Term>> references) {
      */
     public Predicate.Role newRole(String id, Predicate predicate, String semRole, Span<Term> span) {
 	idManager.updateRoleCounter(id);
-	Predicate.Role newRole = new Predicate.Role(id, semRole, span);
+	Predicate.Role newRole = new Predicate.Role(id, strings.get(semRole), span);
 	return newRole;
     }
 
@@ -640,7 +796,7 @@ public Entity newEntity(List<Span<Term>> references) {
      */
     public Predicate.Role newRole(Predicate predicate, String semRole, Span<Term> span) {
 	String newId = idManager.getNextRoleId();
-	Predicate.Role newRole = new Predicate.Role(newId, semRole, span);
+	Predicate.Role newRole = new Predicate.Role(newId, strings.get(semRole), span);
 	return newRole;
     }
 
@@ -650,7 +806,12 @@ public Entity newEntity(List<Span<Term>> references) {
      * @return a new external reference object.
      */
     public ExternalRef newExternalRef(String resource, String reference) {
-	return new ExternalRef(resource, reference);
+	return new ExternalRef(strings.get(resource), reference);
+    }
+
+    /** Returns the value of an attribute with few distinct values from the pool of the document, for the loaders to share the values they set on annotations after creating them (see StringPool) */
+    String intern(String value) {
+	return strings.get(value);
     }
 
     public Tree newConstituent(TreeNode root) {
@@ -727,7 +888,7 @@ public Entity newEntity(List<Span<Term>> references) {
 	return annotationContainer.getText();
     }
 
-    /** Returns a list with all sentences. Each sentence is a list of WFs. */
+    /** Returns a list with all sentences, in order of their numbers. Each sentence is a list of WFs. The lists are immutable, and the same ones are returned until word forms are added or change their sentence, so this can be called in a loop over the sentences. */
     public List<List<WF>> getSentences() {
 	return annotationContainer.getSentences();
     }
@@ -745,6 +906,26 @@ public Entity newEntity(List<Span<Term>> references) {
 	return annotationContainer.getTermsByWFs(wfs);
     }
 
+    /** Returns the word forms covering any character of a range of the raw text, in order of offset. Word forms are found by binary search on an index sorted by offset, which is built on the first query and kept up to date as word forms are added in text order. Word forms without an offset are left out, and those without a length are taken as one character long.
+     * @param begin offset of the first character of the range.
+     * @param end offset of the character after the last one of the range.
+     * @return the word forms overlapping the range.
+     */
+    public List<WF> getWFsByOffset(int begin, int end) {
+	return annotationContainer.getWFsByOffset(begin, end);
+    }
+
+    /** Returns the terms with a word form covering any character of a range of the raw text, in order of offset (see getWFsByOffset). */
+    public List<Term> getTermsByOffset(int begin, int end) {
+	return annotationContainer.getTermsByOffset(begin, end);
+    }
+
+    /** Returns the word forms of a sentence, or null if there's no such sentence. The list is immutable, and it's found in constant time when sentences are numbered consecutively. */
+    public List<WF> getSentenceWFs(int sent) {
+	return annotationContainer.getSentenceWFs(sent);
+    }
+
+    /** Returns the terms of a sentence, or null if there's no such sentence. The list is immutable, as in getSentenceWFs. */
     public List<Term> getSentenceTerms(int sent) {
 	return annotationContainer.getSentenceTerms(sent);
     }
@@ -753,6 +934,11 @@ public Entity newEntity(List<Span<Term>> references) {
 	return annotationContainer.getDeps();
     }
 
+    /** Returns the dependencies as a graph, to query the head and dependents of a term or the path between two terms. The graph is built on the first call and reused until terms or dependencies are added or removed. */
+    public DepGraph getDepGraph() {
+	return annotationContainer.getDepGraph();
+    }
+
     public List<Chunk> getChunks() {
 	return annotationContainer.getChunks();
     }
@@ -785,18 +971,187 @@ public Entity newEntity(List<Span<Term>> references) {
 	return annotationContainer.getRelations();
     }
 
+    /** Returns a list with all predicates in the document */
+    public List<Predicate> getPredicates() {
+	return annotationContainer.getPredicates();
+    }
+
     public List<Tree> getConstituents() {
 	return annotationContainer.getConstituents();
     }
 
+    /** Returns the word form with the given ID, or null if the document doesn't contain it. The lookup takes constant time. */
+    public WF getWFById(String id) {
+	return annotationContainer.getWFById(id);
+    }
+
+    /** Returns the term with the given ID, or null if the document doesn't contain it. */
+    public Term getTermById(String id) {
+	return annotationContainer.getTermById(id);
+    }
+
+    /** Returns the chunk with the given ID, or null if the document doesn't contain it. */
+    public Chunk getChunkById(String id) {
+	return annotationContainer.getChunkById(id);
+    }
+
+    /** Returns the named entity with the given ID, or null if the document doesn't contain it. */
+    public Entity getEntityById(String id) {
+	return annotationContainer.getEntityById(id);
+    }
+
+    /** Returns the coreference with the given ID, or null if the document doesn't contain it. */
+    public Coref getCorefById(String id) {
+	return annotationContainer.getCorefById(id);
+    }
+
+    /** Returns the property with the given ID, or null if the document doesn't contain it. */
+    public Feature getPropertyById(String id) {
+	return annotationContainer.getPropertyById(id);
+    }
+
+    /** Returns the category with the given ID, or null if the document doesn't contain it. */
+    public Feature getCategoryById(String id) {
+	return annotationContainer.getCategoryById(id);
+    }
+
+    /** Returns the opinion with the given ID, or null if the document doesn't contain it. */
+    public Opinion getOpinionById(String id) {
+	return annotationContainer.getOpinionById(id);
+    }
+
+    /** Returns the relation with the given ID, or null if the document doesn't contain it. */
+    public Relation getRelationById(String id) {
+	return annotationContainer.getRelationById(id);
+    }
+
+    /** Returns the predicate with the given ID, or null if the document doesn't contain it. Predicates and relations are indexed by the ID they had when they were added, so they aren't found if setId is called later. */
+    public Predicate getPredicateById(String id) {
+	return annotationContainer.getPredicateById(id);
+    }
+
+    /** Returns the named entities whose references contain the given term, in document order. The reverse indexes behind this and the following methods are built on the first query and rebuilt after annotations are added to the layer or the layer is removed. Changes made directly to the spans of annotations which are already in the document aren't seen until then. */
+    public List<Entity> getEntitiesByTerm(Term term) {
+	return annotationContainer.getEntitiesByTerm(term);
+    }
+
+    /** Returns the chunks containing the given term. */
+    public List<Chunk> getChunksByTerm(Term term) {
+	return annotationContainer.getChunksByTerm(term);
+    }
+
+    /** Returns the coreferences with a mention containing the given term. */
+    public List<Coref> getCorefsByTerm(Term term) {
+	return annotationContainer.getCorefsByTerm(term);
+    }
+
+    /** Returns the properties whose references contain the given term. */
+    public List<Feature> getPropertiesByTerm(Term term) {
+	return annotationContainer.getPropertiesByTerm(term);
+    }
+
+    /** Returns the categories whose references contain the given term. */
+    public List<Feature> getCategoriesByTerm(Term term) {
+	return annotationContainer.getCategoriesByTerm(term);
+    }
+
+    /** Returns the opinions whose holder, target or expression contains the given term. */
+    public List<Opinion> getOpinionsByTerm(Term term) {
+	return annotationContainer.getOpinionsByTerm(term);
+    }
+
+    /** Returns the predicates containing the given term. */
+    public List<Predicate> getPredicatesByTerm(Term term) {
+	return annotationContainer.getPredicatesByTerm(term);
+    }
+
+    /** Returns the predicate roles containing the given term. */
+    public List<Predicate.Role> getRolesByTerm(Term term) {
+	return annotationContainer.getRolesByTerm(term);
+    }
+
+    /** Returns the terminal nodes of the constituency trees containing the given term. */
+    public List<Terminal> getTerminalsByTerm(Term term) {
+	return annotationContainer.getTerminalsByTerm(term);
+    }
+
+    /** Returns the named entities with a term covering any character of a range of the raw text, in the order their terms are found by getTermsByOffset. This and the following methods look up the terms of the range and then the indexes by term. */
+    public List<Entity> getEntitiesByOffset(int begin, int end) {
+	Set<Entity> entities = new LinkedHashSet<Entity>();
+	for (Term term : getTermsByOffset(begin, end)) {
+	    entities.addAll(getEntitiesByTerm(term));
+	}
+	return new ArrayList<Entity>(entities);
+    }
+
+    /** Returns the chunks with a term covering any character of a range of the raw text. */
+    public List<Chunk> getChunksByOffset(int begin, int end) {
+	Set<Chunk> chunks = new LinkedHashSet<Chunk>();
+	for (Term term : getTermsByOffset(begin, end)) {
+	    chunks.addAll(getChunksByTerm(term));
+	}
+	return new ArrayList<Chunk>(chunks);
+    }
+
+    /** Returns the coreferences with a term covering any character of a range of the raw text. */
+    public List<Coref> getCorefsByOffset(int begin, int end) {
+	Set<Coref> corefs = new LinkedHashSet<Coref>();
+	for (Term term : getTermsByOffset(begin, end)) {
+	    corefs.addAll(getCorefsByTerm(term));
+	}
+	return new ArrayList<Coref>(corefs);
+    }
+
+    /** Returns the properties with a term covering any character of a range of the raw text. */
+    public List<Feature> getPropertiesByOffset(int begin, int end) {
+	Set<Feature> properties = new LinkedHashSet<Feature>();
+	for (Term term : getTermsByOffset(begin, end)) {
+	    properties.addAll(getPropertiesByTerm(term));
+	}
+	return new ArrayList<Feature>(properties);
+    }
+
+    /** Returns the categories with a term covering any character of a range of the raw text. */
+    public List<Feature> getCategoriesByOffset(int begin, int end) {
+	Set<Feature> categories = new LinkedHashSet<Feature>();
+	for (Term term : getTermsByOffset(begin, end)) {
+	    categories.addAll(getCategoriesByTerm(term));
+	}
+	return new ArrayList<Feature>(categories);
+    }
+
+    /** Returns the opinions with a term covering any character of a range of the raw text. */
+    public List<Opinion> getOpinionsByOffset(int begin, int end) {
+	Set<Opinion> opinions = new LinkedHashSet<Opinion>();
+	for (Term term : getTermsByOffset(begin, end)) {
+	    opinions.addAll(getOpinionsByTerm(term));
+	}
+	return new ArrayList<Opinion>(opinions);
+    }
+
+    /** Returns the predicates with a term covering any character of a range of the raw text. */
+    public List<Predicate> getPredicatesByOffset(int begin, int end) {
+	Set<Predicate> predicates = new LinkedHashSet<Predicate>();
+	for (Term term : getTermsByOffset(begin, end)) {
+	    predicates.addAll(getPredicatesByTerm(term));
+	}
+	return new ArrayList<Predicate>(predicates);
+    }
+
     /** Returns current timestamp. */
     public String createTimestamp() {
 	Date date = new Date();
-	SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-	String formattedDate = sdf.format(date);
+	String formattedDate = timestampFormat.get().format(date);
 	return formattedDate;
     }
 
+    /** SimpleDateFormat is costly to create and not thread-safe, so each thread keeps its own */
+    private static final ThreadLocal<SimpleDateFormat> timestampFormat = new ThreadLocal<SimpleDateFormat>() {
+	protected SimpleDateFormat initialValue() {
+	    return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+	}
+    };
+
     /** Merges the document with another one. **/
     public void merge(KAFDocument doc) {
 	HashMap<String, WF> copiedWFs = new HashMap<String, WF>(); // hash[old_id => new_WF_obj]
@@ -938,20 +1293,380 @@ public Entity newEntity(List<Span<Term>> references) {
 	return newId;
     }
 
-    /** Saves the KAF document to an XML file.
+    private String insertPredicate(Predicate predicate) {
+	String newId = idManager.getNextPredicateId();
+	predicate.setId(newId);
+	for (Predicate.Role role : predicate.getRoles()) {
+	    role.setId(idManager.getNextRoleId());
+	}
+	annotationContainer.add(predicate);
+	return newId;
+    }
+
+    /** Adds a tree, giving new IDs to its nodes and edges in depth-first order */
+    private void insertTree(Tree tree) {
+	List<TreeNode> nodes = new ArrayList<TreeNode>();
+	if (tree.getRoot() != null) {
+	    nodes.add(tree.getRoot());
+	}
+	while (!nodes.isEmpty()) {
+	    TreeNode node = nodes.remove(nodes.size() - 1);
+	    if (node.isTerminal()) {
+		node.setId(idManager.getNextTerminalId());
+	    }
+	    else {
+		node.setId(idManager.getNextNonterminalId());
+		List<TreeNode> children = node.getChildren();
+		for (int i = children.size() - 1; i >= 0; i--) {
+		    nodes.add(children.get(i));
+		}
+	    }
+	    if (node.hasEdgeId()) {
+		node.setEdgeId(idManager.getNextEdgeId());
+	    }
+	}
+	annotationContainer.add(tree);
+    }
+
+    /** Splits the document into shards of consecutive sentences, so that sentence-level annotators can work on them in parallel, each thread on its own shard. Shards are balanced by their number of word forms.
+     * <p>
+     * A shard is a KAFDocument whose text and terms layers are the word forms and terms of its sentences: the same objects as in this document, not copies. The header (linguistic processors included) is shared as well, so processors should be added to this document once instead of to every shard. Annotations added to the other layers of a shard are moved into this document with join. The text and terms layers of shards must not be changed, and this document must not change until the shards are joined. Word forms with no sentence are in no shard.
+     * @param n the maximum number of shards. There are fewer if the document has fewer sentences.
+     * @return the shards, in document order.
+     */
+    public List<KAFDocument> shard(int n) {
+	if (n < 1) {
+	    throw new IllegalArgumentException("At least one shard is needed");
+	}
+	List<List<WF>> sentences = getSentences();
+	int numShards = Math.min(n, sentences.size());
+	int numWFs = 0;
+	for (List<WF> sentence : sentences) {
+	    numWFs += sentence.size();
+	}
+	// Number of the first sentence of each shard
+	int[] firstSents = new int[numShards];
+	int shardIndex = 0;
+	int wfsSoFar = 0;
+	for (int i = 0; (i < sentences.size()) && (shardIndex < numShards); i++) {
+	    // A shard starts when the ones before it have their share of word forms, leaving a sentence at least for each shard after it
+	    if ((wfsSoFar >= (long) numWFs * shardIndex / numShards) || (sentences.size() - i == numShards - shardIndex)) {
+		firstSents[shardIndex++] = sentences.get(i).get(0).getSent();
+	    }
+	    wfsSoFar += sentences.get(i).size();
+	}
+	List<KAFDocument> shards = new ArrayList<KAFDocument>(numShards);
+	for (int i = 0; i < numShards; i++) {
+	    KAFDocument shard = new KAFDocument(lang, version);
+	    shard.lps = lps;
+	    shard.fileDesc = fileDesc;
+	    shard._public = _public;
+	    shard.annotationContainer.setRawText(getRawText());
+	    shard.shardInfo = new ShardInfo(this, i);
+	    shards.add(shard);
+	}
+	for (WF wf : getWFs()) {
+	    if (wf.hasSent()) {
+		AnnotationContainer shardAnnotations = shards.get(findShard(firstSents, wf.getSent())).annotationContainer;
+		shardAnnotations.add(wf);
+	    }
+	}
+	for (Term term : getTerms()) {
+	    if (!term.getWFs().isEmpty() && (term.getSent() != -1)) {
+		shards.get(findShard(firstSents, term.getSent())).annotationContainer.add(term);
+	    }
+	}
+	for (KAFDocument shard : shards) {
+	    shard.shardInfo.numWFs = shard.getWFs().size();
+	    shard.shardInfo.numTerms = shard.getTerms().size();
+	}
+	return shards;
+    }
+
+    /** Returns the index of the shard containing the given sentence, given the first sentence of every shard */
+    private static int findShard(int[] firstSents, int sent) {
+	int pos = Arrays.binarySearch(firstSents, sent);
+	return (pos >= 0) ? pos : -pos - 2;
+    }
+
+    /** Returns a read-only view of the sentences from fromSent (included) to toSent (excluded), as numbered in the word forms. The view holds the word forms and terms of those sentences and the annotations of the other layers whose spans are all within them, found through the indexes by sentence and by term; the annotation objects are the ones of this document, not copies. Annotations are in document order for the text and terms layers, by head term for the dependencies, by first term for the other layers with spans and by the annotation they start from for the relations. Layers kept as raw XML are left out.
+     * <p>
+     * The view can be saved like any document. It has its own copy of the linguistic processors, so processors can be added to it, but no annotations can be added to or removed from it. Annotations changed through their own methods change in this document too.
+     * @param fromSent the first sentence of the view.
+     * @param toSent the sentence after the last one of the view.
+     * @return a read-only document with the annotations of the sentences.
+     */
+    public KAFDocument view(int fromSent, int toSent) {
+	KAFDocument view = new KAFDocument(lang, version);
+	synchronized (lps) {
+	    for (Map.Entry<String, List<LinguisticProcessor>> entry : lps.entrySet()) {
+		view.lps.put(entry.getKey(), new ArrayList<LinguisticProcessor>(entry.getValue()));
+	    }
+	}
+	view.fileDesc = fileDesc;
+	view._public = _public;
+	AnnotationContainer viewAnnotations = view.annotationContainer;
+	viewAnnotations.setView();
+	viewAnnotations.setRawText(getRawText());
+	Set<Term> terms = new HashSet<Term>();
+	for (int sent : annotationContainer.getSentenceNumbers(fromSent, toSent)) {
+	    for (WF wf : annotationContainer.getSentenceWFs(sent)) {
+		viewAnnotations.add(wf);
+	    }
+	    List<Term> sentTerms = annotationContainer.getSentenceTerms(sent);
+	    if (sentTerms != null) {
+		for (Term term : sentTerms) {
+		    terms.add(term);
+		    viewAnnotations.add(term);
+		}
+	    }
+	}
+	// Annotations already considered, whether they were added to the view or not
+	Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+	DepGraph depGraph = getDeps().isEmpty() ? null : getDepGraph();
+	for (Term term : view.getTerms()) {
+	    if (depGraph != null) {
+		for (Dep dep : depGraph.getDepsFrom(term)) {
+		    if (terms.contains(dep.getTo())) {
+			viewAnnotations.add(dep);
+		    }
+		}
+	    }
+	    for (Chunk chunk : getChunksByTerm(term)) {
+		if (seen.add(chunk) && allIn(chunk.getSpan(), terms)) {
+		    viewAnnotations.add(chunk);
+		}
+	    }
+	    for (Entity entity : getEntitiesByTerm(term)) {
+		if (seen.add(entity) && allIn(entity.getSpans(), terms)) {
+		    viewAnnotations.add(entity);
+		}
+	    }
+	    for (Coref coref : getCorefsByTerm(term)) {
+		if (seen.add(coref) && allIn(coref.getSpans(), terms)) {
+		    viewAnnotations.add(coref);
+		}
+	    }
+	    for (Feature property : getPropertiesByTerm(term)) {
+		if (seen.add(property) && allIn(property.getSpans(), terms)) {
+		    viewAnnotations.add(property);
+		}
+	    }
+	    for (Feature category : getCategoriesByTerm(term)) {
+		if (seen.add(category) && allIn(category.getSpans(), terms)) {
+		    viewAnnotations.add(category);
+		}
+	    }
+	    for (Opinion opinion : getOpinionsByTerm(term)) {
+		if (seen.add(opinion)
+		    && ((opinion.getOpinionHolder() == null) || allIn(opinion.getOpinionHolder().getSpan(), terms))
+		    && ((opinion.getOpinionTarget() == null) || allIn(opinion.getOpinionTarget().getSpan(), terms))
+		    && ((opinion.getOpinionExpression() == null) || allIn(opinion.getOpinionExpression().getSpan(), terms))) {
+		    viewAnnotations.add(opinion);
+		}
+	    }
+	    for (Predicate predicate : getPredicatesByTerm(term)) {
+		if (seen.add(predicate) && allIn(predicate.getSpan(), terms) && rolesIn(predicate, terms)) {
+		    viewAnnotations.add(predicate);
+		}
+	    }
+	    for (Tree tree : annotationContainer.getTreesByTerm(term)) {
+		if (seen.add(tree) && treeIn(tree.getRoot(), terms)) {
+		    viewAnnotations.add(tree);
+		}
+	    }
+	}
+	if (!getRelations().isEmpty()) {
+	    List<Relational> froms = new ArrayList<Relational>(view.getEntities());
+	    froms.addAll(view.getProperties());
+	    froms.addAll(view.getCategories());
+	    Set<Relational> relationals = Collections.newSetFromMap(new IdentityHashMap<Relational, Boolean>());
+	    relationals.addAll(froms);
+	    for (Relational from : froms) {
+		for (Relation relation : annotationContainer.getRelationsFrom(from)) {
+		    if (relationals.contains(relation.getTo())) {
+			viewAnnotations.add(relation);
+		    }
+		}
+	    }
+	}
+	viewAnnotations.setReadOnly();
+	return view;
+    }
+
+    private static boolean allIn(Span<Term> span, Set<Term> terms) {
+	for (Term target : span.getTargets()) {
+	    if (!terms.contains(target)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static boolean allIn(List<Span<Term>> spans, Set<Term> terms) {
+	for (Span<Term> span : spans) {
+	    if (!allIn(span, terms)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static boolean rolesIn(Predicate predicate, Set<Term> terms) {
+	for (Predicate.Role role : predicate.getRoles()) {
+	    if (!allIn(role.getSpan(), terms)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /** Returns whether the terminals of a tree are all within the given terms. Trees of other sentences are rejected at their first terminal. */
+    private static boolean treeIn(TreeNode root, Set<Term> terms) {
+	List<TreeNode> nodes = new ArrayList<TreeNode>();
+	nodes.add(root);
+	while (!nodes.isEmpty()) {
+	    TreeNode node = nodes.remove(nodes.size() - 1);
+	    if (node.isTerminal()) {
+		if (!allIn(((Terminal) node).getSpan(), terms)) {
+		    return false;
+		}
+	    }
+	    else {
+		List<TreeNode> children = node.getChildren();
+		for (int i = children.size() - 1; i >= 0; i--) {
+		    nodes.add(children.get(i));
+		}
+	    }
+	}
+	return true;
+    }
+
+
+    /** Moves the annotations added to shards of this document (see shard) into it. Annotations are added after the ones already in the document, in the order of the shards, and get new IDs following those of the document; nothing is copied, and the text and terms layers are not renumbered as they are shared with the shards. Shards can't be used after they are joined.
+     * @param shards shards taken from this document with shard, in any order.
+     */
+    public void join(List<KAFDocument> shards) {
+	List<KAFDocument> sorted = new ArrayList<KAFDocument>(shards);
+	for (KAFDocument shard : sorted) {
+	    if ((shard.shardInfo == null) || (shard.shardInfo.document != this)) {
+		throw new IllegalArgumentException("Only shards taken from this document and not joined yet can be joined to it");
+	    }
+	    if ((shard.getWFs().size() != shard.shardInfo.numWFs) || (shard.getTerms().size() != shard.shardInfo.numTerms)) {
+		throw new IllegalStateException("The text and terms layers of shard " + shard.shardInfo.index + " have changed. They are shared with the document and can't be joined.");
+	    }
+	}
+	Collections.sort(sorted, new Comparator<KAFDocument>() {
+		public int compare(KAFDocument shard1, KAFDocument shard2) {
+		    return shard1.shardInfo.index - shard2.shardInfo.index;
+		}
+	    });
+	for (int i = 1; i < sorted.size(); i++) {
+	    if (sorted.get(i) == sorted.get(i - 1)) {
+		throw new IllegalArgumentException("Shard " + sorted.get(i).shardInfo.index + " is given twice");
+	    }
+	}
+	for (KAFDocument shard : sorted) {
+	    for (Dep dep : shard.getDeps()) {
+		insertDep(dep);
+	    }
+	    for (Chunk chunk : shard.getChunks()) {
+		insertChunk(chunk);
+	    }
+	    for (Entity entity : shard.getEntities()) {
+		insertEntity(entity);
+	    }
+	    for (Coref coref : shard.getCorefs()) {
+		insertCoref(coref);
+	    }
+	    for (Feature property : shard.getProperties()) {
+		insertProperty(property);
+	    }
+	    for (Feature category : shard.getCategories()) {
+		insertCategory(category);
+	    }
+	    for (Opinion opinion : shard.getOpinions()) {
+		insertOpinion(opinion);
+	    }
+	    for (Relation relation : shard.getRelations()) {
+		insertRelation(relation);
+	    }
+	    for (Predicate predicate : shard.getPredicates()) {
+		insertPredicate(predicate);
+	    }
+	    for (Tree tree : shard.getConstituents()) {
+		insertTree(tree);
+	    }
+	    shard.shardInfo = null;
+	}
+    }
+
+    /** Saves the KAF document to an XML file. If the name ends with ".gz", as "doc.kaf.gz", the file is compressed with gzip.
      * @param filename name of the file in which the document will be saved.
      */
     public void save(String filename) {
-	ReadWriteManager.save(this, filename);
+	ReadWriteManager.save(this, filename, new SaveOptions());
+    }
+
+    /** Saves the KAF document to an XML file with the given options. If the name ends with ".gz" the file is compressed with gzip, using as many threads as the options say.
+     * @param filename name of the file in which the document will be saved.
+     * @param options comments, indentation, line separator and compression of the output.
+     */
+    public void save(String filename, SaveOptions options) {
+	ReadWriteManager.save(this, filename, options);
+    }
+
+    /** Writes the KAF document to an output stream, encoded in UTF-8. The document is written as it is serialized, without building it in memory first. The stream is flushed but not closed, so it can be a socket or a channel (see java.nio.channels.Channels.newOutputStream).
+     * @param out the stream to write the document to.
+     */
+    public void save(OutputStream out) throws IOException {
+	ReadWriteManager.save(this, out, new SaveOptions());
+    }
+
+    /** Writes the KAF document to an output stream with the given options, as in save(OutputStream).
+     * @param out the stream to write the document to.
+     * @param options comments, indentation, line separator and compression of the output.
+     */
+    public void save(OutputStream out, SaveOptions options) throws IOException {
+	ReadWriteManager.save(this, out, options);
+    }
+
+    /** Saves the KAF document as a binary snapshot, which can be loaded with createFromSnapshot. Snapshots keep the whole document, including the layers kept as raw XML, and are meant to pass documents between processing steps: use save to write KAF files for other tools.
+     * @param file the file to write the snapshot to.
+     */
+    public void saveSnapshot(File file) throws IOException {
+	OutputStream out = new FileOutputStream(file);
+	try {
+	    saveSnapshot(out);
+	} finally {
+	    out.close();
+	}
+    }
+
+    /** Writes the KAF document as a binary snapshot to an output stream. The stream is flushed but not closed.
+     * @param out the stream to write the snapshot to.
+     */
+    public void saveSnapshot(OutputStream out) throws IOException {
+	SnapshotManager.save(this, out);
     }
 
     public String toString() {
-	return ReadWriteManager.kafToStr(this);
+	return ReadWriteManager.kafToStr(this, new SaveOptions());
+    }
+
+    /** Returns the XML content of the document, serialized with the given options. */
+    public String toString(SaveOptions options) {
+	return ReadWriteManager.kafToStr(this, options);
     }
 
     /** Prints the document on standard output. */
     public void print() {
-	ReadWriteManager.print(this);
+	ReadWriteManager.print(this, new SaveOptions());
+    }
+
+    /** Prints the document on standard output with the given options. */
+    public void print(SaveOptions options) {
+	ReadWriteManager.print(this, options);
     }
 
     
@@ -1141,6 +1856,27 @@ public Entity newEntity(List<Span<Term>> references) {
 	this.annotationContainer.removeLayer(layer);
     }
 
+    /** Reserves a block of consecutive IDs of the given type. Threads annotating different sentences of the document in parallel can each reserve a block, in sentence order, and create their annotations with IDs from it, without contending for a shared counter on each annotation. Reserving blocks in sentence order makes the IDs follow the order of the document.
+     * @param type the type of the IDs.
+     * @param count the number of IDs in the block.
+     * @return the block of IDs.
+     */
+    public IdBlock reserveIds(IdType type, int count) {
+	if (count < 1) {
+	    throw new IllegalArgumentException("At least one ID must be reserved");
+	}
+	return new IdBlock(type, idManager.reserve(type, count), count);
+    }
+
+    /** Renumbers the annotations of a layer from 1, in the order of their current IDs, and sorts the layer in that order. This closes the gaps left by IDs reserved with reserveIds and not used. Term components keep their numbers under the new ID of their term; the nodes of constituency trees are renumbered in tree order. Annotations refer to each other directly, so no other layer has to change.
+     * <p>
+     * It must be called once the threads annotating the layer are done, as IDs left in their blocks would clash with the renumbered ones. Layers which other layers refer to (text, terms, entities, properties and categories) can't be renumbered if the document has layers kept as raw XML.
+     * @param layer the layer whose annotations are renumbered. The deps layer has no IDs.
+     */
+    public void compactIds(Layer layer) {
+	this.annotationContainer.compactIds(layer, idManager);
+    }
+
     /** Converts a List into a Span */
     static <T> Span<T> list2Span(List<T> list) {
 	Span<T> span = new Span<T>();
@@ -243,6 +243,8 @@ public class Opinion {
 
     private OpinionExpression opinionExpression;
 
+    /** Container the opinion was added to, told when the opinion is given a holder, target or expression so that it drops its index of opinions by term */
+    AnnotationContainer annotationContainer;
 
     Opinion(String id) {
 	this.id = id;
@@ -281,30 +283,32 @@ public class Opinion {
 	return opinionExpression;
     }
 
+    private void changed() {
+	if (annotationContainer != null) {
+	    annotationContainer.opinionChanged();
+	}
+    }
+
     public OpinionHolder createOpinionHolder(Span<Term> span) {
 	this.opinionHolder = new Opinion.OpinionHolder(span);
+	changed();
 	return this.opinionHolder;
     }
 
     public OpinionTarget createOpinionTarget(Span<Term> span) {
 	this.opinionTarget = new Opinion.OpinionTarget(span);
+	changed();
 	return this.opinionTarget;
     }
 
     public OpinionExpression createOpinionExpression(Span<Term> span) {
 	this.opinionExpression = new Opinion.OpinionExpression(span);
+	changed();
 	return this.opinionExpression;
     }
 
     public String getSpanStr(Span<Term> span) {
-	String str = "";
-	for (Term term : span.getTargets()) {
-	    if (!str.isEmpty()) {
-		str += " ";
-	    }
-	    str += term.getStr();
-	}
-	return str;
+	return Term.getStr(span.getTargets());
     }
 
     public String getStr() {
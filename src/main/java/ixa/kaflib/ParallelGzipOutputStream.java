@@ -0,0 +1,142 @@
+package ixa.kaflib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+
+/** Compresses its output with gzip using several threads, in the way of pigz. The data is split in blocks which are compressed independently and written, in order, as consecutive gzip members. Any gzip reader decompresses them as a single stream (GZIPInputStream does since Java 7). Data written is only complete after finish or close: flush only writes the blocks already compressed. */
+class ParallelGzipOutputStream extends FilterOutputStream {
+
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    private ExecutorService executor;
+
+    /** Blocks being compressed, in output order */
+    private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+    /** Maximum number of blocks kept in memory while they are compressed or wait to be written */
+    private int maxPending;
+
+    /** Block being filled */
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int count = 0;
+
+    private boolean finished = false;
+
+    ParallelGzipOutputStream(OutputStream out, int threads) {
+	super(out);
+	this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread thread = new Thread(r, "kaflib-gzip");
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+	this.maxPending = threads * 2;
+    }
+
+    public void write(int b) throws IOException {
+	block[count++] = (byte) b;
+	if (count == BLOCK_SIZE) {
+	    submitBlock();
+	}
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+	while (len > 0) {
+	    int n = Math.min(len, BLOCK_SIZE - count);
+	    System.arraycopy(b, off, block, count, n);
+	    count += n;
+	    off += n;
+	    len -= n;
+	    if (count == BLOCK_SIZE) {
+		submitBlock();
+	    }
+	}
+    }
+
+    /** Writes the blocks which are already compressed and flushes the underlying stream. The block being filled is kept, so that flushing often doesn't produce small gzip members. */
+    public void flush() throws IOException {
+	while (!pending.isEmpty() && pending.getFirst().isDone()) {
+	    writeNext();
+	}
+	out.flush();
+    }
+
+    /** Compresses and writes the remaining data without closing the underlying stream. */
+    void finish() throws IOException {
+	if (finished) {
+	    return;
+	}
+	try {
+	    if (count > 0) {
+		submitBlock();
+	    }
+	    while (!pending.isEmpty()) {
+		writeNext();
+	    }
+	    out.flush();
+	} finally {
+	    finished = true;
+	    executor.shutdownNow();
+	}
+    }
+
+    /** Stops compressing without writing the rest of the data. Used when writing fails, so no thread is left behind. */
+    void abort() {
+	finished = true;
+	executor.shutdownNow();
+    }
+
+    public void close() throws IOException {
+	try {
+	    finish();
+	} finally {
+	    out.close();
+	}
+    }
+
+    private void submitBlock() throws IOException {
+	final byte[] data = block;
+	final int length = count;
+	pending.add(executor.submit(new Callable<byte[]>() {
+		public byte[] call() throws IOException {
+		    ByteArrayOutputStream member = new ByteArrayOutputStream(length / 4 + 64);
+		    GZIPOutputStream gzip = new GZIPOutputStream(member, 65536);
+		    gzip.write(data, 0, length);
+		    gzip.close();
+		    return member.toByteArray();
+		}
+	    }));
+	block = new byte[BLOCK_SIZE];
+	count = 0;
+	while (pending.size() >= maxPending) {
+	    writeNext();
+	}
+    }
+
+    /** Waits for the first pending block to be compressed and writes it */
+    private void writeNext() throws IOException {
+	Future<byte[]> next = pending.removeFirst();
+	try {
+	    out.write(next.get());
+	} catch (InterruptedException e) {
+	    throw new InterruptedIOException("Interrupted while compressing");
+	} catch (ExecutionException e) {
+	    IOException ioe = new IOException("Error compressing: " + e.getCause());
+	    ioe.initCause(e.getCause());
+	    throw ioe;
+	}
+    }
+}
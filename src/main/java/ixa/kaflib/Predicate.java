@@ -53,14 +53,7 @@ public class Predicate {
 	}
 
 	public String getStr() {
-	    String str = "";
-	    for (Term term : this.span.getTargets()) {
-		if (!str.isEmpty()) {
-		    str += " ";
-		}
-		str += term.getStr();
-	    }
-	    return str;
+	    return Term.getStr(this.span.getTargets());
 	}
     }
 
@@ -69,6 +62,9 @@ public class Predicate {
     private Span<Term> span;
     private List<Role> roles;
 
+    /** Container the predicate was added to, told when a role is added so that it drops its index of roles by term */
+    AnnotationContainer annotationContainer;
+
     Predicate(String id, Span<Term> span) {
 	this.id = id;
 	this.span = span;
@@ -116,30 +112,23 @@ public class Predicate {
     }
 
     public String getStr() {
-	String str = "";
+	StringBuilder sb = new StringBuilder();
 	if (!this.span.isEmpty()) {
 	    Term target = this.span.getFirstTarget();
-	    str += target.getId() + " " + target.getStr() + " ";
+	    sb.append(target.getId()).append(' ').append(target.getStr()).append(' ');
 	}
-	str += ":";
+	sb.append(':');
 	for (Role role : this.roles) {
 	    if (!role.span.isEmpty()) {
 		Term roleTarget = role.getSpan().getFirstTarget();
-		str += " " + role.getSemRole() + "[" + roleTarget.getId() + " " + roleTarget.getStr() + "]";
+		sb.append(' ').append(role.getSemRole()).append('[').append(roleTarget.getId()).append(' ').append(roleTarget.getStr()).append(']');
 	    }
 	}
-	return str;
+	return sb.toString();
     }
 
     public String getSpanStr() {
-	String str = "";
-	for (Term term : this.span.getTargets()) {
-	    if (!str.isEmpty()) {
-		str += " ";
-	    }
-	    str += term.getStr();
-	}
-	return str;
+	return Term.getStr(this.span.getTargets());
     }
 
     public List<Role> getRoles() {
@@ -148,5 +137,8 @@ public class Predicate {
 
     public void addRole(Role role) {
 	this.roles.add(role);
+	if (annotationContainer != null) {
+	    annotationContainer.roleAdded();
+	}
     }
 }
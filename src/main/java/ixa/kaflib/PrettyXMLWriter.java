@@ -0,0 +1,250 @@
+package ixa.kaflib;
+
+import java.io.Writer;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+
+/** Writes indented XML element by element, as soon as the content is given, instead of building a tree first. The output follows the layout of JDOM's pretty format: two spaces of indentation, text trimmed and written inline, and empty elements closed with " />". Indentation and comments can be turned off with SaveOptions. */
+class PrettyXMLWriter {
+
+    private static final String INDENT = "  ";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Writer writer;
+
+    /** Stream the writer writes to, used to copy raw UTF-8 content without decoding it. It can be null. */
+    private OutputStream stream;
+
+    private String lineSeparator;
+
+    /** Write comments and indentation */
+    private boolean comments;
+    private boolean pretty;
+
+    /** Names of the open elements */
+    private String[] elems = new String[16];
+    private int depth = 0;
+
+    /** True if the start tag of the current element is not closed yet */
+    private boolean startTagOpen = false;
+
+    /** True if the current element contains child nodes, which are written in their own lines */
+    private boolean hasChildNodes = false;
+
+    /** Creates a writer that writes to the given Writer. If the Writer encodes into an OutputStream in UTF-8, the stream can be given too, so raw content is copied to it directly. */
+    PrettyXMLWriter(Writer writer, OutputStream stream, SaveOptions options) {
+	this.writer = writer;
+	this.stream = stream;
+	this.lineSeparator = options.getLineSeparator();
+	this.comments = options.getComments();
+	this.pretty = options.getPretty();
+    }
+
+    /** Returns false if comments are not written, so callers can skip building them */
+    boolean writesComments() {
+	return comments;
+    }
+
+    void startDocument() throws IOException {
+	writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+	writer.write(lineSeparator);
+    }
+
+    void endDocument() throws IOException {
+	writer.write(lineSeparator);
+	writer.flush();
+    }
+
+    void startElement(String name) throws IOException {
+	startChildNode();
+	writer.write('<');
+	writer.write(name);
+	if (depth == elems.length) {
+	    String[] newElems = new String[depth * 2];
+	    System.arraycopy(elems, 0, newElems, 0, depth);
+	    elems = newElems;
+	}
+	elems[depth++] = name;
+	startTagOpen = true;
+	hasChildNodes = false;
+    }
+
+    /** Writes a required attribute of the current element. A null value throws IllegalArgumentException, as the element couldn't be loaded back without it. */
+    void attribute(String name, String value) throws IOException {
+	if (value == null) {
+	    throw new IllegalArgumentException("Attribute " + name + " of element " + elems[depth - 1] + " must be defined");
+	}
+	optAttribute(name, value);
+    }
+
+    /** Writes an optional attribute of the current element. Null values are not written. */
+    void optAttribute(String name, String value) throws IOException {
+	if (!startTagOpen) {
+	    throw new IllegalStateException("Attribute " + name + " written after the content of element " + elems[depth - 1]);
+	}
+	if (value == null) {
+	    return;
+	}
+	writer.write(' ');
+	writer.write(name);
+	writer.write("=\"");
+	escapeAttribute(value);
+	writer.write('"');
+    }
+
+    void endElement() throws IOException {
+	String name = elems[--depth];
+	elems[depth] = null;
+	if (startTagOpen) {
+	    writer.write(" />");
+	    startTagOpen = false;
+	}
+	else {
+	    if (hasChildNodes) {
+		newLine(depth);
+	    }
+	    writer.write("</");
+	    writer.write(name);
+	    writer.write('>');
+	}
+	// The parent element contains at least this one
+	hasChildNodes = true;
+    }
+
+    /** Writes the text content of the current element, which mustn't contain child elements. Leading and trailing whitespace is trimmed. */
+    void text(String text) throws IOException {
+	text = trim(text);
+	if (text.length() == 0) {
+	    return;
+	}
+	closeStartTag();
+	escapeText(text);
+    }
+
+    /** Writes a CDATA section as the content of the current element, which mustn't contain child elements. */
+    void cdata(String text) throws IOException {
+	text = trim(text);
+	if (text.length() == 0) {
+	    return;
+	}
+	closeStartTag();
+	writer.write("<![CDATA[");
+	writer.write(text.replace("]]>", "]]]]><![CDATA[>"));
+	writer.write("]]>");
+    }
+
+    /** Writes a comment in its own line, unless comments are turned off. Sequences of hyphens, which aren't allowed in comments, are separated by spaces. */
+    void comment(String text) throws IOException {
+	if (!comments) {
+	    return;
+	}
+	startChildNode();
+	writer.write("<!--");
+	if (text.indexOf("--") >= 0) {
+	    text = text.replace("--", "- -").replace("--", "- -");
+	}
+	writer.write(text);
+	if (text.endsWith("-")) {
+	    writer.write(' ');
+	}
+	writer.write("-->");
+	hasChildNodes = true;
+    }
+
+    /** Writes an already serialized element, encoded in UTF-8, in its own line. The content is copied as is. */
+    void raw(byte[] xml) throws IOException {
+	startChildNode();
+	if (stream != null) {
+	    writer.flush();
+	    stream.write(xml);
+	}
+	else {
+	    writer.write(new String(xml, UTF8));
+	}
+	hasChildNodes = true;
+    }
+
+    /** Closes the start tag of the current element, if needed, and moves to a new line with the indentation of a child node. */
+    private void startChildNode() throws IOException {
+	closeStartTag();
+	if (depth > 0) {
+	    newLine(depth);
+	}
+    }
+
+    private void closeStartTag() throws IOException {
+	if (startTagOpen) {
+	    writer.write('>');
+	    startTagOpen = false;
+	}
+    }
+
+    private void newLine(int level) throws IOException {
+	if (!pretty) {
+	    return;
+	}
+	writer.write(lineSeparator);
+	for (int i = 0; i < level; i++) {
+	    writer.write(INDENT);
+	}
+    }
+
+    private void escapeText(String text) throws IOException {
+	int start = 0;
+	for (int i = 0; i < text.length(); i++) {
+	    String entity;
+	    switch (text.charAt(i)) {
+	    case '&': entity = "&amp;"; break;
+	    case '<': entity = "&lt;"; break;
+	    case '>': entity = "&gt;"; break;
+	    case '\r': entity = "&#xD;"; break;
+	    case '\n': entity = lineSeparator; break;
+	    default: continue;
+	    }
+	    writer.write(text, start, i - start);
+	    writer.write(entity);
+	    start = i + 1;
+	}
+	writer.write(text, start, text.length() - start);
+    }
+
+    private void escapeAttribute(String value) throws IOException {
+	int start = 0;
+	for (int i = 0; i < value.length(); i++) {
+	    String entity;
+	    switch (value.charAt(i)) {
+	    case '&': entity = "&amp;"; break;
+	    case '<': entity = "&lt;"; break;
+	    case '>': entity = "&gt;"; break;
+	    case '"': entity = "&quot;"; break;
+	    case '\r': entity = "&#xD;"; break;
+	    case '\n': entity = "&#xA;"; break;
+	    case '\t': entity = "&#x9;"; break;
+	    default: continue;
+	    }
+	    writer.write(value, start, i - start);
+	    writer.write(entity);
+	    start = i + 1;
+	}
+	writer.write(value, start, value.length() - start);
+    }
+
+    /** Removes XML whitespace from both ends of a string */
+    private static String trim(String text) {
+	int start = 0;
+	int end = text.length();
+	while (start < end && isWhitespace(text.charAt(start))) {
+	    start++;
+	}
+	while (end > start && isWhitespace(text.charAt(end - 1))) {
+	    end--;
+	}
+	return text.substring(start, end);
+    }
+
+    private static boolean isWhitespace(char c) {
+	return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
@@ -1,15 +1,5 @@
 package ixa.kaflib;
 
-import org.jdom2.Document;
-import org.jdom2.Element;
-import org.jdom2.Comment;
-import org.jdom2.Namespace;
-import org.jdom2.CDATA;
-import org.jdom2.output.XMLOutputter;
-import org.jdom2.output.Format;
-import org.jdom2.output.LineSeparator;
-import org.jdom2.input.SAXBuilder;
-import org.jdom2.JDOMException;
 import org.jdom2.xpath.XPathExpression;
 import java.util.List;
 import java.util.ArrayList;
@@ -19,782 +9,1189 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.EnumSet;
 import java.io.File;
+import java.io.InputStream;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.Writer;
 import java.io.Reader;
-import java.io.BufferedWriter;
 import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.io.BufferedOutputStream;
+import java.io.StringWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.nio.charset.Charset;
-import java.util.regex.*;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /** Reads XML files in KAF format and loads the content in a KAFDocument object, and writes the content into XML files. */
 class ReadWriteManager {
     
+    /** Factory of the pull parsers used to load documents. XMLInputFactory is not guaranteed to be thread-safe, so each thread keeps its own instance. */
+    private static final ThreadLocal<XMLInputFactory> inputFactory = new ThreadLocal<XMLInputFactory>() {
+	protected XMLInputFactory initialValue() {
+	    XMLInputFactory factory = XMLInputFactory.newInstance();
+	    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+	    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	    return factory;
+	}
+    };
+    
     /** Loads the content of a KAF file into the given KAFDocument object */
-    static KAFDocument load(File file) throws IOException, JDOMException, KAFNotValidException {
-	SAXBuilder builder = new SAXBuilder();
-	Document document = (Document) builder.build(file);
-	Element rootElem = document.getRootElement();
-	return DOMToKAF(document);
+    static KAFDocument load(File file) throws IOException, XMLStreamException, KAFNotValidException {
+	return load(file, null);
     }
 
     /** Loads the content of a String in KAF format into the given KAFDocument object */
-    static KAFDocument load(Reader stream) throws IOException, JDOMException, KAFNotValidException {
-	SAXBuilder builder = new SAXBuilder();
-	Document document = (Document) builder.build(stream);
-	Element rootElem = document.getRootElement();
-	return DOMToKAF(document);
+    static KAFDocument load(Reader stream) throws IOException, XMLStreamException, KAFNotValidException {
+	return load(stream, null);
+    }
+
+    /** Loads the given layers of a KAF file into a new KAFDocument object. The rest of the layers are kept as raw XML. A null set loads every layer. */
+    static KAFDocument load(File file, Set<KAFDocument.Layer> layers) throws IOException, XMLStreamException, KAFNotValidException {
+	InputStream in = openFile(file, 65536);
+	try {
+	    // Skipped layers are cut out of the byte stream before reaching the parser, so they are neither tokenized nor decoded
+	    LayerFilter filter = null;
+	    if ((layers != null) && LayerFilter.canFilter(in)) {
+		Set<String> skippedElems = new HashSet<String>(LAYER_ELEMS);
+		skippedElems.removeAll(getLayerElemsToParse(layers));
+		filter = new LayerFilter(in, skippedElems);
+		in = filter;
+	    }
+	    XMLStreamReader reader = inputFactory.get().createXMLStreamReader(in);
+	    try {
+		KAFDocument kaf = streamToKAF(reader, layers);
+		if (filter != null) {
+		    String encoding = reader.getCharacterEncodingScheme();
+		    Charset charset = (encoding == null) ? UTF8 : Charset.forName(encoding);
+		    for (Map.Entry<String, byte[]> rawLayer : filter.getSkippedElems().entrySet()) {
+			byte[] xml = rawLayer.getValue();
+			if (!charset.equals(UTF8)) {
+			    xml = new String(xml, charset).getBytes(UTF8);
+			}
+			kaf.getAnnotationContainer().addRawLayer(rawLayer.getKey(), xml);
+		    }
+		}
+		return kaf;
+	    } finally {
+		reader.close();
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** Loads the given layers of KAF content read from a Reader into a new KAFDocument object. The rest of the layers are kept as raw XML. A null set loads every layer. */
+    static KAFDocument load(Reader stream, Set<KAFDocument.Layer> layers) throws IOException, XMLStreamException, KAFNotValidException {
+	XMLStreamReader reader = inputFactory.get().createXMLStreamReader(stream);
+	try {
+	    return streamToKAF(reader, layers);
+	} finally {
+	    reader.close();
+	}
     }
 
-    /** Writes the content of a given KAFDocument to a file. */
-    static void save(KAFDocument kaf, String filename) {
+    /** Loads the header of a KAF file, its language and version into a new KAFDocument object. Parsing stops after the header. */
+    static KAFDocument loadHeader(File file) throws IOException, XMLStreamException, KAFNotValidException {
+	InputStream in = openFile(file, 4096);
 	try {
-	    File file = new File(filename);
-	    Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF8"));
-	    out.write(kafToStr(kaf));
-	    out.flush();
+	    // The header comes first, so there is nothing to cut out before it
+	    XMLStreamReader reader = inputFactory.get().createXMLStreamReader(in);
+	    try {
+		moveToRootElement(reader);
+		String lang = getAttribute("lang", reader, XMLConstants.XML_NS_URI);
+		String kafVersion = getAttribute("version", reader);
+		KAFDocument kaf = new KAFDocument(lang, kafVersion);
+		if (nextChild(reader) && reader.getLocalName().equals("kafHeader")) {
+		    readHeader(reader, kaf);
+		}
+		return kaf;
+	    } finally {
+		reader.close();
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** Returns the names of the top-level elements following the header of a KAF file, in document order. The file is scanned as bytes, without parsing its content, but it is read to the end. */
+    static List<String> loadLayerNames(File file) throws IOException, XMLStreamException, KAFNotValidException {
+	InputStream in = openFile(file, 65536);
+	try {
+	    List<String> names = new ArrayList<String>();
+	    if (LayerFilter.canFilter(in)) {
+		Set<String> skippedElems = new HashSet<String>(LAYER_ELEMS);
+		skippedElems.add("raw");
+		LayerFilter filter = new LayerFilter(in, skippedElems, false);
+		byte[] buf = new byte[8192];
+		while (filter.read(buf, 0, buf.length) != -1) {
+		}
+		names.addAll(filter.getTopLevelElems());
+	    }
+	    else {
+		XMLStreamReader reader = inputFactory.get().createXMLStreamReader(in);
+		try {
+		    moveToRootElement(reader);
+		    while (nextChild(reader)) {
+			names.add(reader.getLocalName());
+			skipElement(reader);
+		    }
+		} finally {
+		    reader.close();
+		}
+	    }
+	    names.remove("kafHeader");
+	    return names;
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** Opens a KAF file for reading, decompressing it if it's compressed with gzip. Compressed files are recognized by their first bytes rather than by their name. The returned stream supports mark and reset. */
+    static InputStream openFile(File file, int bufferSize) throws IOException {
+	InputStream in = new BufferedInputStream(new FileInputStream(file), bufferSize);
+	try {
+	    in.mark(2);
+	    int b1 = in.read();
+	    int b2 = in.read();
+	    in.reset();
+	    if ((b1 == 0x1f) && (b2 == 0x8b)) {
+		in = new BufferedInputStream(new GZIPInputStream(in, 65536), bufferSize);
+	    }
+	    return in;
+	} catch (IOException e) {
+	    in.close();
+	    throw e;
+	}
+    }
+
+    /** Opens a pull parser over the given KAF input, positioned at the start tag of the root element. Every top-level element but the given one is cut out of the input before parsing, so going past the rest of the layers takes little time. */
+    static XMLStreamReader openLayer(InputStream in, String elemName) throws IOException, XMLStreamException, KAFNotValidException {
+	if (!in.markSupported()) {
+	    in = new BufferedInputStream(in);
+	}
+	if (LayerFilter.canFilter(in)) {
+	    Set<String> skippedElems = new HashSet<String>(LAYER_ELEMS);
+	    skippedElems.add("raw");
+	    skippedElems.add("kafHeader");
+	    skippedElems.remove(elemName);
+	    in = new LayerFilter(in, skippedElems, false);
+	}
+	XMLStreamReader reader = inputFactory.get().createXMLStreamReader(in);
+	moveToRootElement(reader);
+	return reader;
+    }
+
+    /** Advances the reader to the start tag of the child of the current element with the given name. Returns false, leaving the reader at the end tag of the current element, if there is no such child. */
+    static boolean moveToChild(XMLStreamReader reader, String elemName) throws XMLStreamException {
+	while (nextChild(reader)) {
+	    if (reader.getLocalName().equals(elemName)) {
+		return true;
+	    }
+	    skipElement(reader);
+	}
+	return false;
+    }
+
+    /** Writes the content of a given KAFDocument to a file. The file is compressed with gzip if its name ends with ".gz" or the options say so. */
+    static void save(KAFDocument kaf, String filename, SaveOptions options) {
+	try {
+	    OutputStream out = new FileOutputStream(new File(filename));
+	    try {
+		save(kaf, out, options, options.getGzip() || filename.endsWith(".gz"));
+	    } finally {
+		out.close();
+	    }
 	} catch (Exception e) {
 	    System.out.println("Error writing to file");
 	}
     }
 
+    /** Writes the content of a given KAFDocument to an output stream, encoded in UTF-8. The stream is flushed but not closed. */
+    static void save(KAFDocument kaf, OutputStream stream, SaveOptions options) throws IOException {
+	save(kaf, stream, options, options.getGzip());
+    }
+
+    private static void save(KAFDocument kaf, OutputStream stream, SaveOptions options, boolean gzip) throws IOException {
+	if (!gzip) {
+	    write(kaf, stream, options);
+	}
+	else if (options.getGzipThreads() == 1) {
+	    // finish writes the gzip trailer without closing the caller's stream
+	    GZIPOutputStream gzipStream = new GZIPOutputStream(stream, 65536);
+	    write(kaf, gzipStream, options);
+	    gzipStream.finish();
+	    stream.flush();
+	}
+	else {
+	    ParallelGzipOutputStream gzipStream = new ParallelGzipOutputStream(stream, options.getGzipThreads());
+	    boolean written = false;
+	    try {
+		write(kaf, gzipStream, options);
+		gzipStream.finish();
+		written = true;
+	    } finally {
+		if (!written) {
+		    gzipStream.abort();
+		}
+	    }
+	}
+    }
+
+    private static void write(KAFDocument kaf, OutputStream stream, SaveOptions options) throws IOException {
+	OutputStream out = new BufferedOutputStream(stream, 65536);
+	Writer writer = new OutputStreamWriter(out, UTF8);
+	writeKAF(kaf, new PrettyXMLWriter(writer, out, options));
+	out.flush();
+    }
+
     /** Writes the content of a KAFDocument object to standard output. */
-    static void print(KAFDocument kaf) {
+    static void print(KAFDocument kaf, SaveOptions options) {
 	try {
-	    Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF8"));
-	    out.write(kafToStr(kaf));
-	    out.flush();
+	    save(kaf, System.out, options);
 	} catch (Exception e) {
 	    System.out.println(e);
 	}
     }
 
     /** Returns a string containing the XML content of a KAFDocument object. */
-    static String kafToStr(KAFDocument kaf) {
-	XMLOutputter out = new XMLOutputter(Format.getPrettyFormat().setLineSeparator(LineSeparator.UNIX));
-	Document jdom = KAFToDOM(kaf);
-	return out.outputString(jdom);
+    static String kafToStr(KAFDocument kaf, SaveOptions options) {
+	StringWriter out = new StringWriter();
+	try {
+	    writeKAF(kaf, new PrettyXMLWriter(out, null, options));
+	} catch (IOException e) {
+	    // StringWriter doesn't throw IOException
+	    throw new IllegalStateException(e);
+	}
+	return out.toString();
     }
 
-    /** Loads a KAFDocument object from XML content in DOM format */
-    private static KAFDocument DOMToKAF(Document dom) throws KAFNotValidException {
+    /** Loads a KAFDocument object pulling the XML content from the given StAX reader. No intermediate DOM is built: every object is created as soon as its element has been read. Layer elements not needed for the given layers are not parsed, but stored as raw XML in the document. */
+    private static KAFDocument streamToKAF(XMLStreamReader reader, Set<KAFDocument.Layer> layers) throws XMLStreamException, KAFNotValidException {
 	HashMap<String, WF> wfIndex = new HashMap<String, WF>();
 	HashMap<String, Term> termIndex = new HashMap<String, Term>();
 	HashMap<String, Relational> relationalIndex = new HashMap<String, Relational>();
-	Element rootElem = dom.getRootElement();
-	String lang = getAttribute("lang", rootElem, Namespace.XML_NAMESPACE);
-	String kafVersion = getAttribute("version", rootElem);
+	moveToRootElement(reader);
+	String lang = getAttribute("lang", reader, XMLConstants.XML_NS_URI);
+	String kafVersion = getAttribute("version", reader);
 	KAFDocument kaf = new KAFDocument(lang, kafVersion);
+	Set<String> layerElems = getLayerElemsToParse(layers);
 
-	List<Element> rootChildrenElems = rootElem.getChildren();
-	for (Element elem : rootChildrenElems) {
-	    if (elem.getName().equals("kafHeader")) {
-		List<Element> lpsElems = elem.getChildren("linguisticProcessors");
-		for (Element lpsElem : lpsElems) {
-		    String layer = getAttribute("layer", lpsElem);
-		    List<Element> lpElems = lpsElem.getChildren();
-		    for (Element lpElem : lpElems) {
-			String name = getAttribute("name", lpElem);
-			KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(layer, name);
-			String timestamp = getOptAttribute("timestamp", lpElem);
-			if (timestamp != null) {
-			    newLp.setTimestamp(timestamp);
-			}
-			String beginTimestamp = getOptAttribute("beginTimestamp", lpElem);
-			if (beginTimestamp != null) {
-			    newLp.setBeginTimestamp(beginTimestamp);
-			}
-			String endTimestamp = getOptAttribute("endTimestamp", lpElem);
-			if (endTimestamp != null) {
-			    newLp.setEndTimestamp(endTimestamp);
-			}
-			String version = getOptAttribute("version", lpElem);
-			if (version != null) {
-			    newLp.setVersion(version);
-			}
-		    }
+	while (nextChild(reader)) {
+	    String name = reader.getLocalName();
+	    if (LAYER_ELEMS.contains(name) && !layerElems.contains(name)) {
+		kaf.getAnnotationContainer().addRawLayer(name, captureElement(reader).getBytes(UTF8));
+	    }
+	    else if (name.equals("kafHeader")) {
+		readHeader(reader, kaf);
+	    }
+	    else if (name.equals("raw")) {
+		kaf.setRawText(reader.getElementText());
+	    }
+	    else if (name.equals("text")) {
+		while (nextChild(reader)) {
+		    WF newWf = readWF(reader, kaf);
+		    wfIndex.put(newWf.getId(), newWf);
 		}
-		Element fileDescElem = elem.getChild("fileDesc");
-		if (fileDescElem != null) {
-		    KAFDocument.FileDesc fd = kaf.createFileDesc();
-		    String author = getOptAttribute("author", fileDescElem);
-		    if (author != null) {
-			fd.author = author;
-		    }
-		    String title = getOptAttribute("title", fileDescElem);
-		    if (title != null) {
-			fd.title = title;
-		    }
-		    String creationtime = getOptAttribute("creationtime", fileDescElem);
-		    if (creationtime != null) {
-			fd.creationtime = creationtime;
-		    }
-		    String filename = getOptAttribute("filename", fileDescElem);
-		    if (filename != null) {
-			fd.filename = filename;
-		    }
-		    String filetype = getOptAttribute("filetype", fileDescElem);
-		    if (filetype != null) {
-			fd.filetype = filetype;
-		    }
-		    String pages = getOptAttribute("pages", fileDescElem);
-		    if (pages != null) {
-			fd.pages = Integer.parseInt(pages);
-		    }
+	    }
+	    else if (name.equals("terms")) {
+		while (nextChild(reader)) {
+		    Term newTerm = readTerm(reader, kaf, wfIndex);
+		    termIndex.put(newTerm.getId(), newTerm);
 		}
-		Element publicElem = elem.getChild("public");
-		if (publicElem != null) {
-		    String publicId = getAttribute("publicId", publicElem);
-		    KAFDocument.Public pub = kaf.createPublic(publicId);
-		    String uri = getOptAttribute("uri", publicElem);
-		    if (uri != null) {
-			pub.uri = uri;
-		    }
+	    }
+	    else if (name.equals("deps")) {
+		while (nextChild(reader)) {
+		    readDep(reader, kaf, termIndex);
 		}
 	    }
-	    if (elem.getName().equals("raw")) {
-		kaf.setRawText(elem.getText());
+	    else if (name.equals("chunks")) {
+		while (nextChild(reader)) {
+		    readChunk(reader, kaf, termIndex);
+		}
 	    }
-	    if (elem.getName().equals("text")) {
-		List<Element> wfElems = elem.getChildren();
-		for (Element wfElem : wfElems) {
-		    String wid = getAttribute("wid", wfElem);
-		    String wForm = wfElem.getText();
-		    String wSent = getOptAttribute("sent", wfElem);
-		    WF newWf = kaf.newWF(wid, wForm, Integer.valueOf(wSent));
-		    String wPara = getOptAttribute("para", wfElem);
-		    if (wPara != null) {
-			newWf.setPara(Integer.valueOf(wPara));
-		    }
-		    String wPage = getOptAttribute("page", wfElem);
-		    if (wPage != null) {
-			newWf.setPage(Integer.valueOf(wPage));
-		    }
-		    String wOffset = getOptAttribute("offset", wfElem);
-		    if (wOffset != null) {
-			newWf.setOffset(Integer.valueOf(wOffset));
-		    }
-		    String wLength = getOptAttribute("length", wfElem);
-		    if (wLength != null) {
-			newWf.setLength(Integer.valueOf(wLength));
-		    }
-		    String wXpath = getOptAttribute("xpath", wfElem);
-		    if (wXpath != null) {
-			newWf.setXpath(wXpath);
-		    }
-		    wfIndex.put(newWf.getId(), newWf);
+	    else if (name.equals("entities")) {
+		while (nextChild(reader)) {
+		    Entity newEntity = readEntity(reader, kaf, termIndex);
+		    relationalIndex.put(newEntity.getId(), newEntity);
 		}
 	    }
-	    if (elem.getName().equals("terms")) {
-		List<Element> termElems = elem.getChildren();
-		for (Element termElem : termElems) {
-		    String tid = getAttribute("tid", termElem);
-		    String type = getAttribute("type", termElem);
-		    String lemma = getAttribute("lemma", termElem);
-		    String pos = getAttribute("pos", termElem);
-		    Element spanElem = termElem.getChild("span");
-		    if (spanElem == null) {
-			throw new IllegalStateException("Every term must contain a span element");
-		    }
-		    List<Element> termsWfElems = spanElem.getChildren("target");
-		    Span<WF> span = kaf.newWFSpan();
-		    for (Element termsWfElem : termsWfElems) {
-			String wfId = getAttribute("id", termsWfElem);
-			boolean isHead = isHead(termsWfElem);
-			WF wf = wfIndex.get(wfId);
-			if (wf == null) {
-			    throw new KAFNotValidException("Wf " + wfId + " not found when loading term " + tid);
-			}
-			span.addTarget(wf, isHead);
-		    }
-		    Term newTerm = kaf.newTerm(tid, type, lemma, pos, span);
-		    String tMorphofeat = getOptAttribute("morphofeat", termElem);
-		    if (tMorphofeat != null) {
-			newTerm.setMorphofeat(tMorphofeat);
-		    }
-		    String tHead = getOptAttribute("head", termElem);
-		    String termcase = getOptAttribute("case", termElem);
-		    if (termcase != null) {
-			newTerm.setCase(termcase);
-		    }
-		    List<Element> sentimentElems = termElem.getChildren("sentiment");
-		    if (sentimentElems.size() > 0) {
-			Element sentimentElem = sentimentElems.get(0);
-			Term.Sentiment newSentiment = kaf.newSentiment();
-			String sentResource = getOptAttribute("resource", sentimentElem);
-			if (sentResource != null) {
-			    newSentiment.setResource(sentResource);
-			}
-			String sentPolarity = getOptAttribute("polarity", sentimentElem);
-			if (sentPolarity != null) {
-			    newSentiment.setPolarity(sentPolarity);
-			}
-			String sentStrength = getOptAttribute("strength", sentimentElem);
-			if (sentStrength != null) {
-			    newSentiment.setStrength(sentStrength);
-			}
-			String sentSubjectivity = getOptAttribute("subjectivity", sentimentElem);
-			if (sentSubjectivity != null) {
-			    newSentiment.setSubjectivity(sentSubjectivity);
-			}
-			String sentSentimentSemanticType = getOptAttribute("sentiment_semantic_type", sentimentElem);
-			if (sentSentimentSemanticType != null) {
-			    newSentiment.setSentimentSemanticType(sentSentimentSemanticType);
-			}
-			String sentSentimentModifier = getOptAttribute("sentiment_modifier", sentimentElem);
-			if (sentSentimentModifier != null) {
-			    newSentiment.setSentimentModifier(sentSentimentModifier);
-			}
-			String sentSentimentMarker = getOptAttribute("sentiment_marker", sentimentElem);
-			if (sentSentimentMarker != null) {
-			    newSentiment.setSentimentMarker(sentSentimentMarker);
-			}
-			String sentSentimentProductFeature = getOptAttribute("sentiment_product_feature", sentimentElem);
-			if (sentSentimentProductFeature != null) {
-			    newSentiment.setSentimentProductFeature(sentSentimentProductFeature);
-			}
-			newTerm.setSentiment(newSentiment);
-		    }
-		    List<Element> termsComponentElems = termElem.getChildren("component");
-		    for (Element termsComponentElem : termsComponentElems) {
-			String compId = getAttribute("id", termsComponentElem);
-			boolean isHead = ((tHead != null) && tHead.equals(compId));
-			String compLemma = getAttribute("lemma", termsComponentElem);
-			String compPos = getAttribute("pos", termsComponentElem);
-			Term.Component newComponent = kaf.newComponent(compId, newTerm, compLemma, compPos);
-			List<Element> externalReferencesElems = termsComponentElem.getChildren("externalReferences");
-			if (externalReferencesElems.size() > 0) {
-			    List<ExternalRef> externalRefs = getExternalReferences(externalReferencesElems.get(0), kaf);
-			    newComponent.addExternalRefs(externalRefs);
+	    else if (name.equals("coreferences")) {
+		while (nextChild(reader)) {
+		    readCoref(reader, kaf, termIndex);
+		}
+	    }
+	    else if (name.equals("features")) {
+		while (nextChild(reader)) {
+		    String featuresName = reader.getLocalName();
+		    if (featuresName.equals("properties") || featuresName.equals("categories")) {
+			boolean isProperty = featuresName.equals("properties");
+			while (nextChild(reader)) {
+			    Feature newFeature = readFeature(reader, kaf, termIndex, isProperty);
+			    relationalIndex.put(newFeature.getId(), newFeature);
 			}
-			newTerm.addComponent(newComponent, isHead);
 		    }
-		    List<Element> externalReferencesElems = termElem.getChildren("externalReferences");
-		    if (externalReferencesElems.size() > 0) {
-			List<ExternalRef> externalRefs = getExternalReferences(externalReferencesElems.get(0), kaf);
-			newTerm.addExternalRefs(externalRefs);
+		    else {
+			skipElement(reader);
 		    }
-		    termIndex.put(newTerm.getId(), newTerm);
 		}
 	    }
-	    if (elem.getName().equals("deps")) {
-		List<Element> depElems = elem.getChildren();
-		for (Element depElem : depElems) {
-		    String fromId = getAttribute("from", depElem);
-		    String toId = getAttribute("to", depElem);
-		    Term from = termIndex.get(fromId);
-		    if (from == null) {
-			    throw new KAFNotValidException("Term " + fromId + " not found when loading Dep (" + fromId + ", " + toId + ")");
-		    }
-		    Term to = termIndex.get(toId);
-		    if (to == null) {
-			throw new KAFNotValidException("Term " + toId + " not found when loading Dep (" + fromId + ", " + toId + ")");
-		    }
-		    String rfunc = getAttribute("rfunc", depElem);
-		    Dep newDep = kaf.newDep(from, to, rfunc);
-		    String depcase = getOptAttribute("case", depElem);
-		    if (depcase != null) {
-			newDep.setCase(depcase);
-		    }
+	    else if (name.equals("opinions")) {
+		while (nextChild(reader)) {
+		    readOpinion(reader, kaf, termIndex);
 		}
 	    }
-	    if (elem.getName().equals("chunks")) {
-		List<Element> chunkElems = elem.getChildren();
-		for (Element chunkElem : chunkElems) {
-		    String chunkId = getAttribute("cid", chunkElem);
-		    String headId = getAttribute("head", chunkElem);
-		    Term chunkHead = termIndex.get(headId);
-		    if (chunkHead == null) {
-			throw new KAFNotValidException("Term " + headId + " not found when loading chunk " + chunkId);
-		    }
-		    String chunkPhrase = getAttribute("phrase", chunkElem);
-		    Element spanElem = chunkElem.getChild("span");
-		    if (spanElem == null) {
-			throw new IllegalStateException("Every chunk must contain a span element");
-		    }
-		    List<Element> chunksTermElems = spanElem.getChildren("target");
-		    Span<Term> span = kaf.newTermSpan();
-		    for (Element chunksTermElem : chunksTermElems) {
-			String termId = getAttribute("id", chunksTermElem);
-			boolean isHead = isHead(chunksTermElem);
-			Term targetTerm = termIndex.get(termId);
-			if (targetTerm == null) {
-			    throw new KAFNotValidException("Term " + termId + " not found when loading chunk " + chunkId);
-			}
-			span.addTarget(targetTerm, ((targetTerm == chunkHead) || isHead));
-		    }
-		    if (!span.hasTarget(chunkHead)) {
-			throw new KAFNotValidException("The head of the chunk is not in it's span.");
-		    }
-		    Chunk newChunk = kaf.newChunk(chunkId, chunkPhrase, span);
-		    String chunkCase = getOptAttribute("case", chunkElem);
-		    if (chunkCase != null) {
-			newChunk.setCase(chunkCase);
-		    }
+	    else if (name.equals("relations")) {
+		while (nextChild(reader)) {
+		    readRelation(reader, kaf, relationalIndex);
 		}
 	    }
-	    if (elem.getName().equals("entities")) {
-		List<Element> entityElems = elem.getChildren();
-		for (Element entityElem : entityElems) {
-		    String entId = getAttribute("eid", entityElem);
-		    String entType = getOptAttribute("type", entityElem);
-		    List<Element> referencesElem = entityElem.getChildren("references");
-		    if (referencesElem.size() < 1) {
-			throw new IllegalStateException("Every entity must contain a 'references' element");
-		    }
-		    List<Element> spanElems = referencesElem.get(0).getChildren();
-		    if (spanElems.size() < 1) {
-			throw new IllegalStateException("Every entity must contain a 'span' element inside 'references'");
+	    else if (name.equals("srl")) {
+		while (nextChild(reader)) {
+		    readPredicate(reader, kaf, termIndex);
+		}
+	    }
+	    else if (name.equals("constituency")) {
+		while (nextChild(reader)) {
+		    readTree(reader, kaf, termIndex);
+		}
+	    }
+	    else {
+		skipElement(reader);
+	    }
+	}
+
+	return kaf;
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Names of the elements holding annotation layers, in the order they are written */
+    private static final List<String> LAYER_ELEMS = Arrays.asList("text", "terms", "deps", "chunks", "entities", "coreferences", "features", "opinions", "relations", "srl", "constituency");
+
+    /** Returns the names of the layer elements that have to be parsed to load the given layers. Layers referring to terms need the terms and text layers too, and relations need the entities and features they link. */
+    private static Set<String> getLayerElemsToParse(Set<KAFDocument.Layer> layers) {
+	if (layers == null) {
+	    return new HashSet<String>(LAYER_ELEMS);
+	}
+	Set<KAFDocument.Layer> needed = EnumSet.noneOf(KAFDocument.Layer.class);
+	needed.addAll(layers);
+	if (needed.contains(KAFDocument.Layer.relations)) {
+	    needed.add(KAFDocument.Layer.entities);
+	    needed.add(KAFDocument.Layer.properties);
+	    needed.add(KAFDocument.Layer.categories);
+	}
+	if (!needed.isEmpty() && !needed.equals(EnumSet.of(KAFDocument.Layer.text))) {
+	    needed.add(KAFDocument.Layer.text);
+	    needed.add(KAFDocument.Layer.terms);
+	}
+	Set<String> layerElems = new HashSet<String>();
+	for (KAFDocument.Layer layer : needed) {
+	    layerElems.add(AnnotationContainer.getLayerElemName(layer));
+	}
+	return layerElems;
+    }
+
+    /** Returns the current element, including its content, as an XML string. The reader must be positioned at the element's start tag and it is left at its end tag. */
+    private static String captureElement(XMLStreamReader reader) throws XMLStreamException {
+	StringBuilder xml = new StringBuilder();
+	boolean openTag = false;
+	int depth = 0;
+	while (true) {
+	    int event = reader.getEventType();
+	    if ((event != XMLStreamConstants.END_ELEMENT) && openTag) {
+		xml.append('>');
+		openTag = false;
+	    }
+	    switch (event) {
+	    case XMLStreamConstants.START_ELEMENT:
+		xml.append('<').append(getQName(reader.getPrefix(), reader.getLocalName()));
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+		    String prefix = reader.getNamespacePrefix(i);
+		    xml.append(((prefix == null) || prefix.isEmpty()) ? " xmlns" : " xmlns:" + prefix).append("=\"");
+		    escapeAttribute(reader.getNamespaceURI(i), xml);
+		    xml.append('"');
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+		    xml.append(' ').append(getQName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i))).append("=\"");
+		    escapeAttribute(reader.getAttributeValue(i), xml);
+		    xml.append('"');
+		}
+		openTag = true;
+		depth++;
+		break;
+	    case XMLStreamConstants.END_ELEMENT:
+		if (openTag) {
+		    xml.append(" />");
+		    openTag = false;
+		}
+		else {
+		    xml.append("</").append(getQName(reader.getPrefix(), reader.getLocalName())).append('>');
+		}
+		depth--;
+		break;
+	    case XMLStreamConstants.CHARACTERS:
+	    case XMLStreamConstants.SPACE:
+		escapeText(reader.getText(), xml);
+		break;
+	    case XMLStreamConstants.CDATA:
+		xml.append("<![CDATA[").append(reader.getText()).append("]]>");
+		break;
+	    case XMLStreamConstants.COMMENT:
+		xml.append("<!--").append(reader.getText()).append("-->");
+		break;
+	    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+		xml.append("<?").append(reader.getPITarget()).append(' ').append(reader.getPIData()).append("?>");
+		break;
+	    default:
+		break;
+	    }
+	    if (depth == 0) {
+		return xml.toString();
+	    }
+	    reader.next();
+	}
+    }
+
+    private static String getQName(String prefix, String localName) {
+	if ((prefix == null) || prefix.isEmpty()) {
+	    return localName;
+	}
+	return prefix + ":" + localName;
+    }
+
+    private static void escapeText(String text, StringBuilder out) {
+	for (int i = 0; i < text.length(); i++) {
+	    char c = text.charAt(i);
+	    switch (c) {
+	    case '&': out.append("&amp;"); break;
+	    case '<': out.append("&lt;"); break;
+	    case '>': out.append("&gt;"); break;
+	    case '\r': out.append("&#xD;"); break;
+	    default: out.append(c);
+	    }
+	}
+    }
+
+    private static void escapeAttribute(String value, StringBuilder out) {
+	for (int i = 0; i < value.length(); i++) {
+	    char c = value.charAt(i);
+	    switch (c) {
+	    case '&': out.append("&amp;"); break;
+	    case '<': out.append("&lt;"); break;
+	    case '>': out.append("&gt;"); break;
+	    case '"': out.append("&quot;"); break;
+	    case '\t': out.append("&#x9;"); break;
+	    case '\n': out.append("&#xA;"); break;
+	    case '\r': out.append("&#xD;"); break;
+	    default: out.append(c);
+	    }
+	}
+    }
+
+    static void readHeader(XMLStreamReader reader, KAFDocument kaf) throws XMLStreamException {
+	while (nextChild(reader)) {
+	    String name = reader.getLocalName();
+	    if (name.equals("linguisticProcessors")) {
+		String layer = getAttribute("layer", reader);
+		while (nextChild(reader)) {
+		    String lpName = getAttribute("name", reader);
+		    KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(layer, lpName);
+		    String timestamp = getOptAttribute("timestamp", reader);
+		    if (timestamp != null) {
+			newLp.setTimestamp(timestamp);
+		    }
+		    String beginTimestamp = getOptAttribute("beginTimestamp", reader);
+		    if (beginTimestamp != null) {
+			newLp.setBeginTimestamp(beginTimestamp);
+		    }
+		    String endTimestamp = getOptAttribute("endTimestamp", reader);
+		    if (endTimestamp != null) {
+			newLp.setEndTimestamp(endTimestamp);
+		    }
+		    String version = getOptAttribute("version", reader);
+		    if (version != null) {
+			newLp.setVersion(version);
+		    }
+		    skipElement(reader);
+		}
+	    }
+	    else if (name.equals("fileDesc")) {
+		KAFDocument.FileDesc fd = kaf.createFileDesc();
+		String author = getOptAttribute("author", reader);
+		if (author != null) {
+		    fd.author = author;
+		}
+		String title = getOptAttribute("title", reader);
+		if (title != null) {
+		    fd.title = title;
+		}
+		String creationtime = getOptAttribute("creationtime", reader);
+		if (creationtime != null) {
+		    fd.creationtime = creationtime;
+		}
+		String filename = getOptAttribute("filename", reader);
+		if (filename != null) {
+		    fd.filename = filename;
+		}
+		String filetype = getOptAttribute("filetype", reader);
+		if (filetype != null) {
+		    fd.filetype = filetype;
+		}
+		String pages = getOptAttribute("pages", reader);
+		if (pages != null) {
+		    fd.pages = Integer.parseInt(pages);
+		}
+		skipElement(reader);
+	    }
+	    else if (name.equals("public")) {
+		String publicId = getAttribute("publicId", reader);
+		KAFDocument.Public pub = kaf.createPublic(publicId);
+		String uri = getOptAttribute("uri", reader);
+		if (uri != null) {
+		    pub.uri = uri;
+		}
+		skipElement(reader);
+	    }
+	    else {
+		skipElement(reader);
+	    }
+	}
+    }
+
+    static WF readWF(XMLStreamReader reader, KAFDocument kaf) throws XMLStreamException {
+	String wid = getAttribute("wid", reader);
+	String wSent = getAttribute("sent", reader);
+	String wPara = getOptAttribute("para", reader);
+	String wPage = getOptAttribute("page", reader);
+	String wOffset = getOptAttribute("offset", reader);
+	String wLength = getOptAttribute("length", reader);
+	String wXpath = getOptAttribute("xpath", reader);
+	String wForm = reader.getElementText();
+	WF newWf = kaf.newWF(wid, wForm, Integer.valueOf(wSent));
+	if (wPara != null) {
+	    newWf.setPara(Integer.valueOf(wPara));
+	}
+	if (wPage != null) {
+	    newWf.setPage(Integer.valueOf(wPage));
+	}
+	if (wOffset != null) {
+	    newWf.setOffset(Integer.valueOf(wOffset));
+	}
+	if (wLength != null) {
+	    newWf.setLength(Integer.valueOf(wLength));
+	}
+	if (wXpath != null) {
+	    newWf.setXpath(wXpath);
+	}
+	return newWf;
+    }
+
+    static Term readTerm(XMLStreamReader reader, KAFDocument kaf, HashMap<String, WF> wfIndex) throws XMLStreamException, KAFNotValidException {
+	String tid = getAttribute("tid", reader);
+	String type = getAttribute("type", reader);
+	String lemma = getAttribute("lemma", reader);
+	String pos = getAttribute("pos", reader);
+	String tMorphofeat = getOptAttribute("morphofeat", reader);
+	String tHead = getOptAttribute("head", reader);
+	String termcase = getOptAttribute("case", reader);
+	Span<WF> span = null;
+	Term.Sentiment newSentiment = null;
+	List<Term.Component> components = new ArrayList<Term.Component>();
+	List<ExternalRef> externalRefs = null;
+	/* The term can only be created once its span is known, so the rest of its children are kept until then */
+	while (nextChild(reader)) {
+	    String name = reader.getLocalName();
+	    if (name.equals("span") && (span == null)) {
+		span = kaf.newWFSpan();
+		while (nextChild(reader)) {
+		    String wfId = getAttribute("id", reader);
+		    boolean isHead = isHead(reader);
+		    WF wf = wfIndex.get(wfId);
+		    if (wf == null) {
+			throw new KAFNotValidException("Wf " + wfId + " not found when loading term " + tid);
+		    }
+		    span.addTarget(wf, isHead);
+		    skipElement(reader);
+		}
+	    }
+	    else if (name.equals("sentiment") && (newSentiment == null)) {
+		newSentiment = readSentiment(reader, kaf);
+	    }
+	    else if (name.equals("component")) {
+		String compId = getAttribute("id", reader);
+		String compLemma = getAttribute("lemma", reader);
+		String compPos = getAttribute("pos", reader);
+		Term.Component component = new Term.Component(compId, compLemma, compPos);
+		while (nextChild(reader)) {
+		    if (reader.getLocalName().equals("externalReferences") && component.getExternalRefs().isEmpty()) {
+			component.addExternalRefs(readExternalReferences(reader, kaf));
+		    }
+		    else {
+			skipElement(reader);
 		    }
-		    List<Span<Term>> references = new ArrayList<Span<Term>>();
-		    for (Element spanElem : spanElems) {
-			Span<Term> span = kaf.newTermSpan();
-			List<Element> targetElems = spanElem.getChildren();
-			if (targetElems.size() < 1) {
-			    throw new IllegalStateException("Every span in an entity must contain at least one target inside");  
-			}
-			for (Element targetElem : targetElems) {
-			    String targetTermId = getAttribute("id", targetElem);
-			    Term targetTerm = termIndex.get(targetTermId);
-			    if (targetTerm == null) {
-				throw new KAFNotValidException("Term " + targetTermId + " not found when loading entity " + entId);
-			    }
-			    boolean isHead = isHead(targetElem);
-			    span.addTarget(targetTerm, isHead);
+		}
+		components.add(component);
+	    }
+	    else if (name.equals("externalReferences") && (externalRefs == null)) {
+		externalRefs = readExternalReferences(reader, kaf);
+	    }
+	    else {
+		skipElement(reader);
+	    }
+	}
+	if (span == null) {
+	    throw new IllegalStateException("Every term must contain a span element");
+	}
+	Term newTerm = kaf.newTerm(tid, type, lemma, pos, span);
+	if (tMorphofeat != null) {
+	    newTerm.setMorphofeat(kaf.intern(tMorphofeat));
+	}
+	if (termcase != null) {
+	    newTerm.setCase(kaf.intern(termcase));
+	}
+	if (newSentiment != null) {
+	    newTerm.setSentiment(newSentiment);
+	}
+	for (Term.Component component : components) {
+	    String compId = component.getId();
+	    boolean isHead = ((tHead != null) && tHead.equals(compId));
+	    Term.Component newComponent = kaf.newComponent(compId, newTerm, component.getLemma(), component.getPos());
+	    newComponent.addExternalRefs(component.getExternalRefs());
+	    newTerm.addComponent(newComponent, isHead);
+	}
+	if (externalRefs != null) {
+	    newTerm.addExternalRefs(externalRefs);
+	}
+	return newTerm;
+    }
+
+    private static Term.Sentiment readSentiment(XMLStreamReader reader, KAFDocument kaf) throws XMLStreamException {
+	Term.Sentiment newSentiment = kaf.newSentiment();
+	String sentResource = getOptAttribute("resource", reader);
+	if (sentResource != null) {
+	    newSentiment.setResource(sentResource);
+	}
+	String sentPolarity = getOptAttribute("polarity", reader);
+	if (sentPolarity != null) {
+	    newSentiment.setPolarity(sentPolarity);
+	}
+	String sentStrength = getOptAttribute("strength", reader);
+	if (sentStrength != null) {
+	    newSentiment.setStrength(sentStrength);
+	}
+	String sentSubjectivity = getOptAttribute("subjectivity", reader);
+	if (sentSubjectivity != null) {
+	    newSentiment.setSubjectivity(sentSubjectivity);
+	}
+	String sentSentimentSemanticType = getOptAttribute("sentiment_semantic_type", reader);
+	if (sentSentimentSemanticType != null) {
+	    newSentiment.setSentimentSemanticType(sentSentimentSemanticType);
+	}
+	String sentSentimentModifier = getOptAttribute("sentiment_modifier", reader);
+	if (sentSentimentModifier != null) {
+	    newSentiment.setSentimentModifier(sentSentimentModifier);
+	}
+	String sentSentimentMarker = getOptAttribute("sentiment_marker", reader);
+	if (sentSentimentMarker != null) {
+	    newSentiment.setSentimentMarker(sentSentimentMarker);
+	}
+	String sentSentimentProductFeature = getOptAttribute("sentiment_product_feature", reader);
+	if (sentSentimentProductFeature != null) {
+	    newSentiment.setSentimentProductFeature(sentSentimentProductFeature);
+	}
+	skipElement(reader);
+	return newSentiment;
+    }
+
+    static Dep readDep(XMLStreamReader reader, KAFDocument kaf, HashMap<String, Term> termIndex) throws XMLStreamException, KAFNotValidException {
+	String fromId = getAttribute("from", reader);
+	String toId = getAttribute("to", reader);
+	Term from = termIndex.get(fromId);
+	if (from == null) {
+	    throw new KAFNotValidException("Term " + fromId + " not found when loading Dep (" + fromId + ", " + toId + ")");
+	}
+	Term to = termIndex.get(toId);
+	if (to == null) {
+	    throw new KAFNotValidException("Term " + toId + " not found when loading Dep (" + fromId + ", " + toId + ")");
+	}
+	String rfunc = getAttribute("rfunc", reader);
+	Dep newDep = kaf.newDep(from, to, rfunc);
+	String depcase = getOptAttribute("case", reader);
+	if (depcase != null) {
+	    newDep.setCase(kaf.intern(depcase));
+	}
+	skipElement(reader);
+	return newDep;
+    }
+
+    static Chunk readChunk(XMLStreamReader reader, KAFDocument kaf, HashMap<String, Term> termIndex) throws XMLStreamException, KAFNotValidException {
+	String chunkId = getAttribute("cid", reader);
+	String headId = getAttribute("head", reader);
+	Term chunkHead = termIndex.get(headId);
+	if (chunkHead == null) {
+	    throw new KAFNotValidException("Term " + headId + " not found when loading chunk " + chunkId);
+	}
+	String chunkPhrase = getAttribute("phrase", reader);
+	String chunkCase = getOptAttribute("case", reader);
+	Span<Term> span = null;
+	while (nextChild(reader)) {
+	    if (reader.getLocalName().equals("span") && (span == null)) {
+		span = readTermSpan(reader, termIndex, "chunk " + chunkId);
+	    }
+	    else {
+		skipElement(reader);
+	    }
+	}
+	if (span == null) {
+	    throw new IllegalStateException("Every chunk must contain a span element");
+	}
+	if (!span.hasTarget(chunkHead)) {
+	    throw new KAFNotValidException("The head of the chunk is not in it's span.");
+	}
+	span.setHead(chunkHead);
+	Chunk newChunk = kaf.newChunk(chunkId, chunkPhrase, span);
+	if (chunkCase != null) {
+	    newChunk.setCase(kaf.intern(chunkCase));
+	}
+	return newChunk;
+    }
+
+    static Entity readEntity(XMLStreamReader reader, KAFDocument kaf, HashMap<String, Term> termIndex) throws XMLStreamException, KAFNotValidException {
+	String entId = getAttribute("eid", reader);
+	String entType = getOptAttribute("type", reader);
+	List<Span<Term>> references = null;
+	List<ExternalRef> externalRefs = null;
+	while (nextChild(reader)) {
+	    String name = reader.getLocalName();
+	    if (name.equals("references") && (references == null)) {
+		references = new ArrayList<Span<Term>>();
+		while (nextChild(reader)) {
+		    Span<Term> span = readTermSpan(reader, termIndex, "entity " + entId);
+		    if (span.isEmpty()) {
+			throw new IllegalStateException("Every span in an entity must contain at least one target inside");
+		    }
+		    references.add(span);
+		}
+		if (references.size() < 1) {
+		    throw new IllegalStateException("Every entity must contain a 'span' element inside 'references'");
+		}
+	    }
+	    else if (name.equals("externalReferences") && (externalRefs == null)) {
+		externalRefs = readExternalReferences(reader, kaf);
+	    }
+	    else {
+		skipElement(reader);
+	    }
+	}
+	if (references == null) {
+	    throw new IllegalStateException("Every entity must contain a 'references' element");
+	}
+	Entity newEntity = kaf.newEntity(entId, references);
+	if (entType != null) {
+	    newEntity.setType(kaf.intern(entType));
+	}
+	if (externalRefs != null) {
+	    newEntity.addExternalRefs(externalRefs);
+	}
+	return newEntity;
+    }
+
+    private static Coref readCoref(XMLStreamReader reader, KAFDocument kaf, HashMap<String, Term> termIndex) throws XMLStreamException, KAFNotValidException {
+	String coId = getAttribute("coid", reader);
+	List<Span<Term>> mentions = new ArrayList<Span<Term>>();
+	while (nextChild(reader)) {
+	    if (reader.getLocalName().equals("span")) {
+		Span<Term> span = readTermSpan(reader, termIndex, "coref " + coId);
+		if (span.isEmpty()) {
+		    throw new IllegalStateException("Every span in an entity must contain at least one target inside");
+		}
+		mentions.add(span);
+	    }
+	    else {
+		skipElement(reader);
+	    }
+	}
+	if (mentions.size() < 1) {
+	    throw new IllegalStateException("Every coref must contain a 'span' element inside 'references'");
+	}
+	return kaf.newCoref(coId, mentions);
+    }
+
+    private static Feature readFeature(XMLStreamReader reader, KAFDocument kaf, HashMap<String, Term> termIndex, boolean isProperty) throws XMLStreamException, KAFNotValidException {
+	String featureType = isProperty ? "property" : "category";
+	String id = getAttribute(isProperty ? "pid" : "cid", reader);
+	String lemma = getAttribute("lemma", reader);
+	List<Span<Term>> references = null;
+	List<ExternalRef> externalRefs = null;
+	while (nextChild(reader)) {
+	    String name = reader.getLocalName();
+	    if (name.equals("references") && (references == null)) {
+		references = new ArrayList<Span<Term>>();
+		while (nextChild(reader)) {
+		    if (reader.getLocalName().equals("span")) {
+			Span<Term> span = readTermSpan(reader, termIndex, featureType + " " + id);
+			if (span.isEmpty()) {
+			    throw new IllegalStateException("Every span in a property must contain at least one target inside");
 			}
 			references.add(span);
 		    }
-		    Entity newEntity = kaf.newEntity(entId, references);
-		    if (entType != null) {
-			newEntity.setType(entType);
+		    else {
+			skipElement(reader);
 		    }
-		    List<Element> externalReferencesElems = entityElem.getChildren("externalReferences");
-		    if (externalReferencesElems.size() > 0) {
-			List<ExternalRef> externalRefs = getExternalReferences(externalReferencesElems.get(0), kaf);
-			newEntity.addExternalRefs(externalRefs);
-		    }
-		    relationalIndex.put(newEntity.getId(), newEntity);
+		}
+		if (references.size() < 1) {
+		    throw new IllegalStateException("Every " + featureType + " must contain a 'span' element inside 'references'");
 		}
 	    }
-	    if (elem.getName().equals("coreferences")) {
-		List<Element> corefElems = elem.getChildren();
-		for (Element corefElem : corefElems) {
-		    String coId = getAttribute("coid", corefElem);
-		    List<Element> spanElems = corefElem.getChildren("span");
-		    if (spanElems.size() < 1) {
-			throw new IllegalStateException("Every coref must contain a 'span' element inside 'references'");
-		    }
-		    List<Span<Term>> mentions = new ArrayList<Span<Term>>();
-		    for (Element spanElem : spanElems) {
-			Span<Term> span = kaf.newTermSpan();
-			List<Element> targetElems = spanElem.getChildren();
-			if (targetElems.size() < 1) {
-			    throw new IllegalStateException("Every span in an entity must contain at least one target inside");  
-			}
-			for (Element targetElem : targetElems) {
-			    String targetTermId = getAttribute("id", targetElem);
-			    Term targetTerm = termIndex.get(targetTermId);
-			    if (targetTerm == null) {
-				throw new KAFNotValidException("Term " + targetTermId + " not found when loading coref " + coId);
-			    }
-			    boolean isHead = isHead(targetElem);
-			    span.addTarget(targetTerm, isHead);
-			}
-			mentions.add(span);
-		    }
-		    Coref newCoref = kaf.newCoref(coId, mentions);
-		}
-	    }
-	    if (elem.getName().equals("features")) {
-		Element propertiesElem = elem.getChild("properties");
-		Element categoriesElem = elem.getChild("categories");
-		if (propertiesElem != null) {
-		    List<Element> propertyElems = propertiesElem.getChildren("property");
-		    for (Element propertyElem : propertyElems) {
-			String pid = getAttribute("pid", propertyElem);
-			String lemma = getAttribute("lemma", propertyElem);
-			Element referencesElem = propertyElem.getChild("references");
-			if (referencesElem == null) {
-			    throw new IllegalStateException("Every property must contain a 'references' element");
-			}
-			List<Element> spanElems = referencesElem.getChildren("span");
-			if (spanElems.size() < 1) {
-			    throw new IllegalStateException("Every property must contain a 'span' element inside 'references'");
-			}
-			List<Span<Term>> references = new ArrayList<Span<Term>>();
-			for (Element spanElem : spanElems) {
-			    Span<Term> span = kaf.newTermSpan();
-			    List<Element> targetElems = spanElem.getChildren();
-			    if (targetElems.size() < 1) {
-				throw new IllegalStateException("Every span in a property must contain at least one target inside");  
-			    }
-			    for (Element targetElem : targetElems) {
-				String targetTermId = getAttribute("id", targetElem);
-				Term targetTerm = termIndex.get(targetTermId);
-				if (targetTerm == null) {
-				    throw new KAFNotValidException("Term " + targetTermId + " not found when loading property " + pid);
-				}
-				boolean isHead = isHead(targetElem);
-				span.addTarget(targetTerm, isHead);
-			    }
-			    references.add(span);
-			}
-			Feature newProperty = kaf.newProperty(pid, lemma, references);
-			List<Element> externalReferencesElems = propertyElem.getChildren("externalReferences");
-			if (externalReferencesElems.size() > 0) {
-			    List<ExternalRef> externalRefs = getExternalReferences(externalReferencesElems.get(0), kaf);
-			    newProperty.addExternalRefs(externalRefs);
-			}
-			relationalIndex.put(newProperty.getId(), newProperty);
-		    }
+	    else if (name.equals("externalReferences") && (externalRefs == null)) {
+		externalRefs = readExternalReferences(reader, kaf);
+	    }
+	    else {
+		skipElement(reader);
+	    }
+	}
+	if (references == null) {
+	    throw new IllegalStateException("Every " + featureType + " must contain a 'references' element");
+	}
+	Feature newFeature = isProperty ? kaf.newProperty(id, lemma, references) : kaf.newCategory(id, lemma, references);
+	if (externalRefs != null) {
+	    newFeature.addExternalRefs(externalRefs);
+	}
+	return newFeature;
+    }
+
+    private static Opinion readOpinion(XMLStreamReader reader, KAFDocument kaf, HashMap<String, Term> termIndex) throws XMLStreamException, KAFNotValidException {
+	String opinionId = getAttribute("oid", reader);
+	Opinion opinion = kaf.newOpinion(opinionId);
+	while (nextChild(reader)) {
+	    String name = reader.getLocalName();
+	    if (name.equals("opinion_holder") && (opinion.getOpinionHolder() == null)) {
+		Span<Term> span = kaf.newTermSpan();
+		opinion.createOpinionHolder(span);
+		readOpinionSpan(reader, span, termIndex, opinionId);
+	    }
+	    else if (name.equals("opinion_target") && (opinion.getOpinionTarget() == null)) {
+		Span<Term> span = kaf.newTermSpan();
+		opinion.createOpinionTarget(span);
+		readOpinionSpan(reader, span, termIndex, opinionId);
+	    }
+	    else if (name.equals("opinion_expression") && (opinion.getOpinionExpression() == null)) {
+		Span<Term> span = kaf.newTermSpan();
+		Opinion.OpinionExpression opinionExpression = opinion.createOpinionExpression(span);
+		String polarity = getOptAttribute("polarity", reader);
+		if (polarity != null) {
+		    opinionExpression.setPolarity(polarity);
 		}
-		if (categoriesElem != null) {
-		    List<Element> categoryElems = categoriesElem.getChildren("category");
-		    for (Element categoryElem : categoryElems) {
-			String cid = getAttribute("cid", categoryElem);
-			String lemma = getAttribute("lemma", categoryElem);
-			Element referencesElem = categoryElem.getChild("references");
-			if (referencesElem == null) {
-			    throw new IllegalStateException("Every category must contain a 'references' element");
-			}
-			List<Element> spanElems = referencesElem.getChildren("span");
-			if (spanElems.size() < 1) {
-			    throw new IllegalStateException("Every category must contain a 'span' element inside 'references'");
-			}
-			List<Span<Term>> references = new ArrayList<Span<Term>>();
-			for (Element spanElem : spanElems) {
-			    Span<Term> span = kaf.newTermSpan();
-			    List<Element> targetElems = spanElem.getChildren();
-			    if (targetElems.size() < 1) {
-				throw new IllegalStateException("Every span in a property must contain at least one target inside");  
-			    }
-			    for (Element targetElem : targetElems) {
-				String targetTermId = getAttribute("id", targetElem);
-				Term targetTerm = termIndex.get(targetTermId);
-				if (targetTerm == null) {
-				    throw new KAFNotValidException("Term " + targetTermId + " not found when loading category " + cid);
-				}
-				boolean isHead = isHead(targetElem);
-				span.addTarget(targetTerm, isHead);
-			    }
-			    references.add(span);
-			}
-			Feature newCategory = kaf.newCategory(cid, lemma, references);
-			List<Element> externalReferencesElems = categoryElem.getChildren("externalReferences");
-			if (externalReferencesElems.size() > 0) {
-			    List<ExternalRef> externalRefs = getExternalReferences(externalReferencesElems.get(0), kaf);
-			    newCategory.addExternalRefs(externalRefs);
-			}
-			relationalIndex.put(newCategory.getId(), newCategory);
-		    }
+		String strength = getOptAttribute("strength", reader);
+		if (strength != null) {
+		    opinionExpression.setStrength(strength);
+		}
+		String subjectivity = getOptAttribute("subjectivity", reader);
+		if (subjectivity != null) {
+		    opinionExpression.setSubjectivity(subjectivity);
+		}
+		String sentimentSemanticType = getOptAttribute("sentiment_semantic_type", reader);
+		if (sentimentSemanticType != null) {
+		    opinionExpression.setSentimentSemanticType(sentimentSemanticType);
 		}
+		String sentimentProductFeature = getOptAttribute("sentiment_product_feature", reader);
+		if (sentimentProductFeature != null) {
+		    opinionExpression.setSentimentProductFeature(sentimentProductFeature);
+		}
+		readOpinionSpan(reader, span, termIndex, opinionId);
 	    }
-	    if (elem.getName().equals("opinions")) {
-		List<Element> opinionElems = elem.getChildren("opinion");
-		for (Element opinionElem : opinionElems) {
-		    String opinionId = getAttribute("oid", opinionElem);
-		    Opinion opinion = kaf.newOpinion(opinionId);
-		    Element opinionHolderElem = opinionElem.getChild("opinion_holder");
-		    if (opinionHolderElem != null) {
-			Span<Term> span = kaf.newTermSpan();
-			Opinion.OpinionHolder opinionHolder = opinion.createOpinionHolder(span);
-			Element spanElem = opinionHolderElem.getChild("span");
-			if (spanElem != null) {
-			    List<Element> targetElems = spanElem.getChildren("target");
-			    for (Element targetElem : targetElems) {
-				String refId = getOptAttribute("id", targetElem);
-				boolean isHead = isHead(targetElem);
-				Term targetTerm = termIndex.get(refId);
-				if (targetTerm == null) {
-				    throw new KAFNotValidException("Term " + refId + " not found when loading opinion " + opinionId);
-				}
-				span.addTarget(targetTerm, isHead);
-			    }
-			}
-		    }
-		    Element opinionTargetElem = opinionElem.getChild("opinion_target");
-		    if (opinionTargetElem != null) {
-			Span<Term> span = kaf.newTermSpan();
-			Opinion.OpinionTarget opinionTarget = opinion.createOpinionTarget(span);
-			Element spanElem = opinionTargetElem.getChild("span");
-			if (spanElem != null) {
-			    List<Element> targetElems = spanElem.getChildren("target");
-			    for (Element targetElem : targetElems) {
-				String refId = getOptAttribute("id", targetElem);
-				boolean isHead = isHead(targetElem);
-				Term targetTerm = termIndex.get(refId);
-				if (targetTerm == null) {
-				    throw new KAFNotValidException("Term " + refId + " not found when loading opinion " + opinionId);
-				}
-				span.addTarget(targetTerm, isHead);
-			    }
-			}
-		    }
-		    Element opinionExpressionElem = opinionElem.getChild("opinion_expression");
-		    if (opinionExpressionElem != null) {
-			Span<Term> span = kaf.newTermSpan();
-			String polarity = getOptAttribute("polarity", opinionExpressionElem);
-			String strength = getOptAttribute("strength", opinionExpressionElem);
-			String subjectivity = getOptAttribute("subjectivity", opinionExpressionElem);
-			String sentimentSemanticType = getOptAttribute("sentiment_semantic_type", opinionExpressionElem);
-			String sentimentProductFeature = getOptAttribute("sentiment_product_feature", opinionExpressionElem);
-			Opinion.OpinionExpression opinionExpression = opinion.createOpinionExpression(span);
-			if (polarity != null) {
-			    opinionExpression.setPolarity(polarity);
-			}
-			if (strength != null) {
-			    opinionExpression.setStrength(strength);
-			}
-			if (subjectivity != null) {
-			    opinionExpression.setSubjectivity(subjectivity);
-			}
-			if (sentimentSemanticType != null) {
-			    opinionExpression.setSentimentSemanticType(sentimentSemanticType);
-			}
-			if (sentimentProductFeature != null) {
-			    opinionExpression.setSentimentProductFeature(sentimentProductFeature);
-			}
+	    else {
+		skipElement(reader);
+	    }
+	}
+	return opinion;
+    }
 
-			Element spanElem = opinionExpressionElem.getChild("span");
-			if (spanElem != null) {
-			    List<Element> targetElems = spanElem.getChildren("target");
-			    for (Element targetElem : targetElems) {
-				String refId = getOptAttribute("id", targetElem);
-				boolean isHead = isHead(targetElem);
-				Term targetTerm = termIndex.get(refId);
-				if (targetTerm == null) {
-				    throw new KAFNotValidException("Term " + refId + " not found when loading opinion " + opinionId);
-				}
-				span.addTarget(targetTerm, isHead);
-			    }
+    /** Reads the targets of the span inside an opinion_holder, opinion_target or opinion_expression element into the given span. */
+    private static void readOpinionSpan(XMLStreamReader reader, Span<Term> span, HashMap<String, Term> termIndex, String opinionId) throws XMLStreamException, KAFNotValidException {
+	boolean spanRead = false;
+	while (nextChild(reader)) {
+	    if (reader.getLocalName().equals("span") && !spanRead) {
+		while (nextChild(reader)) {
+		    if (reader.getLocalName().equals("target")) {
+			String refId = getOptAttribute("id", reader);
+			boolean isHead = isHead(reader);
+			Term targetTerm = termIndex.get(refId);
+			if (targetTerm == null) {
+			    throw new KAFNotValidException("Term " + refId + " not found when loading opinion " + opinionId);
 			}
+			span.addTarget(targetTerm, isHead);
 		    }
+		    skipElement(reader);
 		}
+		spanRead = true;
 	    }
-	    if (elem.getName().equals("relations")) {
-		List<Element> relationElems = elem.getChildren("relation");
-		for (Element relationElem : relationElems) {
-		    String id = getAttribute("rid", relationElem);
-		    String fromId = getAttribute("from", relationElem);
-		    String toId = getAttribute("to", relationElem);
-		    String confidenceStr = getOptAttribute("confidence", relationElem);
-		    float confidence = -1.0f;
-		    if (confidenceStr != null) {
-			confidence = Float.parseFloat(confidenceStr);
-		    }
-		    Relational from = relationalIndex.get(fromId);
-		    if (from == null) {
-			throw new KAFNotValidException("Entity/feature object " + fromId + " not found when loading relation " + id);
-		    }
-		    Relational to = relationalIndex.get(toId);
-		    if (to == null) {
-			throw new KAFNotValidException("Entity/feature object " + toId + " not found when loading relation " + id);
-		    }
-		    Relation newRelation = kaf.newRelation(id, from, to);
-		    if (confidence >= 0) {
-			newRelation.setConfidence(confidence);
+	    else {
+		skipElement(reader);
+	    }
+	}
+    }
+
+    private static Relation readRelation(XMLStreamReader reader, KAFDocument kaf, HashMap<String, Relational> relationalIndex) throws XMLStreamException, KAFNotValidException {
+	String id = getAttribute("rid", reader);
+	String fromId = getAttribute("from", reader);
+	String toId = getAttribute("to", reader);
+	String confidenceStr = getOptAttribute("confidence", reader);
+	float confidence = -1.0f;
+	if (confidenceStr != null) {
+	    confidence = Float.parseFloat(confidenceStr);
+	}
+	Relational from = relationalIndex.get(fromId);
+	if (from == null) {
+	    throw new KAFNotValidException("Entity/feature object " + fromId + " not found when loading relation " + id);
+	}
+	Relational to = relationalIndex.get(toId);
+	if (to == null) {
+	    throw new KAFNotValidException("Entity/feature object " + toId + " not found when loading relation " + id);
+	}
+	Relation newRelation = kaf.newRelation(id, from, to);
+	if (confidence >= 0) {
+	    newRelation.setConfidence(confidence);
+	}
+	skipElement(reader);
+	return newRelation;
+    }
+
+    private static Predicate readPredicate(XMLStreamReader reader, KAFDocument kaf, HashMap<String, Term> termIndex) throws XMLStreamException, KAFNotValidException {
+	String id = getAttribute("prid", reader);
+	String uri = getOptAttribute("uri", reader);
+	/* The roles are kept until the end of the element, so that the predicate is created with its span, heads included, whatever the order of the children */
+	Span<Term> span = null;
+	List<String> roleIds = new ArrayList<String>();
+	List<String> semRoles = new ArrayList<String>();
+	List<Span<Term>> roleSpans = new ArrayList<Span<Term>>();
+	while (nextChild(reader)) {
+	    String name = reader.getLocalName();
+	    if (name.equals("span") && (span == null)) {
+		span = readTermSpan(reader, termIndex, "predicate " + id);
+	    }
+	    else if (name.equals("role")) {
+		String rid = getAttribute("rid", reader);
+		roleIds.add(rid);
+		semRoles.add(getAttribute("semRole", reader));
+		Span<Term> roleSpan = null;
+		while (nextChild(reader)) {
+		    if (reader.getLocalName().equals("span") && (roleSpan == null)) {
+			roleSpan = readTermSpan(reader, termIndex, "role " + rid);
+		    }
+		    else {
+			skipElement(reader);
 		    }
 		}
+		roleSpans.add((roleSpan == null) ? KAFDocument.newTermSpan() : roleSpan);
 	    }
-	    if (elem.getName().equals("srl")) {
-		List<Element> predicateElems = elem.getChildren("predicate");
-		for (Element predicateElem : predicateElems) {
-		    String id = getAttribute("prid", predicateElem);
-		    String uri = getOptAttribute("uri", predicateElem);
-		    Span<Term> span = kaf.newTermSpan();
-		    Element spanElem = predicateElem.getChild("span");
-		    if (spanElem != null) {
-			List<Element> targetElems = spanElem.getChildren("target");
-			for (Element targetElem : targetElems) {
-			    String targetId = getAttribute("id", targetElem);
-			    boolean isHead = isHead(targetElem);
-			    Term targetTerm = termIndex.get(targetId);
-			    if (targetTerm == null) {
-				throw new KAFNotValidException("Term object " + targetId + " not found when loading predicate " + id);				
-			    }
-			    span.addTarget(targetTerm, isHead);
-			}
-		    }
-		    Predicate newPredicate = kaf.newPredicate(id, span);
-		    if (uri != null) {
-			newPredicate.setUri(uri);
-		    }
-		    List<Element> roleElems = predicateElem.getChildren("role");
-		    for (Element roleElem : roleElems) {
-			String rid = getAttribute("rid", roleElem);
-			String semRole = getAttribute("semRole", roleElem);
-			Span<Term> roleSpan = kaf.newTermSpan();
-			Element roleSpanElem = roleElem.getChild("span");
-			if (roleSpanElem != null) {
-			    List<Element> targetElems = roleSpanElem.getChildren("target");
-			    for (Element targetElem : targetElems) {
-				String targetId = getAttribute("id", targetElem);
-				boolean isHead = isHead(targetElem);
-				Term targetTerm = termIndex.get(targetId);
-				if (targetTerm == null) {
-				    throw new KAFNotValidException("Term object " + targetId + " not found when loading role " + rid);				
-				}
-				roleSpan.addTarget(targetTerm, isHead);
-			    }
-			}
-			Predicate.Role newRole = kaf.newRole(rid, newPredicate, semRole, roleSpan);
-			newPredicate.addRole(newRole);
-		    }
-		    Span<Term> spana = kaf.newTermSpan();
-		    Predicate.Role rolea = kaf.newRole(newPredicate, "kaka", spana);
-		    newPredicate.addRole(rolea);
-		}
-	    }
-	    if (elem.getName().equals("constituency")) {
-		List<Element> treeElems = elem.getChildren("tree");
-		for (Element treeElem : treeElems) {
-		    HashMap<String, TreeNode> treeNodes = new HashMap<String, TreeNode>();
-		    HashMap<String, Boolean> rootNodes = new HashMap<String, Boolean>();
-		    // Terminals
-		    List<Element> terminalElems = treeElem.getChildren("t");
-		    for (Element terminalElem : terminalElems) {
-			String id = getAttribute("id", terminalElem);
-			Element spanElem = terminalElem.getChild("span");
-			if (spanElem == null) {
-			    throw new KAFNotValidException("Constituent non terminal nodes need a span");
-			}
-			Span<Term> span = loadTermSpan(spanElem, termIndex, id);
-			treeNodes.put(id, kaf.newTerminal(id, span));
-			rootNodes.put(id, true);
-		    }
-		    // NonTerminals
-		    List<Element> nonTerminalElems = treeElem.getChildren("nt");
-		    for (Element nonTerminalElem : nonTerminalElems) {
-			String id = getAttribute("id", nonTerminalElem);
-			String label = getAttribute("label", nonTerminalElem);
-			treeNodes.put(id, kaf.newNonTerminal(id, label));
-			rootNodes.put(id, true);
-		    }
-		    // Edges
-		    List<Element> edgeElems = treeElem.getChildren("edge");
-		    for (Element edgeElem : edgeElems) {
-			String fromId = getAttribute("from", edgeElem);
-			String toId = getAttribute("to", edgeElem);
-			String edgeId = getOptAttribute("id", edgeElem);
-			String head = getOptAttribute("head", edgeElem);
-			boolean isHead = (head != null && head.equals("yes")) ? true : false;
-			TreeNode parentNode = treeNodes.get(toId);
-			TreeNode childNode = treeNodes.get(fromId);
-			if ((parentNode == null) || (childNode == null)) {
-			    throw new KAFNotValidException("There is a problem with the edge(" + fromId + ", " + toId + "). One of its targets doesn't exist.");
-			}
-			try {
-			    ((NonTerminal) parentNode).addChild(childNode);
-			} catch(Exception e) {}
-			rootNodes.put(fromId, false);
-			if (edgeId != null) {
-			    childNode.setEdgeId(edgeId);
-			}
-			if (isHead) {
-			    ((NonTerminal) childNode).setHead(isHead);
+	    else {
+		skipElement(reader);
+	    }
+	}
+	Predicate newPredicate = kaf.newPredicate(id, (span == null) ? KAFDocument.newTermSpan() : span);
+	if (uri != null) {
+	    newPredicate.setUri(uri);
+	}
+	for (int i = 0; i < roleIds.size(); i++) {
+	    Predicate.Role newRole = kaf.newRole(roleIds.get(i), newPredicate, semRoles.get(i), roleSpans.get(i));
+	    newPredicate.addRole(newRole);
+	}
+	return newPredicate;
+    }
+
+    private static void readTree(XMLStreamReader reader, KAFDocument kaf, HashMap<String, Term> termIndex) throws XMLStreamException, KAFNotValidException {
+	HashMap<String, TreeNode> treeNodes = new HashMap<String, TreeNode>();
+	LinkedHashMap<String, Boolean> rootNodes = new LinkedHashMap<String, Boolean>();
+	/* Edges may refer to nodes declared after them, so they are linked once the whole tree has been read */
+	List<String[]> edges = new ArrayList<String[]>();
+	while (nextChild(reader)) {
+	    String name = reader.getLocalName();
+	    if (name.equals("t")) {
+		String id = getAttribute("id", reader);
+		Span<Term> span = null;
+		while (nextChild(reader)) {
+		    if (reader.getLocalName().equals("span") && (span == null)) {
+			span = readTermSpan(reader, termIndex, "object " + id);
+			if (span.isEmpty()) {
+			    throw new KAFNotValidException("A span element can not be empty");
 			}
 		    }
-		    // Constituent objects
-		    for (Map.Entry<String, Boolean> areRoot : rootNodes.entrySet()) {
-			if (areRoot.getValue()) {
-			    TreeNode rootNode = treeNodes.get(areRoot.getKey());
-			    kaf.newConstituent(rootNode);
-			}
+		    else {
+			skipElement(reader);
 		    }
 		}
+		if (span == null) {
+		    throw new KAFNotValidException("Constituent non terminal nodes need a span");
+		}
+		treeNodes.put(id, kaf.newTerminal(id, span));
+		rootNodes.put(id, true);
+	    }
+	    else if (name.equals("nt")) {
+		String id = getAttribute("id", reader);
+		String label = getAttribute("label", reader);
+		treeNodes.put(id, kaf.newNonTerminal(id, label));
+		rootNodes.put(id, true);
+		skipElement(reader);
+	    }
+	    else if (name.equals("edge")) {
+		String fromId = getAttribute("from", reader);
+		String toId = getAttribute("to", reader);
+		String edgeId = getOptAttribute("id", reader);
+		String head = getOptAttribute("head", reader);
+		edges.add(new String[] {fromId, toId, edgeId, head});
+		skipElement(reader);
+	    }
+	    else {
+		skipElement(reader);
+	    }
+	}
+	for (String[] edge : edges) {
+	    String fromId = edge[0];
+	    String toId = edge[1];
+	    String edgeId = edge[2];
+	    boolean isHead = (edge[3] != null && edge[3].equals("yes"));
+	    TreeNode parentNode = treeNodes.get(toId);
+	    TreeNode childNode = treeNodes.get(fromId);
+	    if ((parentNode == null) || (childNode == null)) {
+		throw new KAFNotValidException("There is a problem with the edge(" + fromId + ", " + toId + "). One of its targets doesn't exist.");
+	    }
+	    try {
+		((NonTerminal) parentNode).addChild(childNode);
+	    } catch(Exception e) {}
+	    rootNodes.put(fromId, false);
+	    if (edgeId != null) {
+		childNode.setEdgeId(edgeId);
+	    }
+	    if (isHead) {
+		childNode.setHead(isHead);
+	    }
+	}
+	// Constituent objects
+	for (Map.Entry<String, Boolean> areRoot : rootNodes.entrySet()) {
+	    if (areRoot.getValue()) {
+		TreeNode rootNode = treeNodes.get(areRoot.getKey());
+		kaf.newConstituent(rootNode);
 	    }
 	}
-
-	return kaf;
     }
 
-    private static Span<Term> loadTermSpan(Element spanElem, HashMap<String, Term> terms, String objId) throws KAFNotValidException {
-	List<Element> targetElems = spanElem.getChildren("target");
-	if (targetElems.size() < 1) {
-	    throw new KAFNotValidException("A span element can not be empty");
-	}
+    /** Reads a span element whose targets refer to terms. The reader must be positioned at the span's start tag and it is left at its end tag. */
+    private static Span<Term> readTermSpan(XMLStreamReader reader, HashMap<String, Term> terms, String objDesc) throws XMLStreamException, KAFNotValidException {
 	Span<Term> span = KAFDocument.newTermSpan();
-	for (Element targetElem : targetElems) {
-	    String targetId = getAttribute("id", targetElem);
-	    boolean isHead = isHead(targetElem);
+	while (nextChild(reader)) {
+	    String targetId = getAttribute("id", reader);
+	    boolean isHead = isHead(reader);
 	    Term targetTerm = terms.get(targetId);
 	    if (targetTerm == null) {
-		throw new KAFNotValidException("Term object " + targetId + " not found when loading object " + objId);
+		throw new KAFNotValidException("Term " + targetId + " not found when loading " + objDesc);
 	    }
 	    span.addTarget(targetTerm, isHead);
+	    skipElement(reader);
 	}
 	return span;
     }
 
-    private static Element createTermSpanElem(Span<Term> span) {
-	Element spanElem = new Element("span");
-	for (Term term : span.getTargets()) {
-	    Element targetElem = new Element("target");
-	    String targetId = term.getId();
-	    targetElem.setAttribute("id", targetId);
-	    if (span.isHead(term)) {
-		targetElem.setAttribute("head", "yes");
-	    }
-	    spanElem.addContent(targetElem);
-	}
-	return spanElem;
-    }
-
-    private static List<ExternalRef> getExternalReferences(Element externalReferencesElem, KAFDocument kaf) {
+    private static List<ExternalRef> readExternalReferences(XMLStreamReader reader, KAFDocument kaf) throws XMLStreamException {
 	List<ExternalRef> externalRefs = new ArrayList<ExternalRef>();
-	List<Element> externalRefElems = externalReferencesElem.getChildren();
-	for (Element externalRefElem : externalRefElems) {
-	    ExternalRef externalRef = getExternalRef(externalRefElem, kaf);
-	    externalRefs.add(externalRef);
+	while (nextChild(reader)) {
+	    externalRefs.add(readExternalRef(reader, kaf));
 	}
 	return externalRefs;
     }
 
-    private static ExternalRef getExternalRef(Element externalRefElem, KAFDocument kaf) {
-	String resource = getAttribute("resource", externalRefElem);
-	String references = getAttribute("reference", externalRefElem);
+    private static ExternalRef readExternalRef(XMLStreamReader reader, KAFDocument kaf) throws XMLStreamException {
+	String resource = getAttribute("resource", reader);
+	String references = getAttribute("reference", reader);
 	ExternalRef newExternalRef = kaf.newExternalRef(resource, references);
-	String confidence = getOptAttribute("confidence", externalRefElem);
+	String confidence = getOptAttribute("confidence", reader);
 	if (confidence != null) {
 	    newExternalRef.setConfidence(Float.valueOf(confidence));
 	}
-	List<Element> subRefElems = externalRefElem.getChildren("externalRef");
-	if (subRefElems.size() > 0) {
-	    Element subRefElem = subRefElems.get(0);
-	    ExternalRef subRef = getExternalRef(subRefElem, kaf);
-	    newExternalRef.setExternalRef(subRef);
+	while (nextChild(reader)) {
+	    if (reader.getLocalName().equals("externalRef") && !newExternalRef.hasExternalRef()) {
+		newExternalRef.setExternalRef(readExternalRef(reader, kaf));
+	    }
+	    else {
+		skipElement(reader);
+	    }
 	}
 	return newExternalRef;
     }
 
-    private static String getAttribute(String attName, Element elem) {
-	String value = elem.getAttributeValue(attName);
-	if (value==null) {
-	    throw new IllegalStateException(attName+" attribute must be defined for element "+elem.getName());
+    /** Advances the reader to the start tag of the document's root element. */
+    static void moveToRootElement(XMLStreamReader reader) throws XMLStreamException, KAFNotValidException {
+	while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+	    if (!reader.hasNext()) {
+		throw new KAFNotValidException("The document has no root element");
+	    }
+	    reader.next();
+	}
+    }
+
+    /** Advances the reader to the start tag of the next child of the current element. Returns false, leaving the reader at the end tag of the parent, when there are no more children. */
+    static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+	while (reader.hasNext()) {
+	    int event = reader.next();
+	    if (event == XMLStreamConstants.START_ELEMENT) {
+		return true;
+	    }
+	    if (event == XMLStreamConstants.END_ELEMENT) {
+		return false;
+	    }
+	}
+	return false;
+    }
+
+    /** Skips the remaining content of the current element, leaving the reader at its end tag. */
+    static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+	int depth = 1;
+	while (depth > 0) {
+	    int event = reader.next();
+	    if (event == XMLStreamConstants.START_ELEMENT) {
+		depth++;
+	    }
+	    else if (event == XMLStreamConstants.END_ELEMENT) {
+		depth--;
+	    }
 	}
-	return value;
     }
 
-    private static String getAttribute(String attName, Element elem, Namespace nmspace) {
-	String value = elem.getAttributeValue(attName, nmspace);
+    static String getAttribute(String attName, XMLStreamReader reader) {
+	String value = reader.getAttributeValue(null, attName);
 	if (value==null) {
-	    throw new IllegalStateException(attName+" attribute must be defined for element "+elem.getName());
+	    throw new IllegalStateException(attName+" attribute must be defined for element "+reader.getLocalName());
 	}
 	return value;
     }
 
-    private static String getOptAttribute(String attName, Element elem) {
-	String value = elem.getAttributeValue(attName);
+    static String getAttribute(String attName, XMLStreamReader reader, String nmspace) {
+	String value = reader.getAttributeValue(nmspace, attName);
 	if (value==null) {
-	    return null;
+	    throw new IllegalStateException(attName+" attribute must be defined for element "+reader.getLocalName());
 	}
 	return value;
     }
 
-    private static boolean isHead(Element elem) {
-	String value = elem.getAttributeValue("head");
+    static String getOptAttribute(String attName, XMLStreamReader reader) {
+	return reader.getAttributeValue(null, attName);
+    }
+
+    private static boolean isHead(XMLStreamReader reader) {
+	String value = reader.getAttributeValue(null, "head");
 	if (value == null) {
 	    return false;
 	}
@@ -805,6 +1202,359 @@ class ReadWriteManager {
     }
 
 
+
+    /** Writes the given layer if it was kept as raw XML when the document was loaded. */
+    private static void writeRawLayer(PrettyXMLWriter out, AnnotationContainer annotationContainer, String layerElemName) throws IOException {
+	byte[] rawLayer = annotationContainer.getRawLayer(layerElemName);
+	if (rawLayer != null) {
+	    out.raw(rawLayer);
+	}
+    }
+
+    private static void writeTermSpan(PrettyXMLWriter out, Span<Term> span) throws IOException {
+	out.startElement("span");
+	for (Term term : span.getTargets()) {
+	    out.startElement("target");
+	    out.attribute("id", term.getId());
+	    if (span.isHead(term)) {
+		out.attribute("head", "yes");
+	    }
+	    out.endElement();
+	}
+	out.endElement();
+    }
+
+    private static void writeReferences(PrettyXMLWriter out, Feature feature) throws IOException {
+	out.startElement("references");
+	for (Span<Term> span : feature.getSpans()) {
+	    if (out.writesComments()) {
+		out.comment(feature.getSpanStr(span));
+	    }
+	    writeTermSpan(out, span);
+	}
+	out.endElement();
+    }
+
+    /** Input stream which cuts the given top-level elements out of an XML document as it is read, keeping their bytes apart. It is used to skip whole layers before they reach the XML parser. It scans bytes, so it only works with ASCII compatible encodings such as UTF-8 or ISO-8859-1. */
+    private static class LayerFilter extends FilterInputStream {
+	private static final int TEXT = 0, TAG = 1, NAME = 2, START_TAG = 3, END_TAG = 4, BANG = 5, COMMENT = 6, CDATA = 7, PI = 8, DECLARATION = 9;
+	private Set<String> skippedElems;
+	private LinkedHashMap<String, byte[]> skipped = new LinkedHashMap<String, byte[]>();
+	private List<String> topLevelElems = new ArrayList<String>();
+	private byte[] inBuf = new byte[8192];
+	/** Bytes ready to be returned to the parser */
+	private ByteBuilder out = new ByteBuilder(16384);
+	private int outPos = 0;
+	/** Bytes of the tag being read, held until its name is known */
+	private ByteBuilder pending = new ByteBuilder(64);
+	private StringBuilder name = new StringBuilder();
+	/** Element being cut out, or null */
+	private String skippedName = null;
+	private ByteBuilder skippedBytes = null;
+	/** Where the bytes are sent: out, or skippedBytes inside a skipped element */
+	private ByteBuilder sink = out;
+	private int state = TEXT;
+	private int depth = 0;
+	private int quote = 0;
+	private int brackets = 0;
+	private int last1 = 0;
+	private int last2 = 0;
+	private boolean eof = false;
+	/** If false, the bytes of the skipped elements are dropped instead of being kept */
+	private boolean keepSkipped;
+	private ByteBuilder discarded = new ByteBuilder(16384);
+
+	LayerFilter(InputStream in, Set<String> skippedElems) {
+	    this(in, skippedElems, true);
+	}
+
+	LayerFilter(InputStream in, Set<String> skippedElems, boolean keepSkipped) {
+	    super(in);
+	    this.skippedElems = skippedElems;
+	    this.keepSkipped = keepSkipped;
+	}
+
+	/** Returns true if the encoding of the given stream is compatible with ASCII. The stream must support mark. */
+	static boolean canFilter(InputStream in) throws IOException {
+	    in.mark(2);
+	    int b1 = in.read();
+	    int b2 = in.read();
+	    in.reset();
+	    // UTF-16 byte order marks, or a UTF-16 "<"
+	    return !((b1 == 0xFE && b2 == 0xFF) || (b1 == 0xFF && b2 == 0xFE) || b1 == 0 || b2 == 0);
+	}
+
+	/** Returns the elements cut out of the document, by name, in the encoding of the document */
+	Map<String, byte[]> getSkippedElems() {
+	    return skipped;
+	}
+
+	/** Returns the names of the children of the root element read so far, in document order */
+	List<String> getTopLevelElems() {
+	    return topLevelElems;
+	}
+
+	public int read() throws IOException {
+	    byte[] b = new byte[1];
+	    int n = read(b, 0, 1);
+	    return (n == -1) ? -1 : (b[0] & 0xFF);
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+	    while (outPos == out.length) {
+		if (eof) {
+		    return -1;
+		}
+		fill();
+	    }
+	    int n = Math.min(len, out.length - outPos);
+	    System.arraycopy(out.bytes, outPos, b, off, n);
+	    outPos += n;
+	    return n;
+	}
+
+	public long skip(long n) throws IOException {
+	    long count = 0;
+	    while (count < n && read() != -1) {
+		count++;
+	    }
+	    return count;
+	}
+
+	public int available() {
+	    return out.length - outPos;
+	}
+
+	public boolean markSupported() {
+	    return false;
+	}
+
+	private void fill() throws IOException {
+	    outPos = 0;
+	    out.length = 0;
+	    discarded.length = 0;
+	    int n = in.read(inBuf);
+	    if (n == -1) {
+		eof = true;
+		return;
+	    }
+	    int i = 0;
+	    while (i < n) {
+		i = scan(inBuf, i, n);
+	    }
+	}
+
+	/** Consumes bytes from buf, starting at i, as long as the state doesn't change. Returns the index of the first byte not consumed. */
+	private int scan(byte[] buf, int i, int n) {
+	    int start = i;
+	    int c;
+	    switch (state) {
+	    case TEXT:
+		while (i < n && buf[i] != '<') {
+		    i++;
+		}
+		sink.append(buf, start, i - start);
+		if (i < n) {
+		    pending.append('<');
+		    state = TAG;
+		    i++;
+		}
+		return i;
+	    case TAG:
+		c = buf[i++];
+		pending.append(c);
+		if (c == '/') {
+		    state = END_TAG;
+		}
+		else if (c == '!') {
+		    state = BANG;
+		}
+		else if (c == '?') {
+		    state = PI;
+		    last1 = 0;
+		}
+		else {
+		    state = NAME;
+		    name.setLength(0);
+		    name.append((char) (c & 0xFF));
+		    return i;
+		}
+		flushPending();
+		return i;
+	    case NAME:
+		while (i < n) {
+		    c = buf[i];
+		    if (c == '>' || c == '/' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+			pending.append(buf, start, i - start);
+			if (depth == 1) {
+			    topLevelElems.add(name.toString());
+			}
+			if (skippedBytes == null && depth == 1 && skippedElems.contains(name.toString())) {
+			    skippedName = name.toString();
+			    skippedBytes = keepSkipped ? new ByteBuilder(65536) : discarded;
+			    sink = skippedBytes;
+			}
+			flushPending();
+			state = START_TAG;
+			last1 = 0;
+			quote = 0;
+			return i;
+		    }
+		    name.append((char) (c & 0xFF));
+		    i++;
+		}
+		pending.append(buf, start, i - start);
+		return i;
+	    case START_TAG:
+		while (i < n) {
+		    c = buf[i++];
+		    if (quote != 0) {
+			if (c == quote) {
+			    quote = 0;
+			}
+		    }
+		    else if (c == '"' || c == '\'') {
+			quote = c;
+		    }
+		    else if (c == '>') {
+			sink.append(buf, start, i - start);
+			state = TEXT;
+			if (last1 == '/') {
+			    endElement(depth);
+			}
+			else {
+			    depth++;
+			}
+			return i;
+		    }
+		    last1 = c;
+		}
+		break;
+	    case END_TAG:
+		while (i < n) {
+		    if (buf[i++] == '>') {
+			sink.append(buf, start, i - start);
+			state = TEXT;
+			depth--;
+			endElement(depth);
+			return i;
+		    }
+		}
+		break;
+	    case BANG:
+		c = buf[i++];
+		if (c == '-') {
+		    state = COMMENT;
+		}
+		else if (c == '[') {
+		    state = CDATA;
+		}
+		else {
+		    state = DECLARATION;
+		    quote = 0;
+		    brackets = 0;
+		}
+		last1 = 0;
+		last2 = 0;
+		break;
+	    case COMMENT:
+	    case CDATA:
+		int close = (state == COMMENT) ? '-' : ']';
+		while (i < n) {
+		    c = buf[i++];
+		    if (c == '>' && last1 == close && last2 == close) {
+			state = TEXT;
+			break;
+		    }
+		    last2 = last1;
+		    last1 = c;
+		}
+		break;
+	    case PI:
+		while (i < n) {
+		    c = buf[i++];
+		    if (c == '>' && last1 == '?') {
+			state = TEXT;
+			break;
+		    }
+		    last1 = c;
+		}
+		break;
+	    case DECLARATION:
+		while (i < n) {
+		    c = buf[i++];
+		    if (quote != 0) {
+			if (c == quote) {
+			    quote = 0;
+			}
+		    }
+		    else if (c == '"' || c == '\'') {
+			quote = c;
+		    }
+		    else if (c == '[') {
+			brackets++;
+		    }
+		    else if (c == ']') {
+			brackets--;
+		    }
+		    else if (c == '>' && brackets == 0) {
+			state = TEXT;
+			break;
+		    }
+		}
+		break;
+	    }
+	    sink.append(buf, start, i - start);
+	    return i;
+	}
+
+	private void flushPending() {
+	    sink.append(pending.bytes, 0, pending.length);
+	    pending.length = 0;
+	}
+
+	/** Growable byte array. Unlike ByteArrayOutputStream, it is not synchronized. */
+	private static class ByteBuilder {
+	    byte[] bytes;
+	    int length = 0;
+
+	    ByteBuilder(int capacity) {
+		bytes = new byte[capacity];
+	    }
+
+	    void append(int c) {
+		if (length == bytes.length) {
+		    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+		}
+		bytes[length++] = (byte) c;
+	    }
+
+	    void append(byte[] b, int off, int len) {
+		if (length + len > bytes.length) {
+		    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + len));
+		}
+		System.arraycopy(b, off, bytes, length, len);
+		length += len;
+	    }
+
+	    byte[] toByteArray() {
+		return Arrays.copyOf(bytes, length);
+	    }
+	}
+
+	/** Stops cutting bytes out when the skipped element has been closed */
+	private void endElement(int depth) {
+	    if (skippedBytes != null && depth == 1) {
+		if (keepSkipped) {
+		    skipped.put(skippedName, skippedBytes.toByteArray());
+		}
+		skippedName = null;
+		skippedBytes = null;
+		sink = out;
+	    }
+	}
+    }
+
     private static class Edge {
 	String id;
 	String from;
@@ -819,533 +1569,443 @@ class ReadWriteManager {
 	}
     }
 
-    /** Returns the content of the given KAFDocument in a DOM document. */
-    private static Document KAFToDOM(KAFDocument kaf) {
+    /** Writes the content of the given KAFDocument, layer by layer, as each element is generated. */
+    private static void writeKAF(KAFDocument kaf, PrettyXMLWriter out) throws IOException {
 	AnnotationContainer annotationContainer = kaf.getAnnotationContainer();
-	Element root = new Element("KAF");
-	root.setAttribute("lang", kaf.getLang(), Namespace.XML_NAMESPACE);
-	root.setAttribute("version", kaf.getVersion());
+	out.startDocument();
+	out.startElement("KAF");
+	out.attribute("xml:lang", kaf.getLang());
+	out.attribute("version", kaf.getVersion());
 
-	Document doc = new Document(root);
-
-	Element kafHeaderElem = new Element("kafHeader");
-	root.addContent(kafHeaderElem);
+	out.startElement("kafHeader");
 
 	KAFDocument.FileDesc fd = kaf.getFileDesc();
 	if (fd != null) {
-	    Element fdElem = new Element("fileDesc");
+	    out.startElement("fileDesc");
 	    if (fd.author != null) {
-		fdElem.setAttribute("author", fd.author);
+		out.attribute("author", fd.author);
 	    }
 	    if (fd.author != null) {
-		fdElem.setAttribute("title", fd.title);
+		out.optAttribute("title", fd.title);
 	    }
 	    if (fd.creationtime != null) {
-		fdElem.setAttribute("creationtime", fd.creationtime);
+		out.attribute("creationtime", fd.creationtime);
 	    }
 	    if (fd.author != null) {
-		fdElem.setAttribute("filename", fd.filename);
+		out.optAttribute("filename", fd.filename);
 	    }
 	    if (fd.author != null) {
-		fdElem.setAttribute("filetype", fd.filetype);
+		out.optAttribute("filetype", fd.filetype);
 	    }
 	    if (fd.author != null) {
-		fdElem.setAttribute("pages", Integer.toString(fd.pages));
+		out.attribute("pages", Integer.toString(fd.pages));
 	    }
-	    kafHeaderElem.addContent(fdElem);
+	    out.endElement();
 	}
 
 	KAFDocument.Public pub = kaf.getPublic();
 	if (pub != null) {
-	    Element pubElem = new Element("public");
-	    pubElem.setAttribute("publicId", pub.publicId);
+	    out.startElement("public");
+	    out.attribute("publicId", pub.publicId);
 	    if (pub.uri != null) {
-		pubElem.setAttribute("uri", pub.uri);
+		out.attribute("uri", pub.uri);
 	    }
-	    kafHeaderElem.addContent(pubElem);
+	    out.endElement();
 	}
 
 	Map<String, List<KAFDocument.LinguisticProcessor>> lps = kaf.getLinguisticProcessors();
-	for (Map.Entry entry : lps.entrySet()) {
-	    Element lpsElem = new Element("linguisticProcessors");
-	    lpsElem.setAttribute("layer", (String) entry.getKey());
-	    for (KAFDocument.LinguisticProcessor lp : (List<KAFDocument.LinguisticProcessor>) entry.getValue()) {
-		Element lpElem = new Element("lp");
-		lpElem.setAttribute("name", lp.name);
+	for (Map.Entry<String, List<KAFDocument.LinguisticProcessor>> entry : lps.entrySet()) {
+	    out.startElement("linguisticProcessors");
+	    out.attribute("layer", entry.getKey());
+	    for (KAFDocument.LinguisticProcessor lp : entry.getValue()) {
+		out.startElement("lp");
+		out.attribute("name", lp.name);
 		if (lp.hasTimestamp()) {
-		    lpElem.setAttribute("timestamp", lp.timestamp);
+		    out.attribute("timestamp", lp.timestamp);
 		}
 		if (lp.hasBeginTimestamp()) {
-		    lpElem.setAttribute("beginTimestamp", lp.beginTimestamp);
+		    out.attribute("beginTimestamp", lp.beginTimestamp);
 		}
 		if (lp.hasEndTimestamp()) {
-		    lpElem.setAttribute("endTimestamp", lp.endTimestamp);
+		    out.attribute("endTimestamp", lp.endTimestamp);
 		}
 		if (lp.hasVersion()) {
-		    lpElem.setAttribute("version", lp.version);
+		    out.attribute("version", lp.version);
 		}
-		lpsElem.addContent(lpElem);
+		out.endElement();
 	    }
-	    kafHeaderElem.addContent(lpsElem);
+	    out.endElement();
 	}
+	out.endElement();
 
 	String rawText = annotationContainer.getRawText();
 	if (rawText.length() > 0) {
-	    Element rawElem = new Element("raw");
-	    CDATA cdataElem =  new CDATA(rawText);
-	    rawElem.addContent(cdataElem);
-	    root.addContent(rawElem);
+	    out.startElement("raw");
+	    out.cdata(rawText);
+	    out.endElement();
 	}
 
+	writeRawLayer(out, annotationContainer, "text");
 	List<WF> text = annotationContainer.getText();
 	if (text.size() > 0) {
-	    Element textElem = new Element("text");
+	    out.startElement("text");
 	    for (WF wf : text) {
-		Element wfElem = new Element("wf");
-		wfElem.setAttribute("wid", wf.getId());
+		out.startElement("wf");
+		out.attribute("wid", wf.getId());
 		if (wf.hasSent()) {
-		    wfElem.setAttribute("sent", Integer.toString(wf.getSent()));
+		    out.attribute("sent", Integer.toString(wf.getSent()));
 		}
 		if (wf.hasPara()) {
-		    wfElem.setAttribute("para", Integer.toString(wf.getPara()));
+		    out.attribute("para", Integer.toString(wf.getPara()));
 		}
 		if (wf.hasPage()) {
-		    wfElem.setAttribute("page", Integer.toString(wf.getPage()));
+		    out.attribute("page", Integer.toString(wf.getPage()));
 		}
 		if (wf.hasOffset()) {
-		    wfElem.setAttribute("offset", Integer.toString(wf.getOffset()));
+		    out.attribute("offset", Integer.toString(wf.getOffset()));
 		}
 		if (wf.hasLength()) {
-		    wfElem.setAttribute("length", Integer.toString(wf.getLength()));
+		    out.attribute("length", Integer.toString(wf.getLength()));
 		}
 		if (wf.hasXpath()) {
-		    wfElem.setAttribute("xpath", wf.getXpath());
+		    out.attribute("xpath", wf.getXpath());
 		}
-		wfElem.setText(wf.getForm());
-		textElem.addContent(wfElem);
+		out.text(wf.getForm());
+		out.endElement();
 	    }
-	    root.addContent(textElem);
+	    out.endElement();
 	}
 
+	writeRawLayer(out, annotationContainer, "terms");
 	List<Term> terms = annotationContainer.getTerms();
 	if (terms.size() > 0) {
-	    Element termsElem = new Element("terms");
+	    out.startElement("terms");
 	    for (Term term : terms) {
-		String morphofeat;
-		Term.Component head;
-		String termcase;
-		Comment termComment = new Comment(term.getStr());
-		termsElem.addContent(termComment);
-		Element termElem = new Element("term");
-		termElem.setAttribute("tid", term.getId());
-		termElem.setAttribute("type", term.getType());
-		termElem.setAttribute("lemma", term.getLemma());
-		termElem.setAttribute("pos", term.getPos());
+		if (out.writesComments()) {
+		    out.comment(term.getStr());
+		}
+		out.startElement("term");
+		out.attribute("tid", term.getId());
+		out.attribute("type", term.getType());
+		out.attribute("lemma", term.getLemma());
+		out.attribute("pos", term.getPos());
 		if (term.hasMorphofeat()) {
-		    termElem.setAttribute("morphofeat", term.getMorphofeat());
+		    out.attribute("morphofeat", term.getMorphofeat());
 		}
 		if (term.hasHead()) {
-		    termElem.setAttribute("head", term.getHead().getId());
+		    out.attribute("head", term.getHead().getId());
 		}
 		if (term.hasCase()) {
-		    termElem.setAttribute("case", term.getCase());
+		    out.attribute("case", term.getCase());
 		}
 		if (term.hasSentiment()) {
 		    Term.Sentiment sentiment = term.getSentiment();
-		    Element sentimentElem = new Element("sentiment");
+		    out.startElement("sentiment");
 		    if (sentiment.hasResource()) {
-			sentimentElem.setAttribute("resource", sentiment.getResource());
+			out.attribute("resource", sentiment.getResource());
 		    }
 		    if (sentiment.hasPolarity()) {
-			sentimentElem.setAttribute("polarity", sentiment.getPolarity());
+			out.attribute("polarity", sentiment.getPolarity());
 		    }
 		    if (sentiment.hasStrength()) {
-			sentimentElem.setAttribute("strength", sentiment.getStrength());
+			out.attribute("strength", sentiment.getStrength());
 		    }
 		    if (sentiment.hasSubjectivity()) {
-			sentimentElem.setAttribute("subjectivity", sentiment.getSubjectivity());
+			out.attribute("subjectivity", sentiment.getSubjectivity());
 		    }
 		    if (sentiment.hasSentimentSemanticType()) {
-			sentimentElem.setAttribute("sentiment_semantic_type", sentiment.getSentimentSemanticType());
+			out.attribute("sentiment_semantic_type", sentiment.getSentimentSemanticType());
 		    }
 		    if (sentiment.hasSentimentModifier()) {
-			sentimentElem.setAttribute("sentiment_modifier", sentiment.getSentimentModifier());
+			out.attribute("sentiment_modifier", sentiment.getSentimentModifier());
 		    }
 		    if (sentiment.hasSentimentMarker()) {
-			sentimentElem.setAttribute("sentiment_marker", sentiment.getSentimentMarker());
+			out.attribute("sentiment_marker", sentiment.getSentimentMarker());
 		    }
 		    if (sentiment.hasSentimentProductFeature()) {
-			sentimentElem.setAttribute("sentiment_product_feature", sentiment.getSentimentProductFeature());
+			out.attribute("sentiment_product_feature", sentiment.getSentimentProductFeature());
 		    }
-		    termElem.addContent(sentimentElem);
+		    out.endElement();
 		}
-		Element spanElem = new Element("span");
+		out.startElement("span");
 		Span<WF> span = term.getSpan();
 		for (WF target : term.getWFs()) {
-		    Element targetElem = new Element("target");
-		    targetElem.setAttribute("id", target.getId());
+		    out.startElement("target");
+		    out.attribute("id", target.getId());
 		    if (target == span.getHead()) {
-			targetElem.setAttribute("head", "yes");
+			out.attribute("head", "yes");
 		    }
-		    spanElem.addContent(targetElem);
-		}
-		termElem.addContent(spanElem);
-		List<Term.Component> components = term.getComponents();
-		if (components.size() > 0) {
-		    for (Term.Component component : components) {
-			Element componentElem = new Element("component");
-			componentElem.setAttribute("id", component.getId());
-			componentElem.setAttribute("lemma", component.getLemma());
-			componentElem.setAttribute("pos", component.getPos());
+		    out.endElement();
+		}
+		out.endElement();
+		if (term.hasComponents()) {
+		    for (Term.Component component : term.getComponents()) {
+			out.startElement("component");
+			out.attribute("id", component.getId());
+			out.attribute("lemma", component.getLemma());
+			out.attribute("pos", component.getPos());
 			if (component.hasCase()) {
-			    componentElem.setAttribute("case", component.getCase());
+			    out.attribute("case", component.getCase());
 			}
 			List<ExternalRef> externalReferences = component.getExternalRefs();
 			if (externalReferences.size() > 0) {
-			    Element externalReferencesElem = externalReferencesToDOM(externalReferences);
-			    componentElem.addContent(externalReferencesElem);
+			    writeExternalReferences(out, externalReferences);
 			}
-			termElem.addContent(componentElem);
+			out.endElement();
 		    }
 		}
-		List<ExternalRef> externalReferences = term.getExternalRefs();
-		if (externalReferences.size() > 0) {
-		    Element externalReferencesElem = externalReferencesToDOM(externalReferences);
-		    termElem.addContent(externalReferencesElem);
+		if (term.hasExternalRefs()) {
+		    writeExternalReferences(out, term.getExternalRefs());
 		}
-		termsElem.addContent(termElem);
+		out.endElement();
 	    }
-	    root.addContent(termsElem);
+	    out.endElement();
 	}
 
+	writeRawLayer(out, annotationContainer, "deps");
 	List<Dep> deps = annotationContainer.getDeps();
 	if (deps.size() > 0) {
-	    Element depsElem = new Element("deps");
+	    out.startElement("deps");
 	    for (Dep dep : deps) {
-		Comment depComment = new Comment(dep.getStr());
-		depsElem.addContent(depComment);
-		Element depElem = new Element("dep");
-		depElem.setAttribute("from", dep.getFrom().getId());
-		depElem.setAttribute("to", dep.getTo().getId());
-		depElem.setAttribute("rfunc", dep.getRfunc());
+		if (out.writesComments()) {
+		    out.comment(dep.getStr());
+		}
+		out.startElement("dep");
+		out.attribute("from", dep.getFrom().getId());
+		out.attribute("to", dep.getTo().getId());
+		out.attribute("rfunc", dep.getRfunc());
 		if (dep.hasCase()) {
-		    depElem.setAttribute("case", dep.getCase());
+		    out.attribute("case", dep.getCase());
 		}
-		depsElem.addContent(depElem);
+		out.endElement();
 	    }
-	    root.addContent(depsElem);
+	    out.endElement();
 	}
 
+	writeRawLayer(out, annotationContainer, "chunks");
 	List<Chunk> chunks = annotationContainer.getChunks();
 	if (chunks.size() > 0) {
-	    Element chunksElem = new Element("chunks");
+	    out.startElement("chunks");
 	    for (Chunk chunk : chunks) {
-		Comment chunkComment = new Comment(chunk.getStr());
-		chunksElem.addContent(chunkComment);
-		Element chunkElem = new Element("chunk");
-		chunkElem.setAttribute("cid", chunk.getId());
-		chunkElem.setAttribute("head", chunk.getHead().getId());
-		chunkElem.setAttribute("phrase", chunk.getPhrase());
+		if (out.writesComments()) {
+		    out.comment(chunk.getStr());
+		}
+		out.startElement("chunk");
+		out.attribute("cid", chunk.getId());
+		out.attribute("head", chunk.getHead().getId());
+		out.attribute("phrase", chunk.getPhrase());
 		if (chunk.hasCase()) {
-		    chunkElem.setAttribute("case", chunk.getCase());
+		    out.attribute("case", chunk.getCase());
 		}
-		Element spanElem = new Element("span");
+		out.startElement("span");
 		for (Term target : chunk.getTerms()) {
-		    Element targetElem = new Element("target");
-		    targetElem.setAttribute("id", target.getId());
-		    spanElem.addContent(targetElem);
+		    out.startElement("target");
+		    out.attribute("id", target.getId());
+		    out.endElement();
 		}
-		chunkElem.addContent(spanElem);
-		chunksElem.addContent(chunkElem);
+		out.endElement();
+		out.endElement();
 	    }
-	    root.addContent(chunksElem);
+	    out.endElement();
 	}
 
+	writeRawLayer(out, annotationContainer, "entities");
 	List<Entity> entities = annotationContainer.getEntities();
 	if (entities.size() > 0) {
-	    Element entitiesElem = new Element("entities");
+	    out.startElement("entities");
 	    for (Entity entity : entities) {
-		Element entityElem = new Element("entity");
-		entityElem.setAttribute("eid", entity.getId());
-		entityElem.setAttribute("type", entity.getType());
-		Element referencesElem = new Element("references");
+		out.startElement("entity");
+		out.attribute("eid", entity.getId());
+		out.optAttribute("type", entity.getType());
+		out.startElement("references");
 		for (Span<Term> span : entity.getSpans()) {
-		    Comment spanComment = new Comment(entity.getSpanStr(span));
-		    referencesElem.addContent(spanComment);
-		    Element spanElem = new Element("span");
-		    for (Term term : span.getTargets()) {
-			Element targetElem = new Element("target");
-			targetElem.setAttribute("id", term.getId());
-			if (term == span.getHead()) {
-			    targetElem.setAttribute("head", "yes");
-			}
-			spanElem.addContent(targetElem);
+		    if (out.writesComments()) {
+			out.comment(entity.getSpanStr(span));
 		    }
-		    referencesElem.addContent(spanElem);
+		    writeTermSpan(out, span);
 		}
-		entityElem.addContent(referencesElem);
+		out.endElement();
 		List<ExternalRef> externalReferences = entity.getExternalRefs();
 		if (externalReferences.size() > 0) {
-		    Element externalReferencesElem = externalReferencesToDOM(externalReferences);
-		    entityElem.addContent(externalReferencesElem);
+		    writeExternalReferences(out, externalReferences);
 		}
-		entitiesElem.addContent(entityElem);
+		out.endElement();
 	    }
-	    root.addContent(entitiesElem);
+	    out.endElement();
 	}
 
+	writeRawLayer(out, annotationContainer, "coreferences");
 	List<Coref> corefs = annotationContainer.getCorefs();
 	if (corefs.size() > 0) {
-	    Element corefsElem = new Element("coreferences");
+	    out.startElement("coreferences");
 	    for (Coref coref : corefs) {
-		Element corefElem = new Element("coref");
-		corefElem.setAttribute("coid", coref.getId());
+		out.startElement("coref");
+		out.attribute("coid", coref.getId());
 		for (Span<Term> span : coref.getSpans()) {
-		    Comment spanComment = new Comment(coref.getSpanStr(span));
-		    corefElem.addContent(spanComment);
-		    Element spanElem = new Element("span");
-		    for (Term target : span.getTargets()) {
-			Element targetElem = new Element("target");
-			targetElem.setAttribute("id", target.getId());
-			if (target == span.getHead()) {
-			    targetElem.setAttribute("head", "yes");
-			}
-			spanElem.addContent(targetElem);
+		    if (out.writesComments()) {
+			out.comment(coref.getSpanStr(span));
 		    }
-		    corefElem.addContent(spanElem);
+		    writeTermSpan(out, span);
 		}
-		corefsElem.addContent(corefElem);
+		out.endElement();
 	    }
-	    root.addContent(corefsElem);
+	    out.endElement();
 	}
 
-	Element featuresElem = new Element("features");
+	writeRawLayer(out, annotationContainer, "features");
 	List<Feature> properties = annotationContainer.getProperties();
-	if (properties.size() > 0) {
-	    Element propertiesElem = new Element("properties");
-	    for (Feature property : properties) {
-		Element propertyElem = new Element("property");
-		propertyElem.setAttribute("pid", property.getId());
-		propertyElem.setAttribute("lemma", property.getLemma());
-		List<Span<Term>> references = property.getSpans();
-		Element referencesElem = new Element("references");
-		for (Span<Term> span : references) {
-		    Comment spanComment = new Comment(property.getSpanStr(span));
-		    referencesElem.addContent(spanComment);
-		    Element spanElem = new Element("span");
-		    for (Term term : span.getTargets()) {
-			Element targetElem = new Element("target");
-			targetElem.setAttribute("id", term.getId());
-			if (term == span.getHead()) {
-			    targetElem.setAttribute("head", "yes");
-			}
-			spanElem.addContent(targetElem);
-		    }
-		    referencesElem.addContent(spanElem);
+	List<Feature> categories = annotationContainer.getCategories();
+	if ((properties.size() > 0) || (categories.size() > 0)) {
+	    out.startElement("features");
+	    if (properties.size() > 0) {
+		out.startElement("properties");
+		for (Feature property : properties) {
+		    out.startElement("property");
+		    out.attribute("pid", property.getId());
+		    out.attribute("lemma", property.getLemma());
+		    writeReferences(out, property);
+		    out.endElement();
 		}
-		propertyElem.addContent(referencesElem);
-		propertiesElem.addContent(propertyElem);
+		out.endElement();
 	    }
-	    featuresElem.addContent(propertiesElem);
-	}
-	List<Feature> categories = annotationContainer.getCategories();
-	if (categories.size() > 0) {
-	    Element categoriesElem = new Element("categories");
-	    for (Feature category : categories) {
-		Element categoryElem = new Element("category");
-		categoryElem.setAttribute("cid", category.getId());
-		categoryElem.setAttribute("lemma", category.getLemma());
-		List<Span<Term>> references = category.getSpans();
-		Element referencesElem = new Element("references");
-		for (Span<Term> span : references) {
-		    Comment spanComment = new Comment(category.getSpanStr(span));
-		    referencesElem.addContent(spanComment);
-		    Element spanElem = new Element("span");
-		    for (Term term : span.getTargets()) {
-			Element targetElem = new Element("target");
-			targetElem.setAttribute("id", term.getId());
-			if (term == span.getHead()) {
-			    targetElem.setAttribute("head", "yes");
-			}
-			spanElem.addContent(targetElem);
-		    }
-		    referencesElem.addContent(spanElem);
+	    if (categories.size() > 0) {
+		out.startElement("categories");
+		for (Feature category : categories) {
+		    out.startElement("category");
+		    out.attribute("cid", category.getId());
+		    out.attribute("lemma", category.getLemma());
+		    writeReferences(out, category);
+		    out.endElement();
 		}
-		categoryElem.addContent(referencesElem);
-		categoriesElem.addContent(categoryElem);
+		out.endElement();
 	    }
-	    featuresElem.addContent(categoriesElem);
-	}
-	if (featuresElem.getChildren().size() > 0) {
-	    root.addContent(featuresElem);
+	    out.endElement();
 	}
 
+	writeRawLayer(out, annotationContainer, "opinions");
 	List<Opinion> opinions = annotationContainer.getOpinions();
 	if (opinions.size() > 0) {
-	    Element opinionsElem = new Element("opinions");
+	    out.startElement("opinions");
 	    for (Opinion opinion : opinions) {
-		Element opinionElem = new Element("opinion");
-		opinionElem.setAttribute("oid", opinion.getId());
+		out.startElement("opinion");
+		out.attribute("oid", opinion.getId());
 		Opinion.OpinionHolder holder = opinion.getOpinionHolder();
 		if (holder != null) {
-		    Element opinionHolderElem = new Element("opinion_holder");
-		    Comment comment = new Comment(opinion.getSpanStr(opinion.getOpinionHolder().getSpan()));
-		    opinionHolderElem.addContent(comment);
-		    List<Term> targets = holder.getTerms();
-		    Span<Term> span = holder.getSpan();
-		    if (targets.size() > 0) {
-			Element spanElem = new Element("span");
-			opinionHolderElem.addContent(spanElem);
-			for (Term target : targets) {
-			    Element targetElem = new Element("target");
-			    targetElem.setAttribute("id", target.getId());
-			    if (target == span.getHead()) {
-				targetElem.setAttribute("head", "yes");
-			    }
-			    spanElem.addContent(targetElem);
-			}
+		    out.startElement("opinion_holder");
+		    if (out.writesComments()) {
+			out.comment(opinion.getSpanStr(holder.getSpan()));
+		    }
+		    if (holder.getTerms().size() > 0) {
+			writeTermSpan(out, holder.getSpan());
 		    }
-		    opinionElem.addContent(opinionHolderElem);
+		    out.endElement();
 		}
 		Opinion.OpinionTarget opTarget = opinion.getOpinionTarget();
 		if (opTarget != null) {
-		    Element opinionTargetElem = new Element("opinion_target");
-		    Comment comment = new Comment(opinion.getSpanStr(opinion.getOpinionTarget().getSpan()));
-		    opinionTargetElem.addContent(comment);
-		    List<Term> targets = opTarget.getTerms();
-		    Span<Term> span = opTarget.getSpan();
-		    if (targets.size() > 0) {
-			Element spanElem = new Element("span");
-			opinionTargetElem.addContent(spanElem);
-			for (Term target : targets) {
-			    Element targetElem = new Element("target");
-			    targetElem.setAttribute("id", target.getId());
-			    if (target == span.getHead()) {
-				targetElem.setAttribute("head", "yes");
-			    }
-			    spanElem.addContent(targetElem);
-			}
+		    out.startElement("opinion_target");
+		    if (out.writesComments()) {
+			out.comment(opinion.getSpanStr(opTarget.getSpan()));
+		    }
+		    if (opTarget.getTerms().size() > 0) {
+			writeTermSpan(out, opTarget.getSpan());
 		    }
-		    opinionElem.addContent(opinionTargetElem);
+		    out.endElement();
 		}
 		Opinion.OpinionExpression expression = opinion.getOpinionExpression();
 		if (expression != null) {
-		    Element opinionExpressionElem = new Element("opinion_expression");
-		    Comment comment = new Comment(opinion.getSpanStr(opinion.getOpinionExpression().getSpan()));
-		    opinionExpressionElem.addContent(comment);
+		    out.startElement("opinion_expression");
 		    if (expression.hasPolarity()) {
-			opinionExpressionElem.setAttribute("polarity", expression.getPolarity());
+			out.attribute("polarity", expression.getPolarity());
 		    }
 		    if (expression.hasStrength()) {
-			opinionExpressionElem.setAttribute("strength", expression.getStrength());
+			out.attribute("strength", expression.getStrength());
 		    }
 		    if (expression.hasSubjectivity()) {
-			opinionExpressionElem.setAttribute("subjectivity", expression.getSubjectivity());
+			out.attribute("subjectivity", expression.getSubjectivity());
 		    }
 		    if (expression.hasSentimentSemanticType()) {
-		    opinionExpressionElem.setAttribute("sentiment_semantic_type", expression.getSentimentSemanticType());
+			out.attribute("sentiment_semantic_type", expression.getSentimentSemanticType());
 		    }
 		    if (expression.hasSentimentProductFeature()) {
-			opinionExpressionElem.setAttribute("sentiment_product_feature", expression.getSentimentProductFeature());
+			out.attribute("sentiment_product_feature", expression.getSentimentProductFeature());
 		    }
-		    List<Term> targets = expression.getTerms();
-		    Span<Term> span = expression.getSpan();
-		    if (targets.size() > 0) {
-			Element spanElem = new Element("span");
-			opinionExpressionElem.addContent(spanElem);
-			for (Term target : targets) {
-			    Element targetElem = new Element("target");
-			    targetElem.setAttribute("id", target.getId());
-			    if (target == span.getHead()) {
-				targetElem.setAttribute("head", "yes");
-			    }
-			    spanElem.addContent(targetElem);
-			}
+		    if (out.writesComments()) {
+			out.comment(opinion.getSpanStr(expression.getSpan()));
 		    }
-		    opinionElem.addContent(opinionExpressionElem);
+		    if (expression.getTerms().size() > 0) {
+			writeTermSpan(out, expression.getSpan());
+		    }
+		    out.endElement();
 		}
-
-		opinionsElem.addContent(opinionElem);
+		out.endElement();
 	    }
-	    root.addContent(opinionsElem);
+	    out.endElement();
 	}
 
+	writeRawLayer(out, annotationContainer, "relations");
 	List<Relation> relations = annotationContainer.getRelations();
 	if (relations.size() > 0) {
-	    Element relationsElem = new Element("relations");
+	    out.startElement("relations");
 	    for (Relation relation : relations) {
-		Comment comment = new Comment(relation.getStr());
-		relationsElem.addContent(comment);
-		Element relationElem = new Element("relation");
-		relationElem.setAttribute("rid", relation.getId());
-		relationElem.setAttribute("from", relation.getFrom().getId());
-		relationElem.setAttribute("to", relation.getTo().getId());
+		if (out.writesComments()) {
+		    out.comment(relation.getStr());
+		}
+		out.startElement("relation");
+		out.attribute("rid", relation.getId());
+		out.attribute("from", relation.getFrom().getId());
+		out.attribute("to", relation.getTo().getId());
 		if (relation.hasConfidence()) {
-		    relationElem.setAttribute("confidence", String.valueOf(relation.getConfidence()));
+		    out.attribute("confidence", String.valueOf(relation.getConfidence()));
 		}
-		relationsElem.addContent(relationElem);
+		out.endElement();
 	    }
-	    root.addContent(relationsElem);
+	    out.endElement();
 	}
 
+	writeRawLayer(out, annotationContainer, "srl");
 	List<Predicate> predicates = annotationContainer.getPredicates();
 	if (predicates.size() > 0) {
-	    Element predicatesElem = new Element("srl");
+	    out.startElement("srl");
 	    for (Predicate predicate : predicates) {
-		Comment predicateComment = new Comment(predicate.getStr());
-		predicatesElem.addContent(predicateComment);
-		Element predicateElem = new Element("predicate");
-		predicateElem.setAttribute("prid", predicate.getId());
+		if (out.writesComments()) {
+		    out.comment(predicate.getStr());
+		}
+		out.startElement("predicate");
+		out.attribute("prid", predicate.getId());
 		if (predicate.hasUri()) {
-		    predicateElem.setAttribute("uri", predicate.getUri());
+		    out.attribute("uri", predicate.getUri());
 		}
 		Span<Term> span = predicate.getSpan();
 		if (span.getTargets().size() > 0) {
-		    Comment spanComment = new Comment(predicate.getSpanStr());
-		    Element spanElem = new Element("span");
-		    predicateElem.addContent(spanComment);
-		    predicateElem.addContent(spanElem);
-		    for (Term target : span.getTargets()) {
-			Element targetElem = new Element("target");
-			targetElem.setAttribute("id", target.getId());
-			if (target == span.getHead()) {
-			    targetElem.setAttribute("head", "yes");
-			}
-			spanElem.addContent(targetElem);
+		    if (out.writesComments()) {
+			out.comment(predicate.getSpanStr());
 		    }
+		    writeTermSpan(out, span);
 		}
 		for (Predicate.Role role : predicate.getRoles()) {
-		    Element roleElem = new Element("role");
-		    roleElem.setAttribute("rid", role.getId());
-		    roleElem.setAttribute("semRole", role.getSemRole());
+		    out.startElement("role");
+		    out.attribute("rid", role.getId());
+		    out.attribute("semRole", role.getSemRole());
 		    Span<Term> roleSpan = role.getSpan();
 		    if (roleSpan.getTargets().size() > 0) {
-			Comment spanComment = new Comment(role.getStr());
-			Element spanElem = new Element("span");
-			roleElem.addContent(spanComment);
-			roleElem.addContent(spanElem);
-			for (Term target : roleSpan.getTargets()) {
-			    Element targetElem = new Element("target");
-			    targetElem.setAttribute("id", target.getId());
-			    if (target == roleSpan.getHead()) {
-				targetElem.setAttribute("head", "yes");
-			    }
-			    spanElem.addContent(targetElem);
+			if (out.writesComments()) {
+			    out.comment(role.getStr());
 			}
+			writeTermSpan(out, roleSpan);
 		    }
-		    predicateElem.addContent(roleElem);
+		    out.endElement();
 		}
-		predicatesElem.addContent(predicateElem);
+		out.endElement();
 	    }
-	    root.addContent(predicatesElem);
+	    out.endElement();
 	}
 
+	writeRawLayer(out, annotationContainer, "constituency");
 	List<Tree> constituents = annotationContainer.getConstituents();
 	if (constituents.size() > 0) {
-	    Element constituentsElem = new Element("constituency");
+	    out.startElement("constituency");
 	    for (Tree tree : constituents) {
-		Element treeElem = new Element("tree");
-		constituentsElem.addContent(treeElem);
+		out.startElement("tree");
 		List<NonTerminal> nonTerminals = new LinkedList<NonTerminal>();
 		List<Terminal> terminals = new LinkedList<Terminal>();
 		List<Edge> edges = new ArrayList<Edge>();
@@ -1373,42 +2033,42 @@ class ReadWriteManager {
 			    }
 			}
 		    });
-		Comment ntCom = new Comment("Non-terminals");
-		treeElem.addContent(ntCom);
+		out.comment("Non-terminals");
 		for (NonTerminal node : nonTerminals) {
-		    Element nodeElem = new Element("nt");
-		    nodeElem.setAttribute("id", node.getId());
-		    nodeElem.setAttribute("label", node.getLabel());
-		    treeElem.addContent(nodeElem);
+		    out.startElement("nt");
+		    out.attribute("id", node.getId());
+		    out.attribute("label", node.getLabel());
+		    out.endElement();
 		}
-		Comment tCom = new Comment("Terminals");
-		treeElem.addContent(tCom);
+		out.comment("Terminals");
 		for (Terminal node : terminals) {
-		    Element nodeElem = new Element("t");
-		    nodeElem.setAttribute("id", node.getId());
-		    nodeElem.addContent(createTermSpanElem(node.getSpan()));
 		    // Comment
-		    Comment tStrCom = new Comment(node.getStr());
-		    treeElem.addContent(tStrCom);
-		    treeElem.addContent(nodeElem);
+		    if (out.writesComments()) {
+			out.comment(node.getStr());
+		    }
+		    out.startElement("t");
+		    out.attribute("id", node.getId());
+		    writeTermSpan(out, node.getSpan());
+		    out.endElement();
 		}
-		Comment edgeCom = new Comment("Tree edges");
-		treeElem.addContent(edgeCom);
+		out.comment("Tree edges");
 		for (Edge edge : edges) {
-		    Element edgeElem = new Element("edge");
-		    edgeElem.setAttribute("id", edge.id);
-		    edgeElem.setAttribute("from", edge.from);
-		    edgeElem.setAttribute("to", edge.to);
+		    out.startElement("edge");
+		    out.optAttribute("id", edge.id);
+		    out.attribute("from", edge.from);
+		    out.attribute("to", edge.to);
 		    if (edge.head) {
-			edgeElem.setAttribute("head", "yes");
+			out.attribute("head", "yes");
 		    }
-		    treeElem.addContent(edgeElem);
+		    out.endElement();
 		}
+		out.endElement();
 	    }
-	    root.addContent(constituentsElem);
+	    out.endElement();
 	}
-	
-	return doc;
+
+	out.endElement();
+	out.endDocument();
     }
 
     private static void extractTreeNodes(TreeNode node, List<NonTerminal> nonTerminals, List<Terminal> terminals, List<Edge> edges) {
@@ -1424,32 +2084,30 @@ class ReadWriteManager {
 	}
     }
 
-    private static Element externalReferencesToDOM(List<ExternalRef> externalRefs) {
-	Element externalReferencesElem = new Element("externalReferences");
+    private static void writeExternalReferences(PrettyXMLWriter out, List<ExternalRef> externalRefs) throws IOException {
+	out.startElement("externalReferences");
 	for (ExternalRef externalRef : externalRefs) {
-	    Element externalRefElem = externalRefToDOM(externalRef);
-	    externalReferencesElem.addContent(externalRefElem);
+	    writeExternalRef(out, externalRef);
 	}
-	return externalReferencesElem;
+	out.endElement();
     }
 
-    private static Element externalRefToDOM(ExternalRef externalRef) {
-	Element externalRefElem = new Element("externalRef");
-	externalRefElem.setAttribute("resource", externalRef.getResource());
-	externalRefElem.setAttribute("reference", externalRef.getReference());
+    private static void writeExternalRef(PrettyXMLWriter out, ExternalRef externalRef) throws IOException {
+	out.startElement("externalRef");
+	out.attribute("resource", externalRef.getResource());
+	out.attribute("reference", externalRef.getReference());
 	if (externalRef.hasConfidence()) {
-	    externalRefElem.setAttribute("confidence", Float.toString(externalRef.getConfidence()));
+	    out.attribute("confidence", Float.toString(externalRef.getConfidence()));
 	}
 	if (externalRef.hasExternalRef()) {
-	    Element subExternalRefElem = externalRefToDOM(externalRef.getExternalRef());
-	    externalRefElem.addContent(subExternalRefElem);
+	    writeExternalRef(out, externalRef.getExternalRef());
 	}
-	return externalRefElem;
+	out.endElement();
     }
 
     private static int cmpId(String id1, String id2) {
-	int nbr1 = extractNumberFromId(id1);
-	int nbr2 = extractNumberFromId(id2);
+	int nbr1 = IdManager.extractCounterFromId(id1);
+	int nbr2 = IdManager.extractCounterFromId(id2);
 	if (nbr1 < nbr2) {
 	    return -1;
 	} else if (nbr1 == nbr2) {
@@ -1458,12 +2116,4 @@ class ReadWriteManager {
 	    return 1;
 	}
     }
-
-    private static int extractNumberFromId(String id) {
-	Matcher matcher = Pattern.compile("^[a-z]*_?(\\d+)$").matcher(id);
-	if (!matcher.find()) {
-	    throw new IllegalStateException("IdManager doesn't recognise the given id's (" + id  + ") format. Should be [a-z]*_?[0-9]+");
-	}
-	return Integer.valueOf(matcher.group(1));
-    }
 }
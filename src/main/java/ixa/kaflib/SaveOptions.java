@@ -0,0 +1,78 @@
+package ixa.kaflib;
+
+
+/** Options to serialize a KAF document with KAFDocument.save, toString and print. By default documents are written as they always have been: indented, with a comment showing the text of each span, and lines ended with "\n". */
+public class SaveOptions {
+
+    /** Write the text of terms, spans, dependencies... as comments next to them */
+    private boolean comments;
+
+    /** Indent elements in their own lines. If false, elements are written one after another with no whitespace between them. */
+    private boolean pretty;
+
+    private String lineSeparator;
+
+    /** Compress the output with gzip */
+    private boolean gzip;
+
+    private int gzipThreads;
+
+    public SaveOptions() {
+	this.comments = true;
+	this.pretty = true;
+	this.lineSeparator = "\n";
+	this.gzip = false;
+	this.gzipThreads = 1;
+    }
+
+    public boolean getComments() {
+	return comments;
+    }
+
+    /** Sets whether the text of the annotations is written as comments. They are only meant for people reading the file, and on big documents they take a good part of the time and the space needed to write it. */
+    public void setComments(boolean comments) {
+	this.comments = comments;
+    }
+
+    public boolean getPretty() {
+	return pretty;
+    }
+
+    /** Sets whether the elements are indented in their own lines or written in compact form. Layers not loaded from the input document are copied as they were read in both cases. */
+    public void setPretty(boolean pretty) {
+	this.pretty = pretty;
+    }
+
+    public String getLineSeparator() {
+	return lineSeparator;
+    }
+
+    /** Sets the line separator, as "\n" or "\r\n". */
+    public void setLineSeparator(String lineSeparator) {
+	if (lineSeparator == null) {
+	    throw new IllegalArgumentException("The line separator can't be null");
+	}
+	this.lineSeparator = lineSeparator;
+    }
+
+    public boolean getGzip() {
+	return gzip;
+    }
+
+    /** Sets whether the output is compressed with gzip. Files whose name ends with ".gz" are always compressed. */
+    public void setGzip(boolean gzip) {
+	this.gzip = gzip;
+    }
+
+    public int getGzipThreads() {
+	return gzipThreads;
+    }
+
+    /** Sets the number of threads compressing the output. With more than one, the output is split in blocks which are compressed in parallel and written as consecutive gzip members, as pigz does. The result is a valid gzip file, a bit bigger than the one written by a single thread. */
+    public void setGzipThreads(int gzipThreads) {
+	if (gzipThreads < 1) {
+	    throw new IllegalArgumentException("At least one thread is needed to compress");
+	}
+	this.gzipThreads = gzipThreads;
+    }
+}
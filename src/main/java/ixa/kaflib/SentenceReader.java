@@ -0,0 +1,279 @@
+package ixa.kaflib;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.NoSuchElementException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamException;
+
+
+/** Reads a KAF file one sentence at a time. Each sentence is returned as a KAFDocument with the header of the file, the word forms of the sentence, their terms, and the dependencies, chunks and entities belonging to the sentence. A document of any size can be processed this way, as the memory needed depends on the length of the sentences, not on the length of the document.
+ * <p>
+ * Sentences are identified by the "sent" attribute of the word forms, and they must be numbered in increasing order. Terms and entities belong to the sentence of their first target, dependencies to the sentence of their "from" term and chunks to the sentence of their head. The layers must list their annotations in the order of the sentences, as KAFDocument writes them. The rest of the layers are not read.
+ */
+public class SentenceReader implements Iterator<KAFDocument>, Closeable {
+
+    private File file;
+
+    private List<InputStream> streams = new ArrayList<InputStream>();
+
+    /** Header of the file, copied into every sentence */
+    private KAFDocument header;
+
+    private Cursor text;
+    private Cursor terms;
+    private Cursor deps;
+    private Cursor chunks;
+    private Cursor entities;
+
+    /** Documents of the sentences which have been started but not returned yet, by sentence number */
+    private TreeMap<Integer, KAFDocument> sentences = new TreeMap<Integer, KAFDocument>();
+
+    /** Number of the last sentence returned */
+    private Integer lastSent = null;
+
+    /** Sentence of the last term and entity read */
+    private Integer lastTermSent = null;
+    private Integer lastEntitySent = null;
+
+    /** Terms and entities are created through this document */
+    private SentenceRouter router = new SentenceRouter();
+
+    /** WFs of the sentences not returned yet, by ID. When a WF is not found, the text layer is read further until it appears. */
+    private HashMap<String, WF> wfIndex = new HashMap<String, WF>() {
+	public WF get(Object id) {
+	    WF wf = super.get(id);
+	    try {
+		while ((wf == null) && (text != null) && text.hasNext) {
+		    readWF();
+		    wf = super.get(id);
+		}
+	    } catch (XMLStreamException e) {
+		throw new IllegalStateException("Error reading the text layer of " + file, e);
+	    }
+	    return wf;
+	}
+    };
+
+    /** Terms of the sentences not returned yet, by ID. When a term is not found, the terms layer is read further until it appears. */
+    private HashMap<String, Term> termIndex = new HashMap<String, Term>() {
+	public Term get(Object id) {
+	    Term term = super.get(id);
+	    try {
+		while ((term == null) && (terms != null) && terms.hasNext) {
+		    readTerm();
+		    term = super.get(id);
+		}
+	    } catch (XMLStreamException e) {
+		throw new IllegalStateException("Error reading the terms layer of " + file, e);
+	    } catch (KAFNotValidException e) {
+		throw new IllegalStateException("Error reading the terms layer of " + file, e);
+	    }
+	    return term;
+	}
+    };
+
+    /** Opens a KAF file to be read sentence by sentence. */
+    public SentenceReader(File file) throws IOException, XMLStreamException, KAFNotValidException {
+	this.file = file;
+	boolean opened = false;
+	try {
+	    this.header = ReadWriteManager.loadHeader(file);
+	    this.text = openCursor("text");
+	    this.terms = openCursor("terms");
+	    this.deps = openCursor("deps");
+	    this.chunks = openCursor("chunks");
+	    this.entities = openCursor("entities");
+	    opened = true;
+	} finally {
+	    if (!opened) {
+		close();
+	    }
+	}
+    }
+
+    public boolean hasNext() {
+	return !sentences.isEmpty() || ((text != null) && text.hasNext);
+    }
+
+    /** Returns the next sentence of the file. Errors in the input are thrown as IllegalStateException. */
+    public KAFDocument next() {
+	if (!hasNext()) {
+	    throw new NoSuchElementException();
+	}
+	try {
+	    if (sentences.isEmpty()) {
+		readWF();
+	    }
+	    int sent = sentences.firstKey();
+	    while (text.hasNext && (Integer.valueOf(ReadWriteManager.getAttribute("sent", text.reader)) <= sent)) {
+		readWF();
+	    }
+	    // Terms and entities are only known to belong to the next sentences once they have been read
+	    while ((terms != null) && terms.hasNext && ((lastTermSent == null) || (lastTermSent <= sent))) {
+		readTerm();
+	    }
+	    while ((deps != null) && deps.hasNext && (getAnchorSent(deps, "from") <= sent)) {
+		Term from = termIndex.get(ReadWriteManager.getAttribute("from", deps.reader));
+		ReadWriteManager.readDep(deps.reader, getSentence(from.getSent()), termIndex);
+		deps.advance();
+	    }
+	    while ((chunks != null) && chunks.hasNext && (getAnchorSent(chunks, "head") <= sent)) {
+		Term head = termIndex.get(ReadWriteManager.getAttribute("head", chunks.reader));
+		ReadWriteManager.readChunk(chunks.reader, getSentence(head.getSent()), termIndex);
+		chunks.advance();
+	    }
+	    while ((entities != null) && entities.hasNext && ((lastEntitySent == null) || (lastEntitySent <= sent))) {
+		ReadWriteManager.readEntity(entities.reader, router, termIndex);
+		entities.advance();
+	    }
+	    KAFDocument kaf = sentences.remove(sent);
+	    lastSent = sent;
+	    for (WF wf : kaf.getWFs()) {
+		wfIndex.remove(wf.getId());
+	    }
+	    for (Term term : kaf.getTerms()) {
+		termIndex.remove(term.getId());
+	    }
+	    return kaf;
+	} catch (XMLStreamException e) {
+	    throw new IllegalStateException("Error reading " + file, e);
+	} catch (KAFNotValidException e) {
+	    throw new IllegalStateException("Error reading " + file, e);
+	}
+    }
+
+    public void remove() {
+	throw new UnsupportedOperationException();
+    }
+
+    /** Closes the file. */
+    public void close() {
+	for (Cursor cursor : new Cursor[] { text, terms, deps, chunks, entities }) {
+	    if (cursor != null) {
+		try {
+		    cursor.reader.close();
+		} catch (XMLStreamException e) {
+		}
+	    }
+	}
+	for (InputStream in : streams) {
+	    try {
+		in.close();
+	    } catch (IOException e) {
+	    }
+	}
+	streams.clear();
+    }
+
+    private void readWF() throws XMLStreamException {
+	int sent = Integer.valueOf(ReadWriteManager.getAttribute("sent", text.reader));
+	WF wf = ReadWriteManager.readWF(text.reader, getSentence(sent));
+	wfIndex.put(wf.getId(), wf);
+	text.advance();
+    }
+
+    private void readTerm() throws XMLStreamException, KAFNotValidException {
+	Term term = ReadWriteManager.readTerm(terms.reader, router, wfIndex);
+	termIndex.put(term.getId(), term);
+	terms.advance();
+    }
+
+    /** Returns the sentence of the term referenced by the given attribute of the cursor's current annotation */
+    private int getAnchorSent(Cursor cursor, String attName) throws KAFNotValidException {
+	String termId = ReadWriteManager.getAttribute(attName, cursor.reader);
+	Term term = termIndex.get(termId);
+	if (term == null) {
+	    throw new KAFNotValidException("Term " + termId + " not found when loading " + cursor.reader.getLocalName() + " (" + attName + " attribute)");
+	}
+	return term.getSent();
+    }
+
+    /** Returns the document of the given sentence, creating it if it's the first annotation of the sentence */
+    private KAFDocument getSentence(int sent) {
+	KAFDocument kaf = sentences.get(sent);
+	if (kaf == null) {
+	    if ((lastSent != null) && (sent <= lastSent)) {
+		throw new IllegalStateException("Annotation of sentence " + sent + " found after sentence " + lastSent + " was read. Annotations must be in sentence order.");
+	    }
+	    kaf = new KAFDocument(header.getLang(), header.getVersion());
+	    kaf.addLinguisticProcessors(header.getLinguisticProcessors());
+	    KAFDocument.FileDesc fd = header.getFileDesc();
+	    if (fd != null) {
+		KAFDocument.FileDesc newFd = kaf.createFileDesc();
+		newFd.author = fd.author;
+		newFd.title = fd.title;
+		newFd.creationtime = fd.creationtime;
+		newFd.filename = fd.filename;
+		newFd.filetype = fd.filetype;
+		newFd.pages = fd.pages;
+	    }
+	    KAFDocument.Public pub = header.getPublic();
+	    if (pub != null) {
+		kaf.createPublic(pub.publicId).uri = pub.uri;
+	    }
+	    sentences.put(sent, kaf);
+	}
+	return kaf;
+    }
+
+    private Cursor openCursor(String layerElemName) throws IOException, XMLStreamException, KAFNotValidException {
+	InputStream in = ReadWriteManager.openFile(file, 65536);
+	streams.add(in);
+	XMLStreamReader reader = ReadWriteManager.openLayer(in, layerElemName);
+	if (!ReadWriteManager.moveToChild(reader, layerElemName)) {
+	    reader.close();
+	    return null;
+	}
+	return new Cursor(reader);
+    }
+
+    /** Pull parser over the annotations of one layer */
+    private static class Cursor {
+	XMLStreamReader reader;
+	/** True while the reader is at the start tag of an annotation not read yet */
+	boolean hasNext;
+
+	Cursor(XMLStreamReader reader) throws XMLStreamException {
+	    this.reader = reader;
+	    this.hasNext = ReadWriteManager.nextChild(reader);
+	}
+
+	/** Moves to the next annotation, once the current one has been read */
+	void advance() throws XMLStreamException {
+	    hasNext = ReadWriteManager.nextChild(reader);
+	}
+    }
+
+    /** Document the terms and entities are loaded through. They are only known to belong to a sentence once their span has been read, so this document creates them in the document of their sentence. */
+    private class SentenceRouter extends KAFDocument {
+
+	SentenceRouter() {
+	    super(null, null);
+	}
+
+	public Term newTerm(String id, String type, String lemma, String pos, Span<WF> span) {
+	    if (span.isEmpty()) {
+		throw new IllegalStateException("Term " + id + " has an empty span");
+	    }
+	    lastTermSent = span.getTargets().get(0).getSent();
+	    return getSentence(lastTermSent).newTerm(id, type, lemma, pos, span);
+	}
+
+	public Term.Component newComponent(String id, Term term, String lemma, String pos) {
+	    return getSentence(term.getSent()).newComponent(id, term, lemma, pos);
+	}
+
+	public Entity newEntity(String id, List<Span<Term>> references) {
+	    lastEntitySent = references.get(0).getTargets().get(0).getSent();
+	    return getSentence(lastEntitySent).newEntity(id, references);
+	}
+    }
+}
@@ -0,0 +1,852 @@
+package ixa.kaflib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/** Reads and writes KAF documents in a binary format meant to pass documents between processes faster than XML. Every annotation of the document model is kept, so converting a document from XML to a snapshot and back gives the same XML.
+ * <p>
+ * A snapshot starts with the bytes "KAFS" and the format version, followed by the layers in the order they are written in XML, and ends with a table of the strings used by the attributes and the offset of that table. Annotations refer to WFs, terms and tree nodes by their ordinal in their layer instead of by their ID, and repeated attribute values (forms, lemmas, POS tags...) are written once in the string table and referred to by their index. IDs, which are unique, are written in place. Integers are written as variable-length numbers.
+ */
+class SnapshotManager {
+
+    static final byte[] MAGIC = { 'K', 'A', 'F', 'S' };
+
+    /** Version of the format written. Loading a snapshot written with a different version fails. */
+    static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Kinds of tree nodes */
+    private static final int NON_TERMINAL = 0, TERMINAL = 1;
+
+    /** Writes a snapshot of the document to the stream. The stream is flushed but not closed. */
+    static void save(KAFDocument kaf, OutputStream stream) throws IOException {
+	AnnotationContainer annotationContainer = kaf.getAnnotationContainer();
+	Output out = new Output(stream);
+	out.writeBytes(MAGIC);
+	out.writeVarInt(VERSION);
+
+	out.writeString(kaf.getLang());
+	out.writeString(kaf.getVersion());
+	KAFDocument.FileDesc fd = kaf.getFileDesc();
+	out.writeBoolean(fd != null);
+	if (fd != null) {
+	    out.writeString(fd.author);
+	    out.writeString(fd.title);
+	    out.writeString(fd.creationtime);
+	    out.writeString(fd.filename);
+	    out.writeString(fd.filetype);
+	    out.writeBoolean(fd.pages != null);
+	    if (fd.pages != null) {
+		out.writeSignedVarInt(fd.pages);
+	    }
+	}
+	KAFDocument.Public pub = kaf.getPublic();
+	out.writeBoolean(pub != null);
+	if (pub != null) {
+	    out.writeString(pub.publicId);
+	    out.writeString(pub.uri);
+	}
+	Map<String, List<KAFDocument.LinguisticProcessor>> lps = kaf.getLinguisticProcessors();
+	out.writeVarInt(lps.size());
+	for (Map.Entry<String, List<KAFDocument.LinguisticProcessor>> entry : lps.entrySet()) {
+	    out.writeString(entry.getKey());
+	    out.writeVarInt(entry.getValue().size());
+	    for (KAFDocument.LinguisticProcessor lp : entry.getValue()) {
+		out.writeString(lp.name);
+		out.writeString(lp.timestamp);
+		out.writeString(lp.beginTimestamp);
+		out.writeString(lp.endTimestamp);
+		out.writeString(lp.version);
+	    }
+	}
+
+	out.writeText(annotationContainer.getRawText());
+	Map<String, byte[]> rawLayers = annotationContainer.getRawLayers();
+	out.writeVarInt(rawLayers.size());
+	for (Map.Entry<String, byte[]> rawLayer : rawLayers.entrySet()) {
+	    out.writeString(rawLayer.getKey());
+	    out.writeVarInt(rawLayer.getValue().length);
+	    out.writeBytes(rawLayer.getValue());
+	}
+
+	List<WF> text = annotationContainer.getText();
+	HashMap<WF, Integer> wfOrdinals = new HashMap<WF, Integer>(text.size() * 4 / 3 + 1);
+	out.writeVarInt(text.size());
+	for (WF wf : text) {
+	    wfOrdinals.put(wf, wfOrdinals.size());
+	    out.writeText(wf.getId());
+	    out.writeString(wf.getForm());
+	    out.writeSignedVarInt(wf.getSent());
+	    out.writeSignedVarInt(wf.getPara());
+	    out.writeSignedVarInt(wf.getPage());
+	    out.writeSignedVarInt(wf.getOffset());
+	    out.writeSignedVarInt(wf.getLength());
+	    out.writeString(wf.getXpath());
+	}
+
+	List<Term> terms = annotationContainer.getTerms();
+	HashMap<Term, Integer> termOrdinals = new HashMap<Term, Integer>(terms.size() * 4 / 3 + 1);
+	out.writeVarInt(terms.size());
+	for (Term term : terms) {
+	    termOrdinals.put(term, termOrdinals.size());
+	    out.writeText(term.getId());
+	    out.writeString(term.getType());
+	    out.writeString(term.getLemma());
+	    out.writeString(term.getPos());
+	    out.writeString(term.getMorphofeat());
+	    out.writeString(term.getCase());
+	    Term.Sentiment sentiment = term.getSentiment();
+	    out.writeBoolean(sentiment != null);
+	    if (sentiment != null) {
+		out.writeString(sentiment.getResource());
+		out.writeString(sentiment.getPolarity());
+		out.writeString(sentiment.getStrength());
+		out.writeString(sentiment.getSubjectivity());
+		out.writeString(sentiment.getSentimentSemanticType());
+		out.writeString(sentiment.getSentimentModifier());
+		out.writeString(sentiment.getSentimentMarker());
+		out.writeString(sentiment.getSentimentProductFeature());
+	    }
+	    writeSpan(out, term.getSpan(), wfOrdinals, "term", term.getId());
+	    List<Term.Component> components = term.hasComponents() ? term.getComponents() : Collections.<Term.Component>emptyList();
+	    out.writeVarInt(components.size());
+	    for (Term.Component component : components) {
+		out.writeText(component.getId());
+		out.writeString(component.getLemma());
+		out.writeString(component.getPos());
+		out.writeString(component.getCase());
+		out.writeBoolean(component == term.getHead());
+		writeExternalRefs(out, component.getExternalRefs());
+	    }
+	    writeExternalRefs(out, term.hasExternalRefs() ? term.getExternalRefs() : Collections.<ExternalRef>emptyList());
+	}
+
+	List<Dep> deps = annotationContainer.getDeps();
+	out.writeVarInt(deps.size());
+	for (Dep dep : deps) {
+	    out.writeVarInt(ordinal(termOrdinals, dep.getFrom(), "dependency of", dep.getTo().getId()));
+	    out.writeVarInt(ordinal(termOrdinals, dep.getTo(), "dependency of", dep.getTo().getId()));
+	    out.writeString(dep.getRfunc());
+	    out.writeString(dep.getCase());
+	}
+
+	List<Chunk> chunks = annotationContainer.getChunks();
+	out.writeVarInt(chunks.size());
+	for (Chunk chunk : chunks) {
+	    out.writeText(chunk.getId());
+	    out.writeString(chunk.getPhrase());
+	    out.writeString(chunk.getCase());
+	    writeSpan(out, chunk.getSpan(), termOrdinals, "chunk", chunk.getId());
+	}
+
+	List<Entity> entities = annotationContainer.getEntities();
+	out.writeVarInt(entities.size());
+	for (Entity entity : entities) {
+	    out.writeText(entity.getId());
+	    out.writeString(entity.getType());
+	    writeSpans(out, entity.getSpans(), termOrdinals, "entity", entity.getId());
+	    writeExternalRefs(out, entity.getExternalRefs());
+	}
+
+	List<Coref> corefs = annotationContainer.getCorefs();
+	out.writeVarInt(corefs.size());
+	for (Coref coref : corefs) {
+	    out.writeText(coref.getId());
+	    writeSpans(out, coref.getSpans(), termOrdinals, "coref", coref.getId());
+	}
+
+	List<Feature> properties = annotationContainer.getProperties();
+	List<Feature> categories = annotationContainer.getCategories();
+	writeFeatures(out, properties, termOrdinals);
+	writeFeatures(out, categories, termOrdinals);
+
+	List<Opinion> opinions = annotationContainer.getOpinions();
+	out.writeVarInt(opinions.size());
+	for (Opinion opinion : opinions) {
+	    out.writeText(opinion.getId());
+	    Opinion.OpinionHolder holder = opinion.getOpinionHolder();
+	    out.writeBoolean(holder != null);
+	    if (holder != null) {
+		writeSpan(out, holder.getSpan(), termOrdinals, "opinion", opinion.getId());
+	    }
+	    Opinion.OpinionTarget opTarget = opinion.getOpinionTarget();
+	    out.writeBoolean(opTarget != null);
+	    if (opTarget != null) {
+		writeSpan(out, opTarget.getSpan(), termOrdinals, "opinion", opinion.getId());
+	    }
+	    Opinion.OpinionExpression expression = opinion.getOpinionExpression();
+	    out.writeBoolean(expression != null);
+	    if (expression != null) {
+		out.writeString(expression.getPolarity());
+		out.writeString(expression.getStrength());
+		out.writeString(expression.getSubjectivity());
+		out.writeString(expression.getSentimentSemanticType());
+		out.writeString(expression.getSentimentProductFeature());
+		writeSpan(out, expression.getSpan(), termOrdinals, "opinion", opinion.getId());
+	    }
+	}
+
+	// Relations refer to entities, properties and categories, numbered in that order
+	HashMap<Relational, Integer> relationalOrdinals = new HashMap<Relational, Integer>();
+	for (Entity entity : entities) {
+	    relationalOrdinals.put(entity, relationalOrdinals.size());
+	}
+	for (Feature property : properties) {
+	    relationalOrdinals.put(property, relationalOrdinals.size());
+	}
+	for (Feature category : categories) {
+	    relationalOrdinals.put(category, relationalOrdinals.size());
+	}
+	List<Relation> relations = annotationContainer.getRelations();
+	out.writeVarInt(relations.size());
+	for (Relation relation : relations) {
+	    out.writeText(relation.getId());
+	    out.writeVarInt(ordinal(relationalOrdinals, relation.getFrom(), "relation", relation.getId()));
+	    out.writeVarInt(ordinal(relationalOrdinals, relation.getTo(), "relation", relation.getId()));
+	    out.writeBoolean(relation.hasConfidence());
+	    if (relation.hasConfidence()) {
+		out.writeFloat(relation.getConfidence());
+	    }
+	}
+
+	List<Predicate> predicates = annotationContainer.getPredicates();
+	out.writeVarInt(predicates.size());
+	for (Predicate predicate : predicates) {
+	    out.writeText(predicate.getId());
+	    out.writeString(predicate.getUri());
+	    writeSpan(out, predicate.getSpan(), termOrdinals, "predicate", predicate.getId());
+	    List<Predicate.Role> roles = predicate.getRoles();
+	    out.writeVarInt(roles.size());
+	    for (Predicate.Role role : roles) {
+		out.writeText(role.getId());
+		out.writeString(role.getSemRole());
+		writeSpan(out, role.getSpan(), termOrdinals, "role", role.getId());
+	    }
+	}
+
+	List<Tree> trees = annotationContainer.getConstituents();
+	out.writeVarInt(trees.size());
+	for (Tree tree : trees) {
+	    writeTreeNode(out, tree.getRoot(), termOrdinals);
+	}
+
+	out.finish();
+    }
+
+    /** Loads the snapshot held between the position and the limit of the buffer. Neither the content nor the position of the buffer are changed. */
+    static KAFDocument load(ByteBuffer buffer) throws IOException {
+	try {
+	    return load(new Input(buffer.slice()));
+	} catch (BufferUnderflowException e) {
+	    throw new KAFNotValidException("The snapshot is truncated");
+	} catch (IndexOutOfBoundsException e) {
+	    throw new KAFNotValidException("The snapshot is corrupted: " + e.getMessage());
+	} catch (IllegalArgumentException e) {
+	    throw new KAFNotValidException("The snapshot is corrupted: " + e.getMessage());
+	}
+    }
+
+    /** Loads a snapshot file, mapping it in memory instead of reading it through a stream. */
+    static KAFDocument load(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    if (channel.size() > Integer.MAX_VALUE) {
+		throw new KAFNotValidException("Snapshots bigger than 2GB can't be loaded");
+	    }
+	    // The mapping stays valid after the file is closed
+	    return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+	} finally {
+	    raf.close();
+	}
+    }
+
+    private static KAFDocument load(Input in) throws IOException {
+	in.readHeader();
+
+	KAFDocument kaf = new KAFDocument(in.readString(), in.readString());
+	if (in.readBoolean()) {
+	    KAFDocument.FileDesc fd = kaf.createFileDesc();
+	    fd.author = in.readString();
+	    fd.title = in.readString();
+	    fd.creationtime = in.readString();
+	    fd.filename = in.readString();
+	    fd.filetype = in.readString();
+	    if (in.readBoolean()) {
+		fd.pages = in.readSignedVarInt();
+	    }
+	}
+	if (in.readBoolean()) {
+	    String publicId = in.readString();
+	    kaf.createPublic(publicId).uri = in.readString();
+	}
+	int numLpLayers = in.readVarInt();
+	for (int i = 0; i < numLpLayers; i++) {
+	    String layer = in.readString();
+	    int numLps = in.readVarInt();
+	    for (int j = 0; j < numLps; j++) {
+		KAFDocument.LinguisticProcessor lp = kaf.addLinguisticProcessor(layer, in.readString());
+		lp.timestamp = in.readString();
+		lp.beginTimestamp = in.readString();
+		lp.endTimestamp = in.readString();
+		lp.version = in.readString();
+	    }
+	}
+
+	AnnotationContainer annotationContainer = kaf.getAnnotationContainer();
+	String rawText = in.readText();
+	if (rawText.length() > 0) {
+	    kaf.setRawText(rawText);
+	}
+	int numRawLayers = in.readVarInt();
+	for (int i = 0; i < numRawLayers; i++) {
+	    String layerElemName = in.readString();
+	    annotationContainer.addRawLayer(layerElemName, in.readBytes());
+	}
+
+	WF[] wfs = new WF[in.readVarInt()];
+	for (int i = 0; i < wfs.length; i++) {
+	    String id = in.readText();
+	    String form = in.readString();
+	    WF wf = kaf.newWF(id, form, in.readSignedVarInt());
+	    int para = in.readSignedVarInt();
+	    if (para != -1) {
+		wf.setPara(para);
+	    }
+	    int page = in.readSignedVarInt();
+	    if (page != -1) {
+		wf.setPage(page);
+	    }
+	    int offset = in.readSignedVarInt();
+	    if (offset != -1) {
+		wf.setOffset(offset);
+	    }
+	    int length = in.readSignedVarInt();
+	    if (length != -1) {
+		wf.setLength(length);
+	    }
+	    String xpath = in.readString();
+	    if (xpath != null) {
+		wf.setXpath(xpath);
+	    }
+	    wfs[i] = wf;
+	}
+
+	Term[] terms = new Term[in.readVarInt()];
+	for (int i = 0; i < terms.length; i++) {
+	    String id = in.readText();
+	    String type = in.readString();
+	    String lemma = in.readString();
+	    String pos = in.readString();
+	    String morphofeat = in.readString();
+	    String termcase = in.readString();
+	    Term.Sentiment sentiment = null;
+	    if (in.readBoolean()) {
+		sentiment = kaf.newSentiment();
+		sentiment.setResource(in.readString());
+		sentiment.setPolarity(in.readString());
+		sentiment.setStrength(in.readString());
+		sentiment.setSubjectivity(in.readString());
+		sentiment.setSentimentSemanticType(in.readString());
+		sentiment.setSentimentModifier(in.readString());
+		sentiment.setSentimentMarker(in.readString());
+		sentiment.setSentimentProductFeature(in.readString());
+	    }
+	    Term term = kaf.newTerm(id, type, lemma, pos, readSpan(in, wfs));
+	    if (morphofeat != null) {
+		term.setMorphofeat(kaf.intern(morphofeat));
+	    }
+	    if (termcase != null) {
+		term.setCase(kaf.intern(termcase));
+	    }
+	    if (sentiment != null) {
+		term.setSentiment(sentiment);
+	    }
+	    int numComponents = in.readVarInt();
+	    for (int j = 0; j < numComponents; j++) {
+		String compId = in.readText();
+		Term.Component component = kaf.newComponent(compId, term, in.readString(), in.readString());
+		String compCase = in.readString();
+		if (compCase != null) {
+		    component.setCase(compCase);
+		}
+		boolean isHead = in.readBoolean();
+		component.addExternalRefs(readExternalRefs(in, kaf));
+		term.addComponent(component, isHead);
+	    }
+	    term.addExternalRefs(readExternalRefs(in, kaf));
+	    terms[i] = term;
+	}
+
+	int numDeps = in.readVarInt();
+	for (int i = 0; i < numDeps; i++) {
+	    Term from = terms[in.readVarInt()];
+	    Term to = terms[in.readVarInt()];
+	    Dep dep = kaf.newDep(from, to, in.readString());
+	    String depcase = in.readString();
+	    if (depcase != null) {
+		dep.setCase(kaf.intern(depcase));
+	    }
+	}
+
+	int numChunks = in.readVarInt();
+	for (int i = 0; i < numChunks; i++) {
+	    String id = in.readText();
+	    String phrase = in.readString();
+	    String chunkcase = in.readString();
+	    Chunk chunk = kaf.newChunk(id, phrase, readSpan(in, terms));
+	    if (chunkcase != null) {
+		chunk.setCase(kaf.intern(chunkcase));
+	    }
+	}
+
+	int numEntities = in.readVarInt();
+	List<Relational> relationalList = new ArrayList<Relational>(numEntities);
+	for (int i = 0; i < numEntities; i++) {
+	    String id = in.readText();
+	    String type = in.readString();
+	    Entity entity = kaf.newEntity(id, readSpans(in, terms));
+	    if (type != null) {
+		entity.setType(kaf.intern(type));
+	    }
+	    entity.addExternalRefs(readExternalRefs(in, kaf));
+	    relationalList.add(entity);
+	}
+
+	int numCorefs = in.readVarInt();
+	for (int i = 0; i < numCorefs; i++) {
+	    String id = in.readText();
+	    kaf.newCoref(id, readSpans(in, terms));
+	}
+
+	for (int f = 0; f < 2; f++) {
+	    boolean isProperty = (f == 0);
+	    int numFeatures = in.readVarInt();
+	    for (int i = 0; i < numFeatures; i++) {
+		String id = in.readText();
+		String lemma = in.readString();
+		List<Span<Term>> references = readSpans(in, terms);
+		Feature feature = isProperty ? kaf.newProperty(id, lemma, references) : kaf.newCategory(id, lemma, references);
+		feature.addExternalRefs(readExternalRefs(in, kaf));
+		relationalList.add(feature);
+	    }
+	}
+	Relational[] relationals = relationalList.toArray(new Relational[relationalList.size()]);
+
+	int numOpinions = in.readVarInt();
+	for (int i = 0; i < numOpinions; i++) {
+	    Opinion opinion = kaf.newOpinion(in.readText());
+	    if (in.readBoolean()) {
+		opinion.createOpinionHolder(readSpan(in, terms));
+	    }
+	    if (in.readBoolean()) {
+		opinion.createOpinionTarget(readSpan(in, terms));
+	    }
+	    if (in.readBoolean()) {
+		String polarity = in.readString();
+		String strength = in.readString();
+		String subjectivity = in.readString();
+		String sentimentSemanticType = in.readString();
+		String sentimentProductFeature = in.readString();
+		Opinion.OpinionExpression expression = opinion.createOpinionExpression(readSpan(in, terms));
+		expression.setPolarity(polarity);
+		expression.setStrength(strength);
+		expression.setSubjectivity(subjectivity);
+		expression.setSentimentSemanticType(sentimentSemanticType);
+		expression.setSentimentProductFeature(sentimentProductFeature);
+	    }
+	}
+
+	int numRelations = in.readVarInt();
+	for (int i = 0; i < numRelations; i++) {
+	    String id = in.readText();
+	    Relational from = relationals[in.readVarInt()];
+	    Relational to = relationals[in.readVarInt()];
+	    Relation relation = kaf.newRelation(id, from, to);
+	    if (in.readBoolean()) {
+		relation.setConfidence(in.readFloat());
+	    }
+	}
+
+	int numPredicates = in.readVarInt();
+	for (int i = 0; i < numPredicates; i++) {
+	    String id = in.readText();
+	    String uri = in.readString();
+	    Predicate predicate = kaf.newPredicate(id, readSpan(in, terms));
+	    if (uri != null) {
+		predicate.setUri(uri);
+	    }
+	    int numRoles = in.readVarInt();
+	    for (int j = 0; j < numRoles; j++) {
+		String roleId = in.readText();
+		String semRole = in.readString();
+		predicate.addRole(kaf.newRole(roleId, predicate, semRole, readSpan(in, terms)));
+	    }
+	}
+
+	int numTrees = in.readVarInt();
+	for (int i = 0; i < numTrees; i++) {
+	    kaf.newConstituent(readTreeNode(in, kaf, terms));
+	}
+
+	return kaf;
+    }
+
+    /** Writes the targets of a span as ordinals, followed by the position of its head plus one, or 0 if it has no head */
+    private static <T> void writeSpan(Output out, Span<T> span, HashMap<T, Integer> ordinals, String objType, String objId) throws IOException {
+	List<T> targets = span.getTargets();
+	out.writeVarInt(targets.size());
+	int head = 0;
+	for (int i = 0; i < targets.size(); i++) {
+	    T target = targets.get(i);
+	    out.writeVarInt(ordinal(ordinals, target, objType, objId));
+	    if ((head == 0) && span.isHead(target)) {
+		head = i + 1;
+	    }
+	}
+	out.writeVarInt(head);
+    }
+
+    private static <T> Span<T> readSpan(Input in, T[] targets) {
+	int numTargets = in.readVarInt();
+	List<T> spanTargets = new ArrayList<T>(numTargets);
+	for (int i = 0; i < numTargets; i++) {
+	    spanTargets.add(targets[in.readVarInt()]);
+	}
+	int head = in.readVarInt();
+	return (head == 0) ? new Span<T>(spanTargets) : new Span<T>(spanTargets, spanTargets.get(head - 1));
+    }
+
+    private static void writeSpans(Output out, List<Span<Term>> spans, HashMap<Term, Integer> termOrdinals, String objType, String objId) throws IOException {
+	out.writeVarInt(spans.size());
+	for (Span<Term> span : spans) {
+	    writeSpan(out, span, termOrdinals, objType, objId);
+	}
+    }
+
+    private static List<Span<Term>> readSpans(Input in, Term[] terms) {
+	int numSpans = in.readVarInt();
+	List<Span<Term>> spans = new ArrayList<Span<Term>>(numSpans);
+	for (int i = 0; i < numSpans; i++) {
+	    spans.add(readSpan(in, terms));
+	}
+	return spans;
+    }
+
+    private static void writeFeatures(Output out, List<Feature> features, HashMap<Term, Integer> termOrdinals) throws IOException {
+	out.writeVarInt(features.size());
+	for (Feature feature : features) {
+	    out.writeText(feature.getId());
+	    out.writeString(feature.getLemma());
+	    writeSpans(out, feature.getSpans(), termOrdinals, "feature", feature.getId());
+	    writeExternalRefs(out, feature.getExternalRefs());
+	}
+    }
+
+    private static void writeExternalRefs(Output out, List<ExternalRef> externalRefs) throws IOException {
+	out.writeVarInt(externalRefs.size());
+	for (ExternalRef externalRef : externalRefs) {
+	    writeExternalRef(out, externalRef);
+	}
+    }
+
+    /** Writes an external reference and the ones nested in it */
+    private static void writeExternalRef(Output out, ExternalRef externalRef) throws IOException {
+	out.writeString(externalRef.getResource());
+	out.writeString(externalRef.getReference());
+	out.writeFloat(externalRef.getConfidence());
+	out.writeBoolean(externalRef.hasExternalRef());
+	if (externalRef.hasExternalRef()) {
+	    writeExternalRef(out, externalRef.getExternalRef());
+	}
+    }
+
+    private static List<ExternalRef> readExternalRefs(Input in, KAFDocument kaf) {
+	int numRefs = in.readVarInt();
+	List<ExternalRef> externalRefs = new ArrayList<ExternalRef>(numRefs);
+	for (int i = 0; i < numRefs; i++) {
+	    externalRefs.add(readExternalRef(in, kaf));
+	}
+	return externalRefs;
+    }
+
+    private static ExternalRef readExternalRef(Input in, KAFDocument kaf) {
+	String resource = in.readString();
+	ExternalRef externalRef = kaf.newExternalRef(resource, in.readString());
+	externalRef.setConfidence(in.readFloat());
+	if (in.readBoolean()) {
+	    externalRef.setExternalRef(readExternalRef(in, kaf));
+	}
+	return externalRef;
+    }
+
+    /** Writes a tree node and, for non-terminals, its children, depth first */
+    private static void writeTreeNode(Output out, TreeNode node, HashMap<Term, Integer> termOrdinals) throws IOException {
+	out.writeVarInt(node.isTerminal() ? TERMINAL : NON_TERMINAL);
+	out.writeText(node.getId());
+	out.writeString(node.getEdgeId());
+	out.writeBoolean(node.getHead());
+	if (node.isTerminal()) {
+	    writeSpan(out, ((Terminal) node).getSpan(), termOrdinals, "terminal", node.getId());
+	}
+	else {
+	    out.writeString(((NonTerminal) node).getLabel());
+	    List<TreeNode> children = node.getChildren();
+	    out.writeVarInt(children.size());
+	    for (TreeNode child : children) {
+		writeTreeNode(out, child, termOrdinals);
+	    }
+	}
+    }
+
+    private static TreeNode readTreeNode(Input in, KAFDocument kaf, Term[] terms) throws KAFNotValidException {
+	int kind = in.readVarInt();
+	String id = in.readText();
+	String edgeId = in.readString();
+	boolean head = in.readBoolean();
+	TreeNode node;
+	if (kind == TERMINAL) {
+	    node = kaf.newTerminal(id, readSpan(in, terms));
+	}
+	else if (kind == NON_TERMINAL) {
+	    node = kaf.newNonTerminal(id, in.readString());
+	    int numChildren = in.readVarInt();
+	    for (int i = 0; i < numChildren; i++) {
+		TreeNode child = readTreeNode(in, kaf, terms);
+		try {
+		    node.addChild(child);
+		} catch (Exception e) {
+		    // Only terminals refuse children
+		}
+	    }
+	}
+	else {
+	    throw new KAFNotValidException("Unknown tree node kind " + kind + " in snapshot");
+	}
+	node.setEdgeId(edgeId);
+	node.setHead(head);
+	return node;
+    }
+
+    private static <T> int ordinal(HashMap<T, Integer> ordinals, T obj, String objType, String objId) {
+	Integer ordinal = ordinals.get(obj);
+	if (ordinal == null) {
+	    throw new IllegalStateException("The " + objType + " " + objId + " refers to an annotation which is not in the document. Documents with dangling references can't be saved as snapshots.");
+	}
+	return ordinal;
+    }
+
+    /** Buffered output of a snapshot. Strings written with writeString are collected in the string table, which is written by finish. */
+    private static class Output {
+	private OutputStream stream;
+	private byte[] buf = new byte[65536];
+	private int count = 0;
+	/** Bytes written to the stream before the ones in buf */
+	private long flushed = 0;
+	private HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+	private List<String> strings = new ArrayList<String>();
+
+	Output(OutputStream stream) {
+	    this.stream = stream;
+	}
+
+	void writeByte(int b) throws IOException {
+	    if (count == buf.length) {
+		flushBuffer();
+	    }
+	    buf[count++] = (byte) b;
+	}
+
+	void writeBytes(byte[] bytes) throws IOException {
+	    if (bytes.length > buf.length - count) {
+		flushBuffer();
+		if (bytes.length > buf.length) {
+		    stream.write(bytes);
+		    flushed += bytes.length;
+		    return;
+		}
+	    }
+	    System.arraycopy(bytes, 0, buf, count, bytes.length);
+	    count += bytes.length;
+	}
+
+	void writeBoolean(boolean b) throws IOException {
+	    writeByte(b ? 1 : 0);
+	}
+
+	/** Writes a non-negative int in 7-bit groups, lowest first, with the high bit set in every byte but the last one */
+	void writeVarInt(int v) throws IOException {
+	    while ((v & ~0x7f) != 0) {
+		writeByte((v & 0x7f) | 0x80);
+		v >>>= 7;
+	    }
+	    writeByte(v);
+	}
+
+	/** Writes an int which may be negative, mapping small negative values to small positive ones (zigzag encoding) */
+	void writeSignedVarInt(int v) throws IOException {
+	    writeVarInt((v << 1) ^ (v >> 31));
+	}
+
+	void writeFloat(float f) throws IOException {
+	    int bits = Float.floatToRawIntBits(f);
+	    writeByte(bits >>> 24);
+	    writeByte(bits >>> 16);
+	    writeByte(bits >>> 8);
+	    writeByte(bits);
+	}
+
+	/** Writes a string, which may be null, as a reference to the string table */
+	void writeString(String s) throws IOException {
+	    if (s == null) {
+		writeVarInt(0);
+		return;
+	    }
+	    Integer index = stringIndexes.get(s);
+	    if (index == null) {
+		index = strings.size();
+		stringIndexes.put(s, index);
+		strings.add(s);
+	    }
+	    writeVarInt(index + 1);
+	}
+
+	/** Writes a string in place, for values which aren't likely to be repeated. The string can't be null. */
+	void writeText(String s) throws IOException {
+	    byte[] bytes = s.getBytes(UTF8);
+	    writeVarInt(bytes.length);
+	    writeBytes(bytes);
+	}
+
+	/** Writes the string table and its offset, and flushes the stream */
+	void finish() throws IOException {
+	    long tableOffset = flushed + count;
+	    writeVarInt(strings.size());
+	    for (String s : strings) {
+		writeText(s);
+	    }
+	    for (int shift = 56; shift >= 0; shift -= 8) {
+		writeByte((int) (tableOffset >>> shift));
+	    }
+	    flushBuffer();
+	    stream.flush();
+	}
+
+	private void flushBuffer() throws IOException {
+	    stream.write(buf, 0, count);
+	    flushed += count;
+	    count = 0;
+	}
+    }
+
+    /** Reads a snapshot from a buffer whose position 0 is the start of the snapshot */
+    private static class Input {
+	private ByteBuffer buffer;
+	private String[] strings;
+	private byte[] scratch = new byte[256];
+
+	Input(ByteBuffer buffer) {
+	    this.buffer = buffer;
+	}
+
+	/** Checks the magic bytes and the version, and reads the string table from the end of the buffer */
+	void readHeader() throws KAFNotValidException {
+	    if (buffer.remaining() < MAGIC.length + 9) {
+		throw new KAFNotValidException("The snapshot is truncated");
+	    }
+	    for (int i = 0; i < MAGIC.length; i++) {
+		if (buffer.get() != MAGIC[i]) {
+		    throw new KAFNotValidException("Not a KAF snapshot");
+		}
+	    }
+	    int version = readVarInt();
+	    if (version != VERSION) {
+		throw new KAFNotValidException("Snapshot version " + version + " is not supported. This library reads version " + VERSION + ".");
+	    }
+	    int bodyStart = buffer.position();
+	    long tableOffset = buffer.getLong(buffer.limit() - 8);
+	    if ((tableOffset < bodyStart) || (tableOffset > buffer.limit() - 8)) {
+		throw new KAFNotValidException("The snapshot is corrupted: wrong string table offset");
+	    }
+	    buffer.position((int) tableOffset);
+	    strings = new String[readVarInt()];
+	    for (int i = 0; i < strings.length; i++) {
+		strings[i] = readText();
+	    }
+	    buffer.position(bodyStart);
+	}
+
+	boolean readBoolean() {
+	    return buffer.get() != 0;
+	}
+
+	int readVarInt() {
+	    int b = buffer.get();
+	    if (b >= 0) {
+		return b;
+	    }
+	    int v = b & 0x7f;
+	    for (int shift = 7; ; shift += 7) {
+		b = buffer.get();
+		v |= (b & 0x7f) << shift;
+		if (b >= 0) {
+		    return v;
+		}
+		if (shift > 28) {
+		    throw new IllegalArgumentException("Variable-length number too long");
+		}
+	    }
+	}
+
+	/** Reads the length of a byte array, checking that the array fits in the rest of the buffer */
+	private int readLength() {
+	    int length = readVarInt();
+	    if ((length < 0) || (length > buffer.remaining())) {
+		throw new BufferUnderflowException();
+	    }
+	    return length;
+	}
+
+	int readSignedVarInt() {
+	    int v = readVarInt();
+	    return (v >>> 1) ^ -(v & 1);
+	}
+
+	float readFloat() {
+	    return buffer.getFloat();
+	}
+
+	String readString() {
+	    int index = readVarInt();
+	    return (index == 0) ? null : strings[index - 1];
+	}
+
+	byte[] readBytes() {
+	    byte[] bytes = new byte[readLength()];
+	    buffer.get(bytes);
+	    return bytes;
+	}
+
+	String readText() {
+	    int length = readLength();
+	    if (length > scratch.length) {
+		scratch = new byte[Math.max(length, scratch.length * 2)];
+	    }
+	    buffer.get(scratch, 0, length);
+	    return new String(scratch, 0, length, UTF8);
+	}
+    }
+}
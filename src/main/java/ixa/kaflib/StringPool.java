@@ -0,0 +1,35 @@
+package ixa.kaflib;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/** Pool of the values of attributes which take few distinct values, as parts of speech, term types, dependency functions or resources of external references. A document keeps one, used by its methods creating annotations and by the loaders, so that annotations with the same value share a single String instead of one per occurrence, which also makes comparing equal values cheaper. The pool stops taking new values once it has MAX_SIZE of them, in case an attribute turns out to have many values; values that don't fit are returned unchanged. The pool is taken without locking, so that threads adding to different layers of a document don't wait for each other; the limit is then approximate, as threads adding values at once may all see room for one more. */
+class StringPool {
+
+    static final int MAX_SIZE = 4096;
+
+    private ConcurrentHashMap<String, String> values;
+
+    StringPool() {
+	values = new ConcurrentHashMap<String, String>();
+    }
+
+    /** Returns the value of the pool equal to the given one, adding it if there isn't any. Null is returned unchanged. */
+    String get(String value) {
+	if (value == null) {
+	    return null;
+	}
+	String pooled = values.get(value);
+	if (pooled != null) {
+	    return pooled;
+	}
+	if (values.size() < MAX_SIZE) {
+	    // Another thread may have added an equal value since
+	    pooled = values.putIfAbsent(value, value);
+	    if (pooled != null) {
+		return pooled;
+	    }
+	}
+	return value;
+    }
+}
@@ -38,7 +38,7 @@ public class Term {
     /** Sentiment features (optional) */
     private Sentiment sentiment;
 
-    /** If it's a compound term, it's components (optional) */
+    /** If it's a compound term, it's components (optional). Only created when first requested or added to, like externalReferences. */
     private List<Component> components;
 
     /** Head component (optional) */
@@ -47,7 +47,14 @@ public class Term {
     /** Target elements are used to refer to the target word. If the term is a multiword, multiple target elements are used. (required)*/
     private Span<WF> span;
 
-    /** ExternalReferences are used to associate terms to external lexical or semantic resources, such as elements of a Knowledge base: semantic lexicon  (like WordNet) or an ontology (optional) */
+    /** Form of a multiword term, kept after it is built. getForm checks it against the forms of the current span before returning it, so it's rebuilt if the span or any of its WFs change. */
+    private String form;
+
+    /** String representation of the term (see getStr), and the form it was computed from */
+    private String str;
+    private String strForm;
+
+    /** ExternalReferences are used to associate terms to external lexical or semantic resources, such as elements of a Knowledge base: semantic lexicon  (like WordNet) or an ontology (optional). Most terms have none, so the list is only created when it's first requested or added to. */
     private List<ExternalRef> externalReferences;
 
     /** The term layer represents sentiment information which is context-independent and that can be found in a sentiment lexicon.
@@ -255,6 +262,10 @@ public class Term {
 	    return id;
 	}
 
+	void setId(String id) {
+	    this.id = id;
+	}
+
 	public String getLemma() {
 	    return lemma;
 	}
@@ -304,9 +315,7 @@ public class Term {
 	this.type = type;
 	this.lemma = lemma;
 	this.pos = pos;
-	this.components = new ArrayList();
 	this.span = span;
-	this.externalReferences = new ArrayList<ExternalRef>();
     }
 
     Term(String id, String type, String lemma, String pos, String morphofeat, Span<WF> span) {
@@ -318,9 +327,7 @@ public class Term {
 	this.lemma = lemma;
 	this.pos = pos;
 	this.morphofeat = morphofeat;
-	this.components = new ArrayList();
 	this.span = span;
-	this.externalReferences = new ArrayList<ExternalRef>();
     }
 
     /* Copy constructor */
@@ -339,11 +346,13 @@ public class Term {
 	/* Copy components and head */
 	HashMap<String, Component> newComponents = 
 	    new HashMap<String, Component>();
-	this.components = new ArrayList<Component>();
-	for (Component component : term.components) {
-	    Component copyComponent = new Component(component);
-	    this.components.add(copyComponent);
-	    newComponents.put(component.getId(), copyComponent);
+	if (term.hasComponents()) {
+	    this.components = new ArrayList<Component>(term.components.size());
+	    for (Component component : term.components) {
+		Component copyComponent = new Component(component);
+		this.components.add(copyComponent);
+		newComponents.put(component.getId(), copyComponent);
+	    }
 	}
 	if (term.hasHead()) {
 	    this.head = newComponents.get(term.head.getId());
@@ -366,9 +375,11 @@ public class Term {
 	    this.span = new Span<WF>(copiedTargets);
 	}
 	/* Copy external references */
-	this.externalReferences = new ArrayList<ExternalRef>();
-	for (ExternalRef externalRef : term.getExternalRefs()) {
-	    this.externalReferences.add(new ExternalRef(externalRef));
+	if (term.hasExternalRefs()) {
+	    this.externalReferences = new ArrayList<ExternalRef>(term.externalReferences.size());
+	    for (ExternalRef externalRef : term.externalReferences) {
+		this.externalReferences.add(new ExternalRef(externalRef));
+	    }
 	}
     }
 
@@ -429,31 +440,81 @@ public class Term {
     }
 
     public String getForm() {
-	String str = "";
-	for (WF wf : span.getTargets()) {
-	    if (!str.isEmpty()) {
-		str += " ";
+	List<WF> targets = span.getTargets();
+	if (targets.size() == 1) {
+	    String wfForm = targets.get(0).getForm();
+	    if (wfForm != null) {
+		return wfForm;
 	    }
-	    str += wf.getForm();
+	}
+	if ((form == null) || !isFormOf(form, targets)) {
+	    StringBuilder sb = new StringBuilder();
+	    for (WF wf : targets) {
+		if (sb.length() > 0) {
+		    sb.append(' ');
+		}
+		sb.append(wf.getForm());
+	    }
+	    form = sb.toString();
+	}
+	return form;
+    }
+
+    /** Returns true if the given string is the form of the WFs, as built by getForm */
+    private static boolean isFormOf(String form, List<WF> wfs) {
+	int pos = 0;
+	for (WF wf : wfs) {
+	    String wfForm = String.valueOf(wf.getForm());
+	    if (pos > 0) {
+		if ((pos >= form.length()) || (form.charAt(pos) != ' ')) {
+		    return false;
+		}
+		pos++;
+	    }
+	    if (!form.startsWith(wfForm, pos)) {
+		return false;
+	    }
+	    pos += wfForm.length();
+	}
+	return pos == form.length();
+    }
+
+    /** Returns the form of the term, adapted to be written inside an XML comment. The result is kept until the form changes. */
+    public String getStr() {
+	String currentForm = this.getForm();
+	if (currentForm != strForm) {
+	    str = toStr(currentForm);
+	    strForm = currentForm;
 	}
 	return str;
     }
 
-   public String getStr() {
-       String strValue = this.getForm();
-       boolean valid = false;
-       while (!valid) {
-	   if (strValue.startsWith("-") || strValue.endsWith("-")) {
-	       strValue = strValue.replace("-", " - ");
-	   }
-	   else if (strValue.contains("--")) { 
-	       strValue = strValue.replace("--", "-");
-	   }
-	   else {
-	       valid = true;
-	   }
-       }
-       return strValue;
+    private static String toStr(String strValue) {
+	boolean valid = false;
+	while (!valid) {
+	    if (strValue.startsWith("-") || strValue.endsWith("-")) {
+		strValue = strValue.replace("-", " - ");
+	    }
+	    else if (strValue.contains("--")) {
+		strValue = strValue.replace("--", "-");
+	    }
+	    else {
+		valid = true;
+	    }
+	}
+	return strValue;
+    }
+
+    /** Returns the strings of the terms separated by spaces, as written in the comments of spans */
+    static String getStr(List<Term> terms) {
+	StringBuilder sb = new StringBuilder();
+	for (Term term : terms) {
+	    if (sb.length() > 0) {
+		sb.append(' ');
+	    }
+	    sb.append(term.getStr());
+	}
+	return sb.toString();
     }
 
     public boolean hasHead() {
@@ -485,16 +546,23 @@ public class Term {
         this.sentiment = sentiment;
     }
 
+    public boolean hasComponents() {
+	return (components != null) && !components.isEmpty();
+    }
+
     public List<Component> getComponents() {
+	if (components == null) {
+	    components = new ArrayList<Component>();
+	}
 	return this.components;
     }
 
     public void addComponent(Component component) {
-	components.add(component);
+	getComponents().add(component);
     }
 
     public void addComponent(Component component, boolean isHead) {
-	components.add(component);
+	getComponents().add(component);
 	if (isHead) {
 	    this.head = component;
 	}
@@ -528,16 +596,25 @@ public class Term {
 	return this.getWFs().get(0).getSent();
     }
 
+    public boolean hasExternalRefs() {
+	return (externalReferences != null) && !externalReferences.isEmpty();
+    }
+
     public List<ExternalRef> getExternalRefs() {
+	if (externalReferences == null) {
+	    externalReferences = new ArrayList<ExternalRef>();
+	}
 	return externalReferences;
     }
 
     public void addExternalRef(ExternalRef externalRef) {
-	externalReferences.add(externalRef);
+	getExternalRefs().add(externalRef);
     }
 
     public void addExternalRefs(List<ExternalRef> externalRefs) {
-	externalReferences.addAll(externalRefs);
+	if (!externalRefs.isEmpty()) {
+	    getExternalRefs().addAll(externalRefs);
+	}
     }
 
 }
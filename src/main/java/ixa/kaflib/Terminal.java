@@ -20,14 +20,7 @@ public class Terminal extends TreeNode {
     }
 
     private String getStrValue() {
-	String str = "";
-	for (Term term : span.getTargets()) {
-	    if (!str.isEmpty()) {
-		str += " ";
-	    }
-	    str += term.getStr();
-	}
-	return str;
+	return Term.getStr(span.getTargets());
     }
 
     public String getStr() {
@@ -29,17 +29,32 @@ public class WF {
     /** The word form text (required) */
     private String form;
 
+    /** Term formed by the word form, set by the container the word form belongs to when the term is added to it (see AnnotationContainer.getTermByWF) */
+    Term term;
+
     WF(AnnotationContainer annotationContainer, String wid, String form, int sent) {
 	this.annotationContainer = annotationContainer;
 	this.wid = wid;
 	this.form = form;
-        this.setSent(sent);
+	this.sent = sent;
 	this.para = -1;
 	this.page = -1;
 	this.offset = -1;
 	this.length = -1;
     }
 
+    /** Creates a word form with its offset and length, for KAFDocument.newTokens. It's indexed when AnnotationContainer.addTokens adds it: it's appended to the index by sentence, found by ID from its position in the layer, and given its term in the term field. */
+    WF(AnnotationContainer annotationContainer, String wid, String form, int sent, int offset, int length) {
+	this.annotationContainer = annotationContainer;
+	this.wid = wid;
+	this.form = form;
+	this.sent = sent;
+	this.para = -1;
+	this.page = -1;
+	this.offset = offset;
+	this.length = length;
+    }
+
     WF(WF wf, AnnotationContainer annotationContainer) {
 	this.annotationContainer = annotationContainer;
 	this.wid = wf.wid;
@@ -52,12 +67,20 @@ public class WF {
 	this.form = wf.form;
     }
 
+    AnnotationContainer getAnnotationContainer() {
+	return annotationContainer;
+    }
+
     public String getId() {
 	return wid;
     }
 
     public void setId(String wid) {
+	String oldId = this.wid;
 	this.wid = wid;
+	if (oldId != null) {
+	    annotationContainer.reindexWF(this, oldId);
+	}
     }
 
     public boolean hasSent() {
@@ -69,12 +92,10 @@ public class WF {
     }
 
     public void setSent(int sent) {
+	int oldSent = this.sent;
 	this.sent = sent;
-	annotationContainer.indexWFBySent(this, sent);
-	// If there's a term associated with this WF, index it as well
-	Term term = annotationContainer.getTermByWF(this);
-	if (term != null) {
-	    annotationContainer.indexTermBySent(term, sent);
+	if (oldSent != sent) {
+	    annotationContainer.reindexWFSent(this);
 	}
     }
 
@@ -111,7 +132,11 @@ public class WF {
     }
 
     public void setOffset(int offset) {
+	int oldOffset = this.offset;
 	this.offset = offset;
+	if (oldOffset != offset) {
+	    annotationContainer.reindexWFOffset(this, oldOffset);
+	}
     }
 
     public boolean hasLength() {
@@ -124,6 +149,7 @@ public class WF {
 
     public void setLength(int length) {
 	this.length = length;
+	annotationContainer.reindexWFLength(this);
     }
 
     public boolean hasXpath() {
@@ -0,0 +1,91 @@
+package ixa.kaflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class BatchProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Writes the given number of small documents to a new directory */
+    private File createInputDir(int numDocs) throws Exception {
+	File dir = folder.newFolder("in");
+	for (int i = 0; i < numDocs; i++) {
+	    KAFDocument kaf = new KAFDocument("en", "v1");
+	    List<WF> wfs = new ArrayList<WF>();
+	    wfs.add(kaf.newWF("word" + i, 0, 1));
+	    kaf.newTerm("open", "word" + i, "N", KAFDocument.newWFSpan(wfs));
+	    kaf.save(new File(dir, "doc" + i + ".kaf").getPath());
+	}
+	return dir;
+    }
+
+    /** Annotator throwing the given error on the named document */
+    private static BatchProcessor.Annotator failingOn(final String failingName, final Error error) {
+	return new BatchProcessor.Annotator() {
+	    public KAFDocument process(String name, KAFDocument kaf) {
+		if (name.equals(failingName)) {
+		    throw error;
+		}
+		return kaf;
+	    }
+	};
+    }
+
+    private void assertRunThrows(BatchProcessor processor, Error error) throws Exception {
+	File in = createInputDir(3);
+	try {
+	    processor.run(in, new File(folder.getRoot(), "out"));
+	    fail("The error of the annotator wasn't thrown");
+	} catch (IllegalStateException e) {
+	    assertSame(error, e.getCause());
+	}
+    }
+
+    @Test(timeout = 30000)
+    public void errorInAnnotatorStopsOrderedRun() throws Exception {
+	AssertionError error = new AssertionError("broken annotator");
+	BatchProcessor processor = new BatchProcessor(failingOn("doc1.kaf", error), 1);
+	processor.setOrdered(true);
+	assertRunThrows(processor, error);
+    }
+
+    @Test(timeout = 30000)
+    public void errorInAnnotatorStopsParallelRun() throws Exception {
+	AssertionError error = new AssertionError("broken annotator");
+	BatchProcessor processor = new BatchProcessor(failingOn("doc1.kaf", error), 3);
+	processor.setMaxInFlight(1);
+	assertRunThrows(processor, error);
+    }
+
+    @Test(timeout = 30000)
+    public void exceptionInAnnotatorSkipsDocument() throws Exception {
+	File in = createInputDir(3);
+	BatchProcessor processor = new BatchProcessor(new BatchProcessor.Annotator() {
+		public KAFDocument process(String name, KAFDocument kaf) throws Exception {
+		    if (name.equals("doc1.kaf")) {
+			throw new Exception("bad document");
+		    }
+		    return kaf;
+		}
+	    }, 2);
+	processor.setOrdered(true);
+	File out = new File(folder.getRoot(), "out");
+	processor.run(in, out);
+	assertEquals(1, processor.getFailures().size());
+	assertTrue(processor.getFailures().containsKey("doc1.kaf"));
+	assertEquals(2, out.list().length);
+    }
+}
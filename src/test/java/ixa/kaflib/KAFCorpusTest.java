@@ -0,0 +1,149 @@
+package ixa.kaflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class KAFCorpusTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static KAFDocument createDocument(String word) {
+	KAFDocument kaf = new KAFDocument("en", "v1");
+	List<WF> wfs = new ArrayList<WF>();
+	wfs.add(kaf.newWF(word, 0, 1));
+	kaf.newTerm("open", word, "N", KAFDocument.newWFSpan(wfs));
+	return kaf;
+    }
+
+    private static void add(KAFCorpusWriter writer, String... ids) throws Exception {
+	for (String id : ids) {
+	    writer.add(id, createDocument(id));
+	}
+    }
+
+    /** Checks the IDs of the corpus and that each document loads with its word */
+    private static void assertCorpus(File file, String... ids) throws Exception {
+	KAFCorpus corpus = new KAFCorpus(file);
+	try {
+	    assertEquals(Arrays.asList(ids), corpus.getIds());
+	    for (String id : ids) {
+		assertEquals(id, corpus.get(id).getWFs().get(0).getForm());
+	    }
+	} finally {
+	    corpus.close();
+	}
+    }
+
+    private static void truncate(File file, long length) throws Exception {
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    raf.setLength(length);
+	} finally {
+	    raf.close();
+	}
+    }
+
+    @Test
+    public void appendKeepsDocuments() throws Exception {
+	File file = folder.newFile("corpus.kafc");
+	KAFCorpusWriter writer = new KAFCorpusWriter(file);
+	add(writer, "a", "b");
+	writer.close();
+	writer = new KAFCorpusWriter(file);
+	add(writer, "c", "a");
+	writer.close();
+	assertCorpus(file, "a", "b", "c");
+    }
+
+    @Test
+    public void unclosedAppendKeepsPreviousDocuments() throws Exception {
+	File file = folder.newFile("corpus.kafc");
+	KAFCorpusWriter writer = new KAFCorpusWriter(file);
+	add(writer, "a", "b");
+	writer.close();
+	long committed = file.length();
+	writer = new KAFCorpusWriter(file);
+	add(writer, "c", "d");
+	writer.close();
+	// Cut within the documents of the second writer, as if it had died before closing, and within its index
+	for (long length : new long[] { committed + 10, file.length() - 1 }) {
+	    File copy = folder.newFile("copy-" + length + ".kafc");
+	    copyPrefix(file, copy, length);
+	    assertCorpus(copy, "a", "b");
+	    // A new writer appends after the documents left without index
+	    writer = new KAFCorpusWriter(copy);
+	    add(writer, "e");
+	    writer.close();
+	    assertCorpus(copy, "a", "b", "e");
+	}
+    }
+
+    @Test
+    public void unclosedAppendToEmptyCorpus() throws Exception {
+	File file = folder.newFile("corpus.kafc");
+	new KAFCorpusWriter(file).close();
+	long committed = file.length();
+	KAFCorpusWriter writer = new KAFCorpusWriter(file);
+	add(writer, "a");
+	writer.close();
+	truncate(file, committed + 10);
+	assertCorpus(file);
+    }
+
+    @Test
+    public void flushMakesDocumentsReadable() throws Exception {
+	File file = folder.newFile("corpus.kafc");
+	KAFCorpusWriter writer = new KAFCorpusWriter(file);
+	add(writer, "a", "b");
+	writer.flush();
+	assertCorpus(file, "a", "b");
+	add(writer, "c");
+	// Not closed yet: the corpus is read as of the flush
+	assertCorpus(file, "a", "b");
+	writer.close();
+	assertCorpus(file, "a", "b", "c");
+    }
+
+    @Test
+    public void otherFilesAreNotCorpora() throws Exception {
+	File file = folder.newFile("other.bin");
+	FileOutputStream out = new FileOutputStream(file);
+	try {
+	    out.write(new byte[100000]);
+	} finally {
+	    out.close();
+	}
+	try {
+	    new KAFCorpus(file);
+	    fail("A file of zeros was opened as a corpus");
+	} catch (KAFNotValidException e) {
+	    // Expected
+	}
+    }
+
+    private static void copyPrefix(File from, File to, long length) throws Exception {
+	RandomAccessFile in = new RandomAccessFile(from, "r");
+	FileOutputStream out = new FileOutputStream(to);
+	try {
+	    byte[] bytes = new byte[(int) length];
+	    in.readFully(bytes);
+	    out.write(bytes);
+	} finally {
+	    in.close();
+	    out.close();
+	}
+    }
+}
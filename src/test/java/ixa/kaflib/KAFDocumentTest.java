@@ -0,0 +1,426 @@
+package ixa.kaflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+
+public class KAFDocumentTest {
+
+    /** A document with one sentence of the given forms, each forming a term */
+    private static KAFDocument createDocument(String... forms) {
+	KAFDocument kaf = new KAFDocument("en", "v1");
+	for (int i = 0; i < forms.length; i++) {
+	    List<WF> wfs = new ArrayList<WF>();
+	    wfs.add(kaf.newWF(forms[i], i * 5, 1));
+	    kaf.newTerm("open", forms[i], "N", KAFDocument.newWFSpan(wfs));
+	}
+	return kaf;
+    }
+
+    private static Span<Term> span(Term... terms) {
+	Span<Term> span = KAFDocument.newTermSpan();
+	for (Term term : terms) {
+	    span.addTarget(term);
+	}
+	return span;
+    }
+
+    @Test
+    public void rolesByTermSeeRolesAddedAfterQuery() {
+	KAFDocument kaf = createDocument("John", "gave", "a", "book");
+	List<Term> terms = kaf.getTerms();
+	Predicate predicate = kaf.newPredicate(span(terms.get(1)));
+	predicate.addRole(kaf.newRole(predicate, "A0", span(terms.get(0))));
+	assertEquals(1, kaf.getRolesByTerm(terms.get(0)).size());
+	assertTrue(kaf.getRolesByTerm(terms.get(3)).isEmpty());
+	Predicate.Role role = kaf.newRole(predicate, "A1", span(terms.get(2), terms.get(3)));
+	predicate.addRole(role);
+	assertEquals(1, kaf.getRolesByTerm(terms.get(3)).size());
+	assertSame(role, kaf.getRolesByTerm(terms.get(3)).get(0));
+    }
+
+    @Test
+    public void opinionsByTermSeePartsCreatedAfterQuery() {
+	KAFDocument kaf = createDocument("I", "like", "it");
+	List<Term> terms = kaf.getTerms();
+	Opinion opinion = kaf.newOpinion();
+	opinion.createOpinionHolder(span(terms.get(0)));
+	assertEquals(1, kaf.getOpinionsByTerm(terms.get(0)).size());
+	assertTrue(kaf.getOpinionsByTerm(terms.get(2)).isEmpty());
+	opinion.createOpinionTarget(span(terms.get(2)));
+	assertSame(opinion, kaf.getOpinionsByTerm(terms.get(2)).get(0));
+	opinion.createOpinionExpression(span(terms.get(1)));
+	assertSame(opinion, kaf.getOpinionsByTerm(terms.get(1)).get(0));
+    }
+
+    @Test
+    public void viewsLeaveAnnotationsToTheirDocument() {
+	KAFDocument kaf = createDocument("I", "like", "it");
+	List<Term> terms = kaf.getTerms();
+	Opinion opinion = kaf.newOpinion();
+	opinion.createOpinionHolder(span(terms.get(0)));
+	KAFDocument view = kaf.view(1, 2);
+	assertSame(opinion, view.getOpinions().get(0));
+	assertTrue(kaf.getOpinionsByTerm(terms.get(2)).isEmpty());
+	opinion.createOpinionTarget(span(terms.get(2)));
+	assertSame(opinion, kaf.getOpinionsByTerm(terms.get(2)).get(0));
+    }
+
+    @Test
+    public void tokensSurviveRoundTrip() throws Exception {
+	KAFDocument kaf = new KAFDocument("en", "v1");
+	String[] forms = {"Dogs", "bark", ".", "Cats", "too"};
+	int[] offsets = {0, 5, 9, 11, 16};
+	int[] sents = {1, 1, 1, 2, 2};
+	String[] types = {"open", "open", "close", "open", "open"};
+	String[] lemmas = {"dog", "bark", ".", "cat", "too"};
+	String[] pos = {"N", "V", "O", "N", "A"};
+	List<Term> terms = kaf.newTokens(forms, offsets, null, sents, types, lemmas, pos);
+	assertEquals(5, terms.size());
+	String xml = kaf.toString();
+	KAFDocument loaded = KAFDocument.createFromStream(new StringReader(xml));
+	assertEquals(xml, loaded.toString());
+	assertEquals(5, loaded.getWFs().size());
+	WF wf = loaded.getWFs().get(3);
+	assertEquals("w4", wf.getId());
+	assertEquals(2, wf.getSent());
+	assertEquals(11, wf.getOffset());
+	assertEquals(4, wf.getLength());
+	Term term = loaded.getTermById("t4");
+	assertEquals("cat", term.getLemma());
+	assertEquals("N", term.getPos());
+	assertSame(wf, term.getWFs().get(0));
+    }
+
+    @Test
+    public void tokensWithoutLemmaAreRejected() {
+	KAFDocument kaf = new KAFDocument("en", "v1");
+	try {
+	    kaf.newTokens(new String[] {"Dogs", "bark"}, new int[] {0, 5}, null, new int[] {1, 1}, new String[] {"open", "open"}, new String[] {"dog", null}, new String[] {"N", "V"});
+	    fail("A token without lemma was accepted");
+	}
+	catch (IllegalArgumentException e) {
+	}
+	assertTrue(kaf.getWFs().isEmpty());
+	assertTrue(kaf.getTerms().isEmpty());
+	kaf.newWF("Dogs", 0, 1);
+	assertEquals("w1", kaf.getWFs().get(0).getId());
+    }
+
+    /** Annotations added by each thread of layersAnnotatedConcurrently */
+    private static final int ANNOTATIONS = 2000;
+
+    /** Adds an annotation to the layer of a thread */
+    private interface Annotator {
+	void annotate(KAFDocument kaf, Term term, Term next);
+    }
+
+    @Test(timeout=60000)
+    public void layersAnnotatedConcurrently() throws Exception {
+	final KAFDocument kaf = new KAFDocument("en", "v1");
+	int count = ANNOTATIONS + 1;
+	String[] forms = new String[count];
+	int[] offsets = new int[count];
+	int[] sents = new int[count];
+	String[] types = new String[count];
+	String[] lemmas = new String[count];
+	String[] pos = new String[count];
+	for (int i = 0; i < count; i++) {
+	    forms[i] = "w" + i;
+	    offsets[i] = i * 8;
+	    sents[i] = i / 10 + 1;
+	    types[i] = "open";
+	    lemmas[i] = forms[i];
+	    pos[i] = "N";
+	}
+	final List<Term> terms = kaf.newTokens(forms, offsets, null, sents, types, lemmas, pos);
+	Annotator[] annotators = {
+	    new Annotator() {
+		public void annotate(KAFDocument kaf, Term term, Term next) {
+		    Entity entity = kaf.newEntity(Collections.singletonList(span(term)));
+		    entity.setType("PER");
+		    entity.addExternalRef(kaf.newExternalRef("wikipedia", term.getLemma()));
+		}
+	    },
+	    new Annotator() {
+		public void annotate(KAFDocument kaf, Term term, Term next) {
+		    Span<Term> span = span(term, next);
+		    span.setHead(next);
+		    kaf.newChunk("NP", span);
+		}
+	    },
+	    new Annotator() {
+		public void annotate(KAFDocument kaf, Term term, Term next) {
+		    kaf.newCoref(Collections.singletonList(span(term)));
+		}
+	    },
+	    new Annotator() {
+		public void annotate(KAFDocument kaf, Term term, Term next) {
+		    kaf.newDep(next, term, "mod");
+		}
+	    },
+	    new Annotator() {
+		public void annotate(KAFDocument kaf, Term term, Term next) {
+		    kaf.newOpinion().createOpinionExpression(span(term)).setPolarity("positive");
+		}
+	    },
+	    new Annotator() {
+		public void annotate(KAFDocument kaf, Term term, Term next) {
+		    Predicate predicate = kaf.newPredicate(span(next));
+		    predicate.addRole(kaf.newRole(predicate, "A0", span(term)));
+		}
+	    },
+	    new Annotator() {
+		public void annotate(KAFDocument kaf, Term term, Term next) {
+		    kaf.newProperty("size", Collections.singletonList(span(term)));
+		}
+	    }
+	};
+	final CountDownLatch start = new CountDownLatch(1);
+	final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+	List<Thread> threads = new ArrayList<Thread>();
+	for (final Annotator annotator : annotators) {
+	    threads.add(new Thread() {
+		public void run() {
+		    try {
+			start.await();
+			for (int i = 0; i < ANNOTATIONS; i++) {
+			    annotator.annotate(kaf, terms.get(i), terms.get(i + 1));
+			}
+		    }
+		    catch (Throwable e) {
+			failures.add(e);
+		    }
+		}
+	    });
+	}
+	for (Thread thread : threads) {
+	    thread.start();
+	}
+	start.countDown();
+	for (Thread thread : threads) {
+	    thread.join();
+	}
+	assertTrue(failures.toString(), failures.isEmpty());
+	assertEquals(ANNOTATIONS, kaf.getEntities().size());
+	assertEquals(ANNOTATIONS, kaf.getChunks().size());
+	assertEquals(ANNOTATIONS, kaf.getCorefs().size());
+	assertEquals(ANNOTATIONS, kaf.getDeps().size());
+	assertEquals(ANNOTATIONS, kaf.getOpinions().size());
+	assertEquals(ANNOTATIONS, kaf.getPredicates().size());
+	assertEquals(ANNOTATIONS, kaf.getProperties().size());
+	Set<String> ids = new HashSet<String>();
+	for (int i = 0; i < ANNOTATIONS; i++) {
+	    ids.add(kaf.getEntities().get(i).getId());
+	    ids.add(kaf.getChunks().get(i).getId());
+	    ids.add(kaf.getCorefs().get(i).getId());
+	    ids.add(kaf.getOpinions().get(i).getId());
+	    ids.add(kaf.getPredicates().get(i).getId());
+	    ids.add(kaf.getPredicates().get(i).getRoles().get(0).getId());
+	    ids.add(kaf.getProperties().get(i).getId());
+	}
+	assertEquals(7 * ANNOTATIONS, ids.size());
+	Term term = terms.get(ANNOTATIONS / 2);
+	assertEquals(1, kaf.getEntitiesByTerm(term).size());
+	assertEquals(2, kaf.getChunksByTerm(term).size());
+	assertEquals(1, kaf.getRolesByTerm(term).size());
+	assertEquals(1, kaf.getOpinionsByTerm(term).size());
+	String xml = kaf.toString();
+	assertEquals(xml, KAFDocument.createFromStream(new StringReader(xml)).toString());
+    }
+
+    @Test
+    public void reservedIdsAreCompacted() throws Exception {
+	KAFDocument kaf = createDocument("a", "b", "c", "d");
+	List<Term> terms = kaf.getTerms();
+	IdBlock first = kaf.reserveIds(KAFDocument.IdType.entity, 10);
+	IdBlock second = kaf.reserveIds(KAFDocument.IdType.entity, 10);
+	assertEquals("e21", kaf.newEntity(Collections.singletonList(span(terms.get(3)))).getId());
+	// The second block is used before the first, and neither is used up
+	Entity c = kaf.newEntity(second.next(), Collections.singletonList(span(terms.get(2))));
+	Entity a = kaf.newEntity(first.next(), Collections.singletonList(span(terms.get(0))));
+	Entity b = kaf.newEntity(first.next(), Collections.singletonList(span(terms.get(1))));
+	assertEquals("e11", c.getId());
+	assertEquals("e2", b.getId());
+	assertEquals(8, first.remaining());
+	kaf.compactIds(KAFDocument.Layer.entities);
+	List<Entity> entities = kaf.getEntities();
+	assertSame(a, entities.get(0));
+	assertSame(b, entities.get(1));
+	assertSame(c, entities.get(2));
+	for (int i = 0; i < entities.size(); i++) {
+	    assertEquals("e" + (i + 1), entities.get(i).getId());
+	    assertSame(entities.get(i), kaf.getEntityById("e" + (i + 1)));
+	}
+	assertEquals(null, kaf.getEntityById("e21"));
+	assertEquals("e5", kaf.newEntity(Collections.singletonList(span(terms.get(3)))).getId());
+	String xml = kaf.toString();
+	assertEquals(xml, KAFDocument.createFromStream(new StringReader(xml)).toString());
+    }
+
+    @Test
+    public void reservedTermIdsAreCompacted() {
+	KAFDocument kaf = createDocument("a", "b");
+	IdBlock block = kaf.reserveIds(KAFDocument.IdType.term, 5);
+	WF wf = kaf.newWF("c", 10, 1);
+	List<WF> wfs = new ArrayList<WF>();
+	wfs.add(wf);
+	Term term = kaf.newTerm(block.next(), "open", "c", "N", KAFDocument.newWFSpan(wfs));
+	assertEquals("t3", term.getId());
+	kaf.newTerm("open", "b", "N", KAFDocument.newWFSpan(wfs));
+	assertEquals("t8", kaf.getTerms().get(3).getId());
+	kaf.compactIds(KAFDocument.Layer.terms);
+	assertEquals("t4", kaf.getTerms().get(3).getId());
+	assertSame(term, kaf.getTermById("t3"));
+	assertSame(kaf.getTerms().get(3), kaf.getTermById("t4"));
+	assertEquals(null, kaf.getTermById("t8"));
+	assertEquals("t5", kaf.newTerm("open", "b", "N", KAFDocument.newWFSpan(wfs)).getId());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void usedUpBlockHasNoMoreIds() {
+	IdBlock block = new KAFDocument("en", "v1").reserveIds(KAFDocument.IdType.entity, 1);
+	block.next();
+	assertTrue(!block.hasNext());
+	block.next();
+    }
+
+    /** A document of the given number of sentences, each of the given number of tokens */
+    private static KAFDocument createSentences(int numSents, int sentLength) {
+	KAFDocument kaf = new KAFDocument("en", "v1");
+	int count = numSents * sentLength;
+	String[] forms = new String[count];
+	int[] offsets = new int[count];
+	int[] sents = new int[count];
+	String[] types = new String[count];
+	String[] pos = new String[count];
+	for (int i = 0; i < count; i++) {
+	    forms[i] = "w" + i;
+	    offsets[i] = i * 8;
+	    sents[i] = i / sentLength + 1;
+	    types[i] = "open";
+	    pos[i] = "N";
+	}
+	kaf.newTokens(forms, offsets, null, sents, types, forms, pos);
+	return kaf;
+    }
+
+    @Test
+    public void shardsAreJoinedInOrder() throws Exception {
+	KAFDocument kaf = createSentences(5, 4);
+	Term first = kaf.getTerms().get(0);
+	kaf.newEntity(Collections.singletonList(span(first)));
+	List<KAFDocument> shards = kaf.shard(2);
+	assertEquals(2, shards.size());
+	int wfs = 0;
+	for (KAFDocument shard : shards) {
+	    for (WF wf : shard.getWFs()) {
+		assertSame(wf, kaf.getWFs().get(wfs++));
+	    }
+	}
+	assertEquals(20, wfs);
+	// Annotations are added to the last shard first, and joined in document order
+	for (int i = shards.size() - 1; i >= 0; i--) {
+	    KAFDocument shard = shards.get(i);
+	    for (Term term : shard.getTerms()) {
+		shard.newEntity(Collections.singletonList(span(term)));
+	    }
+	    List<Term> shardTerms = shard.getTerms();
+	    for (int j = 0; j + 1 < shardTerms.size(); j++) {
+		if (shardTerms.get(j).getSent() == shardTerms.get(j + 1).getSent()) {
+		    shard.newDep(shardTerms.get(j + 1), shardTerms.get(j), "mod");
+		}
+	    }
+	}
+	kaf.join(new ArrayList<KAFDocument>(shards));
+	List<Entity> entities = kaf.getEntities();
+	assertEquals(21, entities.size());
+	assertEquals(15, kaf.getDeps().size());
+	for (int i = 0; i < entities.size(); i++) {
+	    assertEquals("e" + (i + 1), entities.get(i).getId());
+	}
+	for (int i = 1; i < entities.size(); i++) {
+	    assertSame(kaf.getTerms().get(i - 1), entities.get(i).getTerms().get(0));
+	}
+	assertEquals(2, kaf.getEntitiesByTerm(first).size());
+	for (int sent = 1; sent <= 5; sent++) {
+	    assertEquals(1, kaf.getDepGraph().getRoots(sent).size());
+	    assertSame(kaf.getTerms().get(sent * 4 - 1), kaf.getDepGraph().getRoot(sent));
+	}
+	assertEquals("e22", kaf.newEntity(Collections.singletonList(span(first))).getId());
+	String xml = kaf.toString();
+	assertEquals(xml, KAFDocument.createFromStream(new StringReader(xml)).toString());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void foreignShardsAreNotJoined() {
+	KAFDocument kaf = createSentences(2, 2);
+	List<KAFDocument> shards = createSentences(2, 2).shard(2);
+	kaf.join(shards);
+    }
+
+    @Test
+    public void viewHoldsAnnotationsOfItsSentences() throws Exception {
+	KAFDocument kaf = createSentences(4, 3);
+	List<Term> terms = kaf.getTerms();
+	Entity inside = kaf.newEntity(Collections.singletonList(span(terms.get(3), terms.get(4))));
+	// Spans the second and third sentences, so it's in neither view of one sentence
+	kaf.newEntity(Collections.singletonList(span(terms.get(5), terms.get(6))));
+	Entity later = kaf.newEntity(Collections.singletonList(span(terms.get(7))));
+	kaf.newDep(terms.get(4), terms.get(3), "mod");
+	kaf.newDep(terms.get(8), terms.get(7), "mod");
+	KAFDocument view = kaf.view(2, 3);
+	assertEquals(3, view.getWFs().size());
+	assertSame(kaf.getWFs().get(3), view.getWFs().get(0));
+	assertSame(terms.get(5), view.getTerms().get(2));
+	assertEquals(1, view.getEntities().size());
+	assertSame(inside, view.getEntities().get(0));
+	assertEquals(1, view.getDeps().size());
+	assertEquals("e1", view.getEntities().get(0).getId());
+	KAFDocument wider = kaf.view(2, 4);
+	assertEquals(6, wider.getTerms().size());
+	assertEquals(3, wider.getEntities().size());
+	assertSame(later, wider.getEntities().get(2));
+	assertTrue(kaf.view(5, 9).getWFs().isEmpty());
+	// Saved views load as documents
+	String xml = view.toString();
+	KAFDocument loaded = KAFDocument.createFromStream(new StringReader(xml));
+	assertEquals(xml, loaded.toString());
+	assertEquals("w4", loaded.getWFs().get(0).getId());
+    }
+
+    @Test
+    public void viewIsReadOnly() {
+	KAFDocument kaf = createSentences(2, 2);
+	KAFDocument view = kaf.view(1, 2);
+	try {
+	    view.newEntity(Collections.singletonList(span(view.getTerms().get(0))));
+	    fail("An entity was added to a view");
+	}
+	catch (IllegalStateException e) {
+	}
+	try {
+	    view.removeLayer(KAFDocument.Layer.terms);
+	    fail("A layer was removed from a view");
+	}
+	catch (IllegalStateException e) {
+	}
+	assertTrue(kaf.getEntities().isEmpty());
+	assertEquals(2, view.getTerms().size());
+	// Annotations changed through their own methods change in the document
+	view.getTerms().get(0).setLemma("changed");
+	assertEquals("changed", kaf.getTerms().get(0).getLemma());
+    }
+}
@@ -0,0 +1,95 @@
+package ixa.kaflib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class ReadWriteManagerTest {
+
+    /** A document with a predicate and a role whose spans have heads */
+    private static KAFDocument createSrlDocument() {
+	KAFDocument kaf = new KAFDocument("en", "v1");
+	List<Term> terms = new ArrayList<Term>();
+	String[] forms = {"John", "gave", "a", "book"};
+	for (int i = 0; i < forms.length; i++) {
+	    List<WF> wfs = new ArrayList<WF>();
+	    wfs.add(kaf.newWF(forms[i], i * 5, 1));
+	    terms.add(kaf.newTerm("open", forms[i], "N", KAFDocument.newWFSpan(wfs)));
+	}
+	Span<Term> predicateSpan = KAFDocument.newTermSpan();
+	predicateSpan.addTarget(terms.get(1), true);
+	Predicate predicate = kaf.newPredicate(predicateSpan);
+	Span<Term> roleSpan = KAFDocument.newTermSpan();
+	roleSpan.addTarget(terms.get(2));
+	roleSpan.addTarget(terms.get(3), true);
+	predicate.addRole(kaf.newRole(predicate, "A1", roleSpan));
+	return kaf;
+    }
+
+    private static void assertSrlHeads(KAFDocument kaf) {
+	Predicate predicate = kaf.getPredicates().get(0);
+	assertEquals("t2", predicate.getSpan().getHead().getId());
+	assertTrue(predicate.getSpan().isHead(predicate.getSpan().getTargets().get(0)));
+	Predicate.Role role = predicate.getRoles().get(0);
+	assertEquals("A1", role.getSemRole());
+	assertEquals("t4", role.getSpan().getHead().getId());
+    }
+
+    @Test
+    public void predicateHeadsSurviveRoundTrip() throws Exception {
+	KAFDocument kaf = createSrlDocument();
+	String xml = kaf.toString();
+	assertTrue(xml.contains("head=\"yes\""));
+	KAFDocument loaded = KAFDocument.createFromStream(new StringReader(xml));
+	assertSrlHeads(loaded);
+	assertEquals(xml, loaded.toString());
+    }
+
+    @Test
+    public void predicateHeadsSurvivePartialLoad() throws Exception {
+	String xml = createSrlDocument().toString();
+	KAFDocument loaded = KAFDocument.createFromStream(new StringReader(xml), EnumSet.of(KAFDocument.Layer.text, KAFDocument.Layer.terms, KAFDocument.Layer.srl));
+	assertSrlHeads(loaded);
+	assertEquals(xml, loaded.toString());
+    }
+
+    @Test
+    public void missingRequiredAttributeIsNotWritten() {
+	KAFDocument kaf = new KAFDocument("en", "v1");
+	List<WF> wfs = new ArrayList<WF>();
+	wfs.add(kaf.newWF("John", 0, 1));
+	kaf.newTerm("open", null, "N", KAFDocument.newWFSpan(wfs));
+	try {
+	    kaf.toString();
+	    fail("A term without lemma was written");
+	}
+	catch (IllegalArgumentException e) {
+	    assertTrue(e.getMessage().contains("lemma"));
+	}
+    }
+
+    @Test
+    public void missingOptionalAttributeIsSkipped() throws Exception {
+	KAFDocument kaf = new KAFDocument("en", "v1");
+	List<WF> wfs = new ArrayList<WF>();
+	wfs.add(kaf.newWF("John", 0, 1));
+	Term term = kaf.newTerm("open", "John", "N", KAFDocument.newWFSpan(wfs));
+	Span<Term> span = KAFDocument.newTermSpan();
+	span.addTarget(term);
+	List<Span<Term>> references = new ArrayList<Span<Term>>();
+	references.add(span);
+	kaf.newEntity(references);
+	String xml = kaf.toString();
+	KAFDocument loaded = KAFDocument.createFromStream(new StringReader(xml));
+	assertEquals(null, loaded.getEntities().get(0).getType());
+	assertEquals(xml, loaded.toString());
+    }
+}